@@ -0,0 +1,122 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.tomakehurst.wiremock.WireMockServer;
+
+/**
+ * End to end direct authentication against an in-process stub of the LogonBox
+ * server, which answers the key listing and signature requests immediately.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djdk.internal.httpclient.disableHostnameVerification=true")
+public class AuthenticateBenchmark {
+
+	@Param({ "rsa-2048", "ed25519" })
+	private String keyType;
+
+	private WireMockServer server;
+	private AuthenticatorClient client;
+
+	@Setup
+	public void setup() throws Exception {
+		var sc = SSLContext.getInstance("TLS");
+		sc.init(null, new TrustManager[] { new X509TrustManager() {
+			public X509Certificate[] getAcceptedIssuers() {
+				return null;
+			}
+
+			public void checkClientTrusted(X509Certificate[] certs, String authType) {
+			}
+
+			public void checkServerTrusted(X509Certificate[] certs, String authType) {
+			}
+		} }, new SecureRandom());
+		SSLContext.setDefault(sc);
+
+		var keys = new BenchmarkKeys(keyType);
+		server = new WireMockServer(options().dynamicHttpsPort().dynamicPort());
+		server.start();
+		server.stubFor(get(urlEqualTo("/app/api/authenticator/keys/lee@logonbox.com"))
+				.willReturn(aResponse().withHeader("Content-Type", "text/plain")
+						.withBody("# Authorized keys for lee@logonbox.com\r\n" + keys.getAuthorizedKey() + "\r\n")));
+
+		var mapper = new ObjectMapper();
+		var root = mapper.createObjectNode();
+		root.put("success", true);
+		root.put("message", "");
+		root.put("signature", Base64.getUrlEncoder().encodeToString(keys.sign(new byte[128])));
+		root.put("response", "");
+		server.stubFor(post(urlEqualTo("/app/api/authenticator/signPayload"))
+				.willReturn(aResponse().withHeader("Content-Type", "text/json").withJsonBody(root)));
+
+		client = new AuthenticatorClient("localhost", server.httpsPort());
+	}
+
+	@TearDown
+	public void tearDown() {
+		client.close();
+		server.stop();
+	}
+
+	@Benchmark
+	public AuthenticatorResponse authenticate() throws Exception {
+		return client.authenticate("lee@logonbox.com", new byte[128]);
+	}
+
+	@Benchmark
+	public AuthenticatorResponse authenticateAsync() throws Exception {
+		return client.authenticateAsync("lee@logonbox.com", new byte[128]).get();
+	}
+}
@@ -0,0 +1,118 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.Security;
+import java.security.Signature;
+import java.util.Base64;
+
+import net.i2p.crypto.eddsa.EdDSASecurityProvider;
+
+/**
+ * Generates the key pairs, authorized keys entries and signatures used by the
+ * benchmarks.
+ */
+final class BenchmarkKeys {
+
+	static {
+		Security.addProvider(new EdDSASecurityProvider());
+	}
+
+	private final KeyPair keyPair;
+	private final String authorizedKey;
+	private final String fingerprint;
+	private final int flags;
+
+	BenchmarkKeys(String type) throws GeneralSecurityException, IOException {
+		switch (type) {
+		case "rsa-2048":
+			keyPair = generate("RSA", 2048);
+			break;
+		case "rsa-4096":
+			keyPair = generate("RSA", 4096);
+			break;
+		case "ed25519":
+			keyPair = generateEd25519();
+			break;
+		default:
+			throw new IllegalArgumentException(String.format("Unknown key type %s", type));
+		}
+
+		var client = new AuthenticatorClient();
+		flags = client.getFlags(keyPair.getPublic());
+		fingerprint = client.generateFingerprint(keyPair.getPublic());
+		var blob = client.encodeKey(keyPair.getPublic());
+		authorizedKey = String.format("%s %s Benchmark Key",
+				keyPair.getPublic().getAlgorithm().equals("RSA") ? "ssh-rsa" : "ssh-ed25519",
+				Base64.getEncoder().encodeToString(blob));
+	}
+
+	KeyPair getKeyPair() {
+		return keyPair;
+	}
+
+	String getAuthorizedKey() {
+		return authorizedKey;
+	}
+
+	String getFingerprint() {
+		return fingerprint;
+	}
+
+	int getFlags() {
+		return flags;
+	}
+
+	byte[] sign(byte[] payload) throws GeneralSecurityException {
+		Signature sgr;
+		if (keyPair.getPrivate().getAlgorithm().equals("RSA")) {
+			sgr = Signature.getInstance("SHA512WithRSA");
+		} else {
+			try {
+				sgr = Signature.getInstance("Ed25519");
+			} catch (NoSuchAlgorithmException e) {
+				sgr = Signature.getInstance("NONEwithEdDSA");
+			}
+		}
+		sgr.initSign(keyPair.getPrivate());
+		sgr.update(payload);
+		return sgr.sign();
+	}
+
+	private static KeyPair generate(String algorithm, int bits) throws NoSuchAlgorithmException {
+		var gen = KeyPairGenerator.getInstance(algorithm);
+		gen.initialize(bits);
+		return gen.generateKeyPair();
+	}
+
+	private static KeyPair generateEd25519() throws NoSuchAlgorithmException {
+		try {
+			return KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+		} catch (NoSuchAlgorithmException e) {
+			return KeyPairGenerator.getInstance("EdDSA").generateKeyPair();
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding of authorized keys entries, and fingerprint generation, with and
+ * without the decoded key cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyDecodeBenchmark {
+
+	@Param({ "rsa-2048", "rsa-4096", "ed25519" })
+	private String keyType;
+
+	@Param({ "0", "1000" })
+	private int keyCacheSize;
+
+	private AuthenticatorClient client;
+	private BenchmarkKeys keys;
+
+	@Setup
+	public void setup() throws Exception {
+		keys = new BenchmarkKeys(keyType);
+		client = new AuthenticatorClient();
+		client.setKeyCacheSize(keyCacheSize);
+	}
+
+	@Benchmark
+	public Object decodeKey() throws Exception {
+		return client.decodeKey(keys.getAuthorizedKey());
+	}
+
+	@Benchmark
+	public String generateFingerprint() throws Exception {
+		return client.generateFingerprint(keys.getKeyPair().getPublic());
+	}
+}
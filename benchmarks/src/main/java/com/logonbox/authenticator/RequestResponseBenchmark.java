@@ -0,0 +1,99 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The server redirect flow, generating a request and processing the response,
+ * with keys served from memory. Verification of the response by algorithm is
+ * also measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestResponseBenchmark {
+
+	@Param({ "rsa-2048", "rsa-4096", "ed25519" })
+	private String keyType;
+
+	private AuthenticatorClient client;
+	private byte[] payload;
+	private byte[] response;
+	private AuthenticatorResponse authenticatorResponse;
+
+	@Setup
+	public void setup() throws Exception {
+		var keys = new BenchmarkKeys(keyType);
+		var authorizedKeys = Arrays.asList(keys.getAuthorizedKey());
+		client = new AuthenticatorClient((c, p, f, t, bt, e, fl) -> {
+			throw new UnsupportedOperationException();
+		}, (c, p) -> authorizedKeys, AuthenticatorClient.defaultRandomGenerator());
+
+		payload = new byte[128];
+		var signature = keys.sign(payload);
+		try (var writer = new ByteArrayWriter()) {
+			writer.writeBoolean(true);
+			writer.writeString("lee@logonbox.com");
+			writer.writeString(keys.getFingerprint());
+			writer.writeInt(keys.getFlags());
+			writer.writeBinaryString(signature);
+			response = writer.toByteArray();
+		}
+		authenticatorResponse = new AuthenticatorResponse(keys.getKeyPair().getPublic(), payload, signature,
+				keys.getFlags());
+		if (!authenticatorResponse.verify()) {
+			throw new IllegalStateException("Benchmark signature does not verify.");
+		}
+	}
+
+	@Benchmark
+	public AuthenticatorRequest generateRequest() throws Exception {
+		return client.generateRequest("lee@logonbox.com",
+				"https://localhost/app/ui/authenticator-finish?response={response}");
+	}
+
+	@Benchmark
+	public AuthenticatorResponse processResponse() throws Exception {
+		return client.processResponse(payload, response);
+	}
+
+	@Benchmark
+	public boolean verify() throws Exception {
+		return authenticatorResponse.verify();
+	}
+}
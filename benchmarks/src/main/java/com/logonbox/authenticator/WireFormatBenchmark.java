@@ -0,0 +1,122 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding and decoding of the SSH wire format used for requests, responses
+ * and key blobs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WireFormatBenchmark {
+
+	private BigInteger modulus;
+	private byte[] signature;
+	private byte[] encodedResponse;
+	private ByteBuffer directResponse;
+
+	@Setup
+	public void setup() throws Exception {
+		var keys = new BenchmarkKeys("rsa-4096");
+		modulus = ((java.security.interfaces.RSAPublicKey) keys.getKeyPair().getPublic()).getModulus();
+		signature = keys.sign(new byte[128]);
+		encodedResponse = encode();
+		directResponse = ByteBuffer.allocateDirect(encodedResponse.length);
+		directResponse.put(encodedResponse).flip();
+	}
+
+	@Benchmark
+	public byte[] encode() throws Exception {
+		try (var writer = new ByteArrayWriter()) {
+			writer.writeBoolean(true);
+			writer.writeString("lee@logonbox.com");
+			writer.writeString("SHA256:BzftJTuzZTYRl9xxAqRVJKvWc4zPMn0iAS4IV8PVUMo");
+			writer.writeInt(4);
+			writer.writeBigInteger(modulus);
+			writer.writeBinaryString(signature);
+			return writer.toByteArray();
+		}
+	}
+
+	@Benchmark
+	public String encodeBufferToBase64() throws Exception {
+		try (var writer = ByteBufferWriter.acquire(1024)) {
+			writer.writeBoolean(true);
+			writer.writeString("lee@logonbox.com");
+			writer.writeString("SHA256:BzftJTuzZTYRl9xxAqRVJKvWc4zPMn0iAS4IV8PVUMo");
+			writer.writeInt(4);
+			writer.writeBigInteger(modulus);
+			writer.writeBinaryString(signature);
+			return writer.toBase64Url();
+		}
+	}
+
+	@Benchmark
+	public void decode(Blackhole bh) throws Exception {
+		try (var reader = new ByteArrayReader(encodedResponse)) {
+			bh.consume(reader.readBoolean());
+			bh.consume(reader.readString());
+			bh.consume(reader.readString());
+			bh.consume(reader.readInt());
+			bh.consume(reader.readBigInteger());
+			bh.consume(reader.readBinaryString());
+		}
+	}
+
+	@Benchmark
+	public void decodeBuffer(Blackhole bh) throws Exception {
+		decode(new ByteBufferReader(encodedResponse), bh);
+	}
+
+	@Benchmark
+	public void decodeDirectBuffer(Blackhole bh) throws Exception {
+		decode(new ByteBufferReader(directResponse), bh);
+	}
+
+	private void decode(ByteBufferReader reader, Blackhole bh) throws Exception {
+		bh.consume(reader.readBoolean());
+		bh.consume(reader.readString());
+		bh.consume(reader.readString());
+		bh.consume(reader.readInt());
+		bh.consume(reader.readBigInteger());
+		bh.consume(reader.readBinaryStringBuffer());
+	}
+}
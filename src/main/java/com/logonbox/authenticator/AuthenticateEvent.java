@@ -0,0 +1,47 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Emitted by {@link AuthenticatorClient} for each direct authentication, from
+ * fetching the keys to receiving the signature.
+ */
+@Name("com.logonbox.authenticator.Authenticate")
+@Label("Authenticate")
+@Description("User authenticated directly, from fetching keys to receiving the signature")
+@Threshold("20 ms")
+final class AuthenticateEvent extends AuthenticatorEvent {
+
+	@Label("Principal Hash")
+	String principalHash;
+
+	@Label("Algorithm")
+	@Description("Algorithm of the key used, if any")
+	String algorithm;
+
+	@Label("Success")
+	boolean success;
+}
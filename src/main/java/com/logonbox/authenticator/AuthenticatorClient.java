@@ -1,8 +1,13 @@
 package com.logonbox.authenticator;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpClient.Builder;
+import java.net.http.HttpClient.Version;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
 import java.security.KeyFactory;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -12,14 +17,27 @@ import java.security.interfaces.RSAPublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.RSAPublicKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 
-public class AuthenticatorClient {
+import com.logonbox.authenticator.Metrics.Outcome;
+import com.logonbox.authenticator.Metrics.Phase;
+
+public class AuthenticatorClient implements Closeable {
 
 	private String remoteName = "LogonBox Authenticator API";
 	private String promptText = "{username} wants to authenticate from {remoteName} using your {hostname} credentials.";
@@ -31,6 +49,60 @@ public class AuthenticatorClient {
 	private final KeySource keySource;
 	private final RandomGenerator randomGenerator;
 	private List<String> supportedAlgorithms;
+	private Duration connectTimeout;
+	private Duration requestTimeout;
+	private Executor executor;
+	private boolean virtualThreads;
+	private ExecutorService virtualExecutor;
+	private Version httpVersion;
+	private ConcurrencyLimiter concurrencyLimiter;
+	private Metrics metrics = Metrics.NONE;
+	private volatile HttpClient httpClient;
+	private boolean closed;
+	private final DecodedKeyCache keyCache = new DecodedKeyCache(DEFAULT_KEY_CACHE_SIZE);
+	private final Map<String, KeyIndex> keyIndexes = new LinkedHashMap<>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, KeyIndex> eldest) {
+			return size() > MAX_KEY_INDEXES;
+		}
+	};
+
+	private final static int MAX_KEY_INDEXES = 1000;
+
+	/**
+	 * The decoded keys for a principal, indexed by fingerprint. Only valid while
+	 * the {@link KeySource} keeps returning the same keys, and the supported
+	 * algorithms have not changed. Both are compared by content, from copies
+	 * taken when the index was built, as a source may update a list in place
+	 * when a key is revoked.
+	 */
+	private final static class KeyIndex {
+		private final List<String> source;
+		private final List<String> algorithms;
+		private final List<DecodedKey> keys;
+		private final Map<String, DecodedKey> byFingerprint = new HashMap<>();
+
+		private KeyIndex(List<String> source, List<String> algorithms, List<DecodedKey> keys) {
+			this.source = source;
+			this.algorithms = algorithms;
+			this.keys = keys;
+			for (var key : keys) {
+				byFingerprint.putIfAbsent(key.getFingerprint(), key);
+			}
+		}
+	}
+
+	public final static int DEFAULT_KEY_CACHE_SIZE = 1000;
+
+	final static ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	});
 
 	final static byte[] ED25519_ASN_HEADER = { 0x30, 0x2A, 0x30, 0x05, 0x06, 0x03, 0x2B, 0x65, 0x70, 0x03, 0x21, 0x00 };
 
@@ -60,7 +132,18 @@ public class AuthenticatorClient {
 	}
 
 	public AuthenticatorClient(String hostname, int port) {
-		keySource = new DefaultKeySource(hostname, port);
+		this(new DefaultKeySource(hostname, port));
+	}
+
+	/**
+	 * Create a client using a custom {@link KeySource}, for example a
+	 * {@link CachingKeySource}. Signatures are requested from the same host (or
+	 * {@link EndpointGroup}) the key source reports.
+	 * 
+	 * @param keySource key source
+	 */
+	public AuthenticatorClient(KeySource keySource) {
+		this.keySource = keySource;
 		signatureGenerator = new DefaultSignatureGenerator(keySource);
 		randomGenerator = defaultRandomGenerator();
 	}
@@ -81,6 +164,157 @@ public class AuthenticatorClient {
 		this.supportedAlgorithms = supportedAlgorithms;
 	}
 
+	public Duration getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Set the timeout for establishing connections to the LogonBox server. Takes
+	 * effect the next time the shared {@link HttpClient} is created.
+	 * 
+	 * @param connectTimeout connect timeout or <code>null</code> for no timeout
+	 */
+	public void setConnectTimeout(Duration connectTimeout) {
+		this.connectTimeout = connectTimeout;
+		closeLater(releaseHttpClient());
+	}
+
+	public Duration getRequestTimeout() {
+		return requestTimeout;
+	}
+
+	/**
+	 * Set the timeout for each HTTP request made to the LogonBox server. Note
+	 * that signature requests wait for the user to authorize on their device, so
+	 * this should be generous.
+	 * 
+	 * @param requestTimeout request timeout or <code>null</code> for no timeout
+	 */
+	public void setRequestTimeout(Duration requestTimeout) {
+		this.requestTimeout = requestTimeout;
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Set the executor used by the shared {@link HttpClient} for asynchronous
+	 * tasks. Takes effect the next time the shared client is created.
+	 * 
+	 * @param executor executor or <code>null</code> for the HTTP client default
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+		closeLater(releaseHttpClient());
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Run blocking work on virtual threads, so that many users waiting to
+	 * authorize on their devices do not each hold a platform thread. When
+	 * enabled, the shared {@link HttpClient} uses virtual threads unless an
+	 * {@link #setExecutor(Executor) executor} is set, as do the default
+	 * asynchronous implementations of {@link KeySource} and
+	 * {@link SignatureGenerator} and {@link #generateRequestAsync(String, String)}.
+	 * Requires Java 21 or later, see {@link #isVirtualThreadsSupported()}.
+	 * 
+	 * @param virtualThreads use virtual threads
+	 * @throws UnsupportedOperationException if virtual threads are not supported
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		if (virtualThreads && !isVirtualThreadsSupported()) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or later.");
+		}
+		ExecutorService pool = null;
+		synchronized (this) {
+			this.virtualThreads = virtualThreads;
+			if (!virtualThreads) {
+				pool = virtualExecutor;
+				virtualExecutor = null;
+			}
+		}
+		closeLater(releaseHttpClient());
+		if (pool != null) {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Get whether {@link #setVirtualThreads(boolean)} may be used, i.e. whether
+	 * running on Java 21 or later.
+	 * 
+	 * @return virtual threads supported
+	 */
+	public static boolean isVirtualThreadsSupported() {
+		return Threads.isVirtualSupported();
+	}
+
+	public Version getHttpVersion() {
+		return httpVersion;
+	}
+
+	/**
+	 * Set the preferred HTTP version used by the shared {@link HttpClient}. Takes
+	 * effect the next time the shared client is created.
+	 * 
+	 * @param httpVersion version or <code>null</code> for the HTTP client default
+	 */
+	public void setHttpVersion(Version httpVersion) {
+		this.httpVersion = httpVersion;
+		closeLater(releaseHttpClient());
+	}
+
+	public ConcurrencyLimiter getConcurrencyLimiter() {
+		return concurrencyLimiter;
+	}
+
+	/**
+	 * Set a limiter for how many requests {@link DefaultKeySource} and
+	 * {@link DefaultSignatureGenerator} may have in progress to the LogonBox
+	 * servers at once. The limit adapts to how quickly the servers respond.
+	 * 
+	 * @param concurrencyLimiter limiter or <code>null</code> for no limit
+	 */
+	public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+		this.concurrencyLimiter = concurrencyLimiter;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Set where to record how long each phase of authentication takes, for
+	 * example {@link DefaultMetrics}.
+	 * 
+	 * @param metrics metrics or <code>null</code> to record nothing
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics == null ? Metrics.NONE : metrics;
+	}
+
+	public int getKeyCacheSize() {
+		return keyCache.getMaxSize();
+	}
+
+	/**
+	 * Set the maximum number of decoded public keys to cache. Decoded keys are
+	 * cached against the key data in the authorized keys listing, so the same
+	 * key is not parsed and fingerprinted over and over again.
+	 * 
+	 * @param keyCacheSize maximum number of keys, or zero to disable caching
+	 */
+	public void setKeyCacheSize(int keyCacheSize) {
+		keyCache.setMaxSize(keyCacheSize);
+		synchronized (keyIndexes) {
+			keyIndexes.clear();
+		}
+	}
+
 	public KeySource getKeySource() {
 		return keySource;
 	}
@@ -133,6 +367,40 @@ public class AuthenticatorClient {
 	public AuthenticatorResponse authenticate(String principal) {
 		return authenticate(principal, randomGenerator.bytes(128));
 	}
+
+	/**
+	 * Asynchronous version of {@link #authenticate(String)}. No thread is blocked
+	 * while waiting for the user to authorize the request, provided the
+	 * {@link KeySource} and {@link SignatureGenerator} support non-blocking I/O.
+	 * 
+	 * @param principal principal
+	 * @return future response
+	 */
+	public CompletableFuture<AuthenticatorResponse> authenticateAsync(String principal) {
+		return authenticateAsync(principal, randomGenerator.bytes(128));
+	}
+
+	/**
+	 * Authenticate many users, with up to
+	 * {@link BulkAuthenticationOptions#getParallelism()} of them looking up keys
+	 * or waiting to approve at once. Each result is passed to the consumer as
+	 * soon as that user approves, denies or fails, one at a time but in no
+	 * particular order. Principals are only taken from the collection as places
+	 * become free, so it may be a lazy view over a large batch.
+	 * <p>
+	 * The returned future completes once every user has a result. Cancelling it,
+	 * or the consumer or the collection's iterator throwing an exception, stops
+	 * any more users from being started, and no further results are delivered.
+	 *
+	 * @param principals principals to authenticate
+	 * @param options    parallelism and timeout
+	 * @param results    receives the result for each user
+	 * @return future completed when all users are done
+	 */
+	public CompletableFuture<Void> authenticateAll(Collection<String> principals, BulkAuthenticationOptions options,
+			Consumer<BulkAuthenticationResult> results) {
+		return new BulkAuthentication(this, principals.iterator(), options, results).start();
+	}
 	
 	public Iterable<String> getAuthorizedKeys(String principal) {
 		return keySource.listKeys(this, principal);
@@ -141,7 +409,37 @@ public class AuthenticatorClient {
 	public Collection<PublicKey> getUserKeys(String principal) {
 
 		List<PublicKey> publicKeys = new ArrayList<>();
-		for (var key : keySource.listKeys(this, principal)) {
+		for (var key : getDecodedUserKeys(principal)) {
+			publicKeys.add(key.getKey());
+		}
+		return publicKeys;
+	}
+
+	private KeyIndex getKeyIndex(String principal) {
+		var source = new ArrayList<String>();
+		keySource.listKeys(this, principal).forEach(source::add);
+		var algorithms = supportedAlgorithms == null ? null : List.copyOf(supportedAlgorithms);
+		KeyIndex index;
+		synchronized (keyIndexes) {
+			index = keyIndexes.get(principal);
+		}
+		if (index == null || !index.source.equals(source) || !Objects.equals(index.algorithms, algorithms)) {
+			index = new KeyIndex(source, algorithms, decodeKeys(source));
+			synchronized (keyIndexes) {
+				keyIndexes.put(principal, index);
+			}
+		}
+		return index;
+	}
+
+	private List<DecodedKey> getDecodedUserKeys(String principal) {
+		return getKeyIndex(principal).keys;
+	}
+
+	private List<DecodedKey> decodeKeys(Iterable<String> keys) {
+
+		List<DecodedKey> publicKeys = new ArrayList<>();
+		for (var key : keys) {
 			try {
 				if (debug) {
 					log.info(String.format("Parsing key %s", key));
@@ -150,16 +448,15 @@ public class AuthenticatorClient {
 				var pub = decodeKey(key);
 
 				if (debug) {
-					log.info(String.format("Decoded %s public key", pub.getAlgorithm()));
+					log.info(String.format("Decoded %s public key", pub.getKey().getAlgorithm()));
 				}
 
-				var algo = getAlgorithm(pub);
-				if (supportedAlgorithms == null || supportedAlgorithms.contains(algo)) {
+				if (supportedAlgorithms == null || supportedAlgorithms.contains(pub.getAlgorithm())) {
 					publicKeys.add(pub);
 				} else {
 					if (debug) {
-						log.info(
-								String.format("Skipping %s public key, not an enabled algorithm.", pub.getAlgorithm()));
+						log.info(String.format("Skipping %s public key, not an enabled algorithm.",
+								pub.getKey().getAlgorithm()));
 					}
 				}
 
@@ -172,9 +469,89 @@ public class AuthenticatorClient {
 	}
 
 	public AuthenticatorResponse authenticate(String principal, byte[] payload) {
-		for (var key : keySource.listKeys(this, principal)) {
+		var event = new AuthenticateEvent();
+		event.begin();
+		AuthenticatorResponse response = null;
+		try {
+			response = doAuthenticate(principal, payload);
+			return response;
+		} finally {
+			commit(event, principal, response);
+		}
+	}
+
+	private AuthenticatorResponse doAuthenticate(String principal, byte[] payload) {
+		var started = startTiming();
+		Iterator<String> keys;
+		try {
+			keys = keySource.listKeys(this, principal).iterator();
+		} catch (RuntimeException e) {
+			record(Phase.KEY_FETCH, null, Outcome.FAILURE, started);
+			throw e;
+		}
+		record(Phase.KEY_FETCH, null, Outcome.SUCCESS, started);
+		try {
+			while (keys.hasNext()) {
+				try {
+					return authenticate(principal, payload, keys.next());
+				} catch (NoSuchAlgorithmException | InvalidKeySpecException | IOException e) {
+					log.error(e.getMessage());
+					continue;
+				} catch (IllegalArgumentException e) {
+					if (debug) {
+						log.info("Skipping disabled algorithm.");
+					}
+				}
+			}
+		} finally {
+			closeKeys(keys);
+		}
+		throw new IllegalArgumentException(String.format("No suitable key found for %s", principal));
+	}
+
+	/**
+	 * A {@link KeySource} may stream keys as they arrive, in which case the
+	 * iterator should be closed if we stop reading early.
+	 */
+	private void closeKeys(Iterator<String> keys) {
+		if (keys instanceof AutoCloseable) {
+			try {
+				((AutoCloseable) keys).close();
+			} catch (Exception e) {
+				log.error("Failed to close keys.", e);
+			}
+		}
+	}
+
+	public CompletableFuture<AuthenticatorResponse> authenticateAsync(String principal, byte[] payload) {
+		var event = new AuthenticateEvent();
+		event.begin();
+		var started = startTiming();
+		return keySource.listKeysAsync(this, principal)
+				.whenComplete((keys, ex) -> record(Phase.KEY_FETCH, null,
+						ex == null ? Outcome.SUCCESS : Outcome.FAILURE, started))
+				.thenCompose(keys -> authenticateAsync(principal, payload, keys.iterator()))
+				.whenComplete((response, ex) -> commit(event, principal, response));
+	}
+
+	private static void commit(AuthenticateEvent event, String principal, AuthenticatorResponse response) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.principalHash = AuthenticatorEvent.hash(principal);
+			if (response != null) {
+				event.algorithm = response.getAlgorithm();
+				event.success = true;
+			}
+			event.commit();
+		}
+	}
+
+	private CompletableFuture<AuthenticatorResponse> authenticateAsync(String principal, byte[] payload,
+			Iterator<String> keys) {
+		while (keys.hasNext()) {
+			DecodedKey pub;
 			try {
-				return authenticate(principal, payload, key);
+				pub = decodeSupportedKey(keys.next());
 			} catch (NoSuchAlgorithmException | InvalidKeySpecException | IOException e) {
 				log.error(e.getMessage());
 				continue;
@@ -182,22 +559,42 @@ public class AuthenticatorClient {
 				if (debug) {
 					log.info("Skipping disabled algorithm.");
 				}
+				continue;
 			}
+
+			return signPayloadAsync(principal, pub, replaceVariables(promptText, principal), authorizeText, payload)
+					.handle((res, ex) -> {
+						if (ex == null) {
+							return CompletableFuture.completedFuture(res);
+						}
+						var cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+						if (cause instanceof IOException) {
+							log.error(cause.getMessage());
+							return authenticateAsync(principal, payload, keys);
+						}
+						return CompletableFuture.<AuthenticatorResponse>failedFuture(cause);
+					}).thenCompose(f -> f);
 		}
-		throw new IllegalArgumentException(String.format("No suitable key found for %s", principal));
+		return CompletableFuture.failedFuture(
+				new IllegalArgumentException(String.format("No suitable key found for %s", principal)));
 	}
 
 	private AuthenticatorResponse authenticate(String principal, byte[] payload, String key)
 			throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+		var pub = decodeSupportedKey(key);
+		return signPayload(principal, pub, replaceVariables(promptText, principal), authorizeText, payload);
+	}
+
+	private DecodedKey decodeSupportedKey(String key)
+			throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
 		var pub = decodeKey(key);
 
 		if (debug) {
-			log.info(String.format("Decoded %s public key", pub.getAlgorithm()));
+			log.info(String.format("Decoded %s public key", pub.getKey().getAlgorithm()));
 		}
 
-		var algo = getAlgorithm(pub);
-		if (supportedAlgorithms == null || supportedAlgorithms.contains(algo)) {
-			return signPayload(principal, pub, replaceVariables(promptText, principal), authorizeText, payload);
+		if (supportedAlgorithms == null || supportedAlgorithms.contains(pub.getAlgorithm())) {
+			return pub;
 		} else {
 			throw new IllegalArgumentException();
 		}
@@ -208,53 +605,92 @@ public class AuthenticatorClient {
 				keySource.getHostname());
 	}
 
-	private AuthenticatorResponse signPayload(String principal, PublicKey key, String text, String buttonText,
-			byte[] payload) throws IOException {
+	private AuthenticatorResponse signPayload(String principal, DecodedKey decodedKey, String text,
+			String buttonText, byte[] payload) throws IOException {
 
-		var fingerprint = generateFingerprint(key);
+		var key = decodedKey.getKey();
+		var fingerprint = decodedKey.getFingerprint();
 
 		if (debug) {
 			log.info(String.format("Key fingerprint is %s", fingerprint));
 		}
 
 		var encodedPayload = Base64.getUrlEncoder().encodeToString(payload);
-		int flags = 0;
-		if (key instanceof RSAPublicKey) {
-			/**
-			 * Tell the server we want a RSAWithSHA512 signature
-			 */
-			flags = 4;
+		int flags = getFlags(key);
+
+		var started = startTiming();
+		byte[] sig;
+		try {
+			sig = signatureGenerator.requestSignature(this, principal, fingerprint, text, buttonText, encodedPayload,
+					flags);
+		} catch (IOException | RuntimeException e) {
+			record(Phase.SIGNATURE_REQUEST, decodedKey.getAlgorithm(), Outcome.FAILURE, started);
+			throw e;
 		}
+		record(Phase.SIGNATURE_REQUEST, decodedKey.getAlgorithm(), Outcome.SUCCESS, started);
+		return createResponse(decodedKey, payload, sig, flags);
+	}
+
+	private CompletableFuture<AuthenticatorResponse> signPayloadAsync(String principal, DecodedKey decodedKey,
+			String text, String buttonText, byte[] payload) {
+
+		var key = decodedKey.getKey();
+		var fingerprint = decodedKey.getFingerprint();
 
-		var sig = signatureGenerator.requestSignature(this, principal, fingerprint, text, buttonText, encodedPayload,
-				flags);
+		if (debug) {
+			log.info(String.format("Key fingerprint is %s", fingerprint));
+		}
+
+		var encodedPayload = Base64.getUrlEncoder().encodeToString(payload);
+		int flags = getFlags(key);
+
+		var started = startTiming();
+		return signatureGenerator
+				.requestSignatureAsync(this, principal, fingerprint, text, buttonText, encodedPayload, flags)
+				.whenComplete((sig, ex) -> record(Phase.SIGNATURE_REQUEST, decodedKey.getAlgorithm(),
+						ex == null ? Outcome.SUCCESS : Outcome.FAILURE, started))
+				.thenApply(sig -> createResponse(decodedKey, payload, sig, flags));
+	}
+
+	private AuthenticatorResponse createResponse(DecodedKey key, byte[] payload, byte[] sig, int flags) {
 		if (debug) {
 			log.info(String.format("Request signature is %s", Base64.getEncoder().encodeToString(sig)));
 		}
 
-		return new AuthenticatorResponse(key, payload, sig, flags);
+		return new AuthenticatorResponse(key.getKey(), key.getAlgorithm(), payload, sig, flags, metrics);
 	}
 
-	private String generateFingerprint(PublicKey key) throws IOException {
+	private long startTiming() {
+		return metrics == Metrics.NONE ? 0 : System.nanoTime();
+	}
 
-		try {
-			var md = MessageDigest.getInstance("SHA-256");
-			md.update(encodeKey(key));
-			var digest = md.digest();
-			var buf = new StringBuffer();
-			buf.append("SHA256");
-			buf.append(":");
-			buf.append(Base64.getEncoder().encodeToString(digest));
-			while (buf.charAt(buf.length() - 1) == '=') {
-				buf.delete(buf.length() - 1, buf.length());
-			}
+	private void record(Phase phase, String algorithm, Outcome outcome, long started) {
+		var m = metrics;
+		if (m != Metrics.NONE && started != 0) {
+			m.record(phase, algorithm, outcome, System.nanoTime() - started);
+		}
+	}
 
-			return buf.toString();
-		} catch (NoSuchAlgorithmException e) {
-			throw new IOException(e.getMessage(), e);
+	String generateFingerprint(PublicKey key) throws IOException {
+
+		try (var writer = ByteBufferWriter.acquire(512)) {
+			writeKey(writer, key);
+			var md = SHA256.get();
+			writer.digest(md);
+			return "SHA256:" + Base64.getEncoder().withoutPadding().encodeToString(md.digest());
 		}
 	}
 
+	/**
+	 * Get the fingerprint of an SSH key blob, in the same form as
+	 * {@link #generateFingerprint(PublicKey)}.
+	 */
+	static String fingerprint(byte[] blob) {
+		var md = SHA256.get();
+		md.reset();
+		return "SHA256:" + Base64.getEncoder().withoutPadding().encodeToString(md.digest(blob));
+	}
+
 	private String getAlgorithm(PublicKey key) throws IOException {
 		switch (key.getAlgorithm()) {
 		case "RSA":
@@ -267,42 +703,79 @@ public class AuthenticatorClient {
 		}
 	}
 
-	private byte[] encodeKey(PublicKey key) throws IOException {
-
-		try (var writer = new ByteArrayWriter()) {
-			writer.writeString(getAlgorithm(key));
+	byte[] encodeKey(PublicKey key) throws IOException {
+		try (var writer = ByteBufferWriter.acquire(512)) {
+			writeKey(writer, key);
+			return writer.toByteArray();
+		}
+	}
 
-			switch (key.getAlgorithm()) {
-			case "RSA":
-				var rsa = (RSAPublicKey) key;
-				writer.writeBigInteger(rsa.getPublicExponent());
-				writer.writeBigInteger(rsa.getModulus());
-				break;
-			case "Ed25519":
-			case "EdDSA":
-				var encoded = key.getEncoded();
-				var seed = Arrays.copyOfRange(encoded, encoded.length - 32, encoded.length);
-				writer.writeBinaryString(seed);
-				break;
-			}
+	private void writeKey(ByteBufferWriter writer, PublicKey key) throws IOException {
+		writer.writeString(getAlgorithm(key));
 
-			return writer.toByteArray();
+		switch (key.getAlgorithm()) {
+		case "RSA":
+			var rsa = (RSAPublicKey) key;
+			writer.writeBigInteger(rsa.getPublicExponent());
+			writer.writeBigInteger(rsa.getModulus());
+			break;
+		case "Ed25519":
+		case "EdDSA":
+			var encoded = key.getEncoded();
+			writer.writeBinaryString(ByteBuffer.wrap(encoded, encoded.length - 32, 32));
+			break;
 		}
 	}
 
-	private PublicKey decodeKey(String key) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+	DecodedKey decodeKey(String key) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
 
 		int idx = key.indexOf(' ');
-		@SuppressWarnings("unused")
 		var algorithm = key.substring(0, idx);
 		int idx2 = key.indexOf(' ', idx + 1);
-		var base64 = key.substring(idx + 1, idx2);
-		@SuppressWarnings("unused")
-		var comments = key.substring(idx2 + 1);
+		var base64 = idx2 == -1 ? key.substring(idx + 1) : key.substring(idx + 1, idx2);
 
-		var data = Base64.getDecoder().decode(base64);
+		var decoded = keyCache.get(base64);
+		if (decoded == null) {
+			var event = new KeyDecodeEvent();
+			event.begin();
+			String fingerprint = null;
+			try {
+				var started = startTiming();
+				PublicKey pub;
+				try {
+					pub = decodeKeyBlob(Base64.getDecoder().decode(base64));
+				} catch (IOException | NoSuchAlgorithmException | InvalidKeySpecException | RuntimeException e) {
+					record(Phase.KEY_DECODE, algorithm, Outcome.FAILURE, started);
+					throw e;
+				}
+				record(Phase.KEY_DECODE, algorithm, Outcome.SUCCESS, started);
+
+				started = startTiming();
+				try {
+					fingerprint = generateFingerprint(pub);
+				} catch (IOException | RuntimeException e) {
+					record(Phase.FINGERPRINT, algorithm, Outcome.FAILURE, started);
+					throw e;
+				}
+				record(Phase.FINGERPRINT, algorithm, Outcome.SUCCESS, started);
+
+				decoded = new DecodedKey(pub, getAlgorithm(pub), fingerprint);
+				keyCache.put(base64, decoded);
+			} finally {
+				event.end();
+				if (event.shouldCommit()) {
+					event.algorithm = algorithm;
+					event.fingerprint = fingerprint;
+					event.commit();
+				}
+			}
+		}
+		return decoded;
+	}
 
-		var reader = new ByteArrayReader(data);
+	private PublicKey decodeKeyBlob(byte[] data) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+
+		var reader = new ByteBufferReader(data);
 		var algorithm2 = reader.readString();
 
 		switch (algorithm2) {
@@ -315,7 +788,7 @@ public class AuthenticatorClient {
 		}
 	}
 
-	private PublicKey decodeEd25519(ByteArrayReader reader)
+	private PublicKey decodeEd25519(ByteBufferReader reader)
 			throws NoSuchAlgorithmException, InvalidKeySpecException, IOException {
 
 		KeyFactory keyFactory;
@@ -325,17 +798,17 @@ public class AuthenticatorClient {
 			keyFactory = KeyFactory.getInstance("EdDSA");
 		}
 
-		var pk = reader.readBinaryString();
+		var pk = reader.readBinaryStringBuffer();
 
-		var encoded = new byte[ED25519_ASN_HEADER.length + pk.length];
+		var encoded = new byte[ED25519_ASN_HEADER.length + pk.remaining()];
 		System.arraycopy(ED25519_ASN_HEADER, 0, encoded, 0, ED25519_ASN_HEADER.length);
-		System.arraycopy(pk, 0, encoded, ED25519_ASN_HEADER.length, pk.length);
+		pk.get(encoded, ED25519_ASN_HEADER.length, pk.remaining());
 		var x509KeySpec = new X509EncodedKeySpec(encoded);
 		return keyFactory.generatePublic(x509KeySpec);
 
 	}
 
-	private PublicKey decodeRSA(ByteArrayReader reader)
+	private PublicKey decodeRSA(ByteBufferReader reader)
 			throws NoSuchAlgorithmException, InvalidKeySpecException, IOException {
 		var e = reader.readBigInteger();
 		var n = reader.readBigInteger();
@@ -347,21 +820,37 @@ public class AuthenticatorClient {
 	}
 
 	public PublicKey getUserKey(String username, String fingerprint) throws IOException {
-		for (var key : getUserKeys(username)) {
-			var thisFingerprint = generateFingerprint(key);
-			if (thisFingerprint.equals(fingerprint)) {
-				return key;
+		/* A source backed by a store may find the key without listing and decoding all of them */
+		var stored = keySource.getKey(this, username, fingerprint);
+		if (stored != null) {
+			try {
+				var decoded = decodeKey(stored);
+				if (decoded.getFingerprint().equals(fingerprint)
+						&& (supportedAlgorithms == null || supportedAlgorithms.contains(decoded.getAlgorithm()))) {
+					return decoded.getKey();
+				}
+			} catch (NoSuchAlgorithmException | InvalidKeySpecException | IOException e) {
+				log.error(e.getMessage());
 			}
 		}
+		var key = getKeyIndex(username).byFingerprint.get(fingerprint);
+		if (key != null) {
+			return key.getKey();
+		}
 		throw new IllegalArgumentException(String.format("No suitable key found for fingerprint %s", fingerprint));
 	}
 
 	public PublicKey getDefaultKey(String email) throws IOException {
+		var key = getDefaultDecodedKey(email);
+		return key == null ? null : key.getKey();
+	}
+
+	private DecodedKey getDefaultDecodedKey(String email) {
 
-		var keys = getUserKeys(email);
-		PublicKey selected = null;
+		var keys = getDecodedUserKeys(email);
+		DecodedKey selected = null;
 		for (var key : keys) {
-			if (!key.getAlgorithm().equals("RSA")) {
+			if (!key.getKey().getAlgorithm().equals("RSA")) {
 				selected = key;
 				break;
 			}
@@ -385,36 +874,71 @@ public class AuthenticatorClient {
 	}
 
 	public AuthenticatorResponse processResponse(byte[] payload, byte[] sig) throws IOException {
+		var started = startTiming();
+		try {
+			var response = doProcessResponse(payload, sig);
+			record(Phase.PROCESS_RESPONSE, response.getAlgorithm(), Outcome.SUCCESS, started);
+			return response;
+		} catch (IOException | RuntimeException e) {
+			record(Phase.PROCESS_RESPONSE, null, Outcome.FAILURE, started);
+			throw e;
+		}
+	}
 
-		try (var reader = new ByteArrayReader(sig)) {
-
-			var success = reader.readBoolean();
-			if (success) {
-				var username = reader.readString();
-				var fingerprint = reader.readString();
-				int flags = (int) reader.readInt();
-				var signature = reader.readBinaryString();
+	private AuthenticatorResponse doProcessResponse(byte[] payload, byte[] sig) throws IOException {
+		var reader = new ByteBufferReader(sig);
+		var success = reader.readBoolean();
+		if (success) {
+			var username = reader.readString();
+			var fingerprint = reader.readString();
+			int flags = (int) reader.readInt();
+			var signature = reader.readBinaryString();
+
+			var key = getUserKey(username, fingerprint);
+			return new AuthenticatorResponse(key, getAlgorithm(key), payload, signature, flags, metrics);
+		} else {
+			throw new IOException(reader.readString());
+		}
+	}
 
-				return new AuthenticatorResponse(getUserKey(username, fingerprint), payload, signature, flags);
-			} else {
-				throw new IOException(reader.readString());
+	/**
+	 * Asynchronously generate a request, on a virtual thread if
+	 * {@link #setVirtualThreads(boolean) enabled}, otherwise the common pool. The
+	 * future completes exceptionally with an {@link IOException} if the request
+	 * could not be generated.
+	 */
+	public CompletableFuture<AuthenticatorRequest> generateRequestAsync(String email, String redirectURL) {
+		var future = new CompletableFuture<AuthenticatorRequest>();
+		runBlocking(this, () -> {
+			try {
+				future.complete(generateRequest(email, redirectURL));
+			} catch (IOException | RuntimeException e) {
+				future.completeExceptionally(e);
 			}
-
-		}
+		}).exceptionally(ex -> {
+			future.completeExceptionally(ex);
+			return null;
+		});
+		return future;
 	}
 
 	public AuthenticatorRequest generateRequest(String email, String redirectURL) throws IOException {
 
-		try (var request = new ByteArrayWriter()) {
+		var key = getDefaultDecodedKey(email);
 
-			var key = getDefaultKey(email);
+		if (Objects.isNull(key)) {
+			throw new IOException(
+					String.format("%s is not registered in the LogonBox Authenticator directory!", email));
+		}
+		var fingerprint = key.getFingerprint();
+		var flags = getFlags(key.getKey());
 
-			if (Objects.isNull(key)) {
-				throw new IOException(
-						String.format("%s is not registered in the LogonBox Authenticator directory!", email));
-			}
-			var fingerprint = generateFingerprint(key);
-			var flags = getFlags(key);
+		var size = ByteBufferWriter.sizeOfString(email) + ByteBufferWriter.sizeOfString(fingerprint)
+				+ ByteBufferWriter.sizeOfString(getRemoteName()) + ByteBufferWriter.sizeOfString(getPromptText())
+				+ ByteBufferWriter.sizeOfString(getAuthorizeText()) + 4 + 4
+				+ ByteBufferWriter.sizeOfString(redirectURL) + 16;
+
+		try (var request = ByteBufferWriter.acquire(size)) {
 
 			request.writeString(email);
 			request.writeString(fingerprint);
@@ -426,10 +950,63 @@ public class AuthenticatorClient {
 			request.writeString(redirectURL);
 			request.write(randomGenerator.bytes(16));
 
-			var encoded = Base64.getUrlEncoder().encodeToString(request.toByteArray());
+			return new AuthenticatorRequest(this, request.toBase64Url());
+		}
+	}
 
-			return new AuthenticatorRequest(this, encoded);
+	/**
+	 * Get the {@link HttpClient} shared by {@link DefaultKeySource} and
+	 * {@link DefaultSignatureGenerator}. It is created on first use, and then
+	 * re-used so that connections to the LogonBox server may be kept alive.
+	 * 
+	 * @return http client
+	 */
+	public HttpClient getHttpClient() {
+		var c = httpClient;
+		if (c == null) {
+			synchronized (this) {
+				if (closed) {
+					throw new IllegalStateException("Client is closed.");
+				}
+				c = httpClient;
+				if (c == null) {
+					var builder = newHttpClientBuilder();
+					if (connectTimeout != null) {
+						builder.connectTimeout(connectTimeout);
+					}
+					if (executor != null) {
+						builder.executor(executor);
+					} else if (virtualThreads) {
+						builder.executor(getBlockingExecutor());
+					}
+					if (httpVersion != null) {
+						builder.version(httpVersion);
+					}
+					httpClient = c = builder.build();
+				}
+			}
 		}
+		return c;
+	}
+
+	/**
+	 * Release the shared {@link HttpClient}. Once closed, no further requests may
+	 * be made to the LogonBox server using this client.
+	 */
+	@Override
+	public void close() {
+		HttpClient c;
+		ExecutorService pool;
+		synchronized (this) {
+			closed = true;
+			c = releaseHttpClient();
+			pool = virtualExecutor;
+			virtualExecutor = null;
+		}
+		if (pool != null) {
+			pool.shutdown();
+		}
+		closeHttpClient(c);
 	}
 
 	protected Builder newHttpClientBuilder() {
@@ -439,4 +1016,70 @@ public class AuthenticatorClient {
 		 */
 		return HttpClient.newBuilder();
 	}
+
+	protected HttpRequest.Builder newHttpRequestBuilder(URI uri) {
+		var builder = HttpRequest.newBuilder(uri);
+		if (requestTimeout != null) {
+			builder.timeout(requestTimeout);
+		}
+		return builder;
+	}
+
+	/**
+	 * Run blocking work asynchronously for a client, on a virtual thread if it
+	 * has them enabled, otherwise the common pool. If the client is closed, or
+	 * the executor will not take the work, the future completes exceptionally
+	 * rather than this throwing.
+	 */
+	static CompletableFuture<Void> runBlocking(AuthenticatorClient client, Runnable task) {
+		try {
+			var executor = client == null ? null : client.getBlockingExecutor();
+			return executor == null ? CompletableFuture.runAsync(task) : CompletableFuture.runAsync(task, executor);
+		} catch (IllegalStateException | RejectedExecutionException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	private synchronized Executor getBlockingExecutor() {
+		if (!virtualThreads) {
+			return null;
+		}
+		if (closed) {
+			throw new IllegalStateException("Client is closed.");
+		}
+		if (virtualExecutor == null) {
+			virtualExecutor = Threads.newVirtualThreadPerTaskExecutor("AuthenticatorClient");
+		}
+		return virtualExecutor;
+	}
+
+	/**
+	 * Close a shared {@link HttpClient} that has been replaced because the
+	 * client was reconfigured. Requests may still be in progress on it, and
+	 * closing waits for them to finish, so this is done on a background thread.
+	 */
+	private void closeLater(HttpClient c) {
+		if (c instanceof AutoCloseable) {
+			var thread = new Thread(() -> closeHttpClient(c), "AuthenticatorClientHttpClose");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void closeHttpClient(HttpClient c) {
+		if (c instanceof AutoCloseable) {
+			/* Java 21 and above can shut down the selector thread and connection pool */
+			try {
+				((AutoCloseable) c).close();
+			} catch (Exception e) {
+				log.error("Failed to close HTTP client.", e);
+			}
+		}
+	}
+
+	private synchronized HttpClient releaseHttpClient() {
+		var c = httpClient;
+		httpClient = null;
+		return c;
+	}
 }
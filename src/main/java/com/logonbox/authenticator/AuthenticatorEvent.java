@@ -0,0 +1,81 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+
+/**
+ * Base of the Java Flight Recorder events emitted by this library. Events are
+ * only committed when they are enabled and last longer than their threshold,
+ * so anything costly to fill in (such as hashing the principal) should be done
+ * after checking {@link #shouldCommit()}.
+ */
+@Category({ "LogonBox", "Authenticator" })
+abstract class AuthenticatorEvent extends Event {
+
+	private final static String HMAC_ALGORITHM = "HmacSHA256";
+
+	/**
+	 * Chosen afresh by each process, so that a hash cannot be matched by hashing
+	 * likely principals, or with hashes recorded by other processes.
+	 */
+	private final static SecretKeySpec KEY = newKey();
+
+	private final static ThreadLocal<Mac> HMAC = ThreadLocal.withInitial(() -> {
+		try {
+			var mac = Mac.getInstance(HMAC_ALGORITHM);
+			mac.init(KEY);
+			return mac;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	});
+
+	/**
+	 * Hash a principal, so that events about the same user in one process may be
+	 * matched up without recording who the user is.
+	 */
+	static String hash(String principal) {
+		if (principal == null) {
+			return null;
+		}
+		var digest = HMAC.get().doFinal(principal.getBytes(StandardCharsets.UTF_8));
+		var b = new StringBuilder(16);
+		for (int i = 0; i < 8; i++) {
+			b.append(String.format("%02x", digest[i]));
+		}
+		return b.toString();
+	}
+
+	private static SecretKeySpec newKey() {
+		var key = new byte[32];
+		new SecureRandom().nextBytes(key);
+		return new SecretKeySpec(key, HMAC_ALGORITHM);
+	}
+}
@@ -33,15 +33,57 @@ public class AuthenticatorResponse {
 	private final byte[] signature;
 	private final PublicKey key;
 	private final int flags;
+	private final String algorithm;
+	private final Metrics metrics;
 	
 	AuthenticatorResponse(PublicKey key, byte[] payload, byte[] signature, int flags) {
+		this(key, null, payload, signature, flags, Metrics.NONE);
+	}
+	
+	AuthenticatorResponse(PublicKey key, String algorithm, byte[] payload, byte[] signature, int flags,
+			Metrics metrics) {
 		this.key = key;
+		this.algorithm = algorithm;
 		this.signature = signature;
 		this.payload = payload;
 		this.flags = flags;
+		this.metrics = metrics;
 	}
 	
 	public boolean verify() throws IOException {
+		var event = new VerifyEvent();
+		var timed = metrics != Metrics.NONE;
+		var started = timed ? System.nanoTime() : 0;
+		event.begin();
+		var verified = false;
+		try {
+			verified = doVerify();
+			return verified;
+		} finally {
+			event.end();
+			if (timed) {
+				metrics.record(Metrics.Phase.VERIFY, algorithm,
+						verified ? Metrics.Outcome.SUCCESS : Metrics.Outcome.FAILURE, System.nanoTime() - started);
+			}
+			if (event.shouldCommit()) {
+				event.algorithm = algorithm;
+				event.verified = verified;
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * Get the SSH algorithm of the key that signed the payload, for example
+	 * <code>ssh-ed25519</code>.
+	 * 
+	 * @return algorithm, or <code>null</code> if not known
+	 */
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	private boolean doVerify() throws IOException {
 		
 		switch(key.getAlgorithm()) {
 		case "RSA":
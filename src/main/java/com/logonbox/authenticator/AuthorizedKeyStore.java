@@ -0,0 +1,104 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Collections;
+
+/**
+ * Stores the authorized keys for principals so that they survive a restart,
+ * and may be used if the LogonBox server is unavailable. Used with
+ * {@link CachingKeySource#setStore(AuthorizedKeyStore)}.
+ */
+public interface AuthorizedKeyStore extends Closeable {
+
+	/**
+	 * Get the stored keys for a principal.
+	 *
+	 * @param principal principal
+	 * @return stored keys or <code>null</code> if none are stored
+	 */
+	StoredKeys get(String principal);
+
+	/**
+	 * Get the stored key for a principal that has the given fingerprint,
+	 * without creating any of their other keys. The default implementation
+	 * gets all of the principal's keys and fingerprints each in turn.
+	 *
+	 * @param principal   principal
+	 * @param fingerprint fingerprint in the form <code>SHA256:base64</code>
+	 * @return the matching key, if any, along with when the principal's keys
+	 *         were fetched, or <code>null</code> if no keys are stored for the
+	 *         principal
+	 */
+	default StoredKeys getKey(String principal, String fingerprint) {
+		var stored = get(principal);
+		if (stored == null) {
+			return null;
+		}
+		for (var key : stored.getKeys()) {
+			var parts = key.split(" ", 3);
+			if (parts.length >= 2) {
+				try {
+					if (fingerprint.equals(AuthenticatorClient.fingerprint(Base64.getDecoder().decode(parts[1])))) {
+						return new StoredKeys(Collections.singletonList(key), stored.getFetched());
+					}
+				} catch (IllegalArgumentException iae) {
+				}
+			}
+		}
+		return new StoredKeys(Collections.emptyList(), stored.getFetched());
+	}
+
+	/**
+	 * Store the keys for a principal, replacing any already stored.
+	 *
+	 * @param principal principal
+	 * @param keys      keys
+	 * @throws IOException on error
+	 */
+	void put(String principal, StoredKeys keys) throws IOException;
+
+	/**
+	 * Remove any stored keys for a principal.
+	 *
+	 * @param principal principal
+	 * @throws IOException on error
+	 */
+	void remove(String principal) throws IOException;
+
+	/**
+	 * Remove all stored keys.
+	 *
+	 * @throws IOException on error
+	 */
+	void clear() throws IOException;
+
+	/**
+	 * Get the number of principals with stored keys.
+	 *
+	 * @return size
+	 */
+	int size();
+}
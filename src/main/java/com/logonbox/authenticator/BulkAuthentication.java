@@ -0,0 +1,159 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Authenticates users from an iterator, keeping up to a number of them in
+ * progress at once and taking the next principal only when a place is free,
+ * so a large batch is never held in memory.
+ */
+final class BulkAuthentication {
+
+	private final AuthenticatorClient client;
+	private final Iterator<String> principals;
+	private final int parallelism;
+	private final long timeout;
+	private final Consumer<BulkAuthenticationResult> results;
+	private final CompletableFuture<Void> done = new CompletableFuture<>();
+	private final Object deliverLock = new Object();
+
+	private int running;
+	private boolean draining;
+	private boolean again;
+
+	BulkAuthentication(AuthenticatorClient client, Iterator<String> principals, BulkAuthenticationOptions options,
+			Consumer<BulkAuthenticationResult> results) {
+		this.client = client;
+		this.principals = principals;
+		this.parallelism = options.getParallelism();
+		this.timeout = options.getTimeout() == null ? 0 : options.getTimeout().toNanos();
+		this.results = results;
+	}
+
+	CompletableFuture<Void> start() {
+		drain();
+		return done;
+	}
+
+	/**
+	 * Start as many users as there are free places. Completions may call this
+	 * from any thread, including from inside {@link #start(String)} when a
+	 * future is already complete, so only one caller loops at a time and the
+	 * others just ask it to go round again. If the iterator fails, the whole
+	 * batch fails with its exception.
+	 */
+	private void drain() {
+		synchronized (this) {
+			if (draining) {
+				again = true;
+				return;
+			}
+			draining = true;
+		}
+		var finished = false;
+		var looping = true;
+		try {
+			while (true) {
+				String principal;
+				synchronized (this) {
+					if (!done.isDone() && running < parallelism && principals.hasNext()) {
+						principal = principals.next();
+						running++;
+					} else if (again) {
+						again = false;
+						continue;
+					} else {
+						finished = running == 0 && !principals.hasNext();
+						draining = looping = false;
+						break;
+					}
+				}
+				start(principal);
+			}
+		} catch (RuntimeException e) {
+			done.completeExceptionally(e);
+		} finally {
+			if (looping) {
+				synchronized (this) {
+					draining = false;
+				}
+			}
+		}
+		if (finished) {
+			done.complete(null);
+		}
+	}
+
+	private void start(String principal) {
+		CompletableFuture<AuthenticatorResponse> future;
+		try {
+			future = client.authenticateAsync(principal);
+		} catch (RuntimeException e) {
+			future = CompletableFuture.failedFuture(e);
+		}
+		var reported = new AtomicBoolean();
+		if (timeout > 0) {
+			/*
+			 * Report the timeout on time, but keep the place until the request really
+			 * finishes, so no more than the parallelism are ever outstanding
+			 */
+			future.copy().orTimeout(timeout, TimeUnit.NANOSECONDS).whenComplete((response, ex) -> {
+				if (unwrap(ex) instanceof TimeoutException && reported.compareAndSet(false, true)) {
+					deliver(new BulkAuthenticationResult(principal, null, unwrap(ex)));
+				}
+			});
+		}
+		future.whenComplete((response, ex) -> {
+			if (reported.compareAndSet(false, true)) {
+				deliver(new BulkAuthenticationResult(principal, ex == null ? response : null, unwrap(ex)));
+			}
+			synchronized (this) {
+				running--;
+			}
+			drain();
+		});
+	}
+
+	private void deliver(BulkAuthenticationResult result) {
+		synchronized (deliverLock) {
+			if (done.isDone()) {
+				return;
+			}
+			try {
+				results.accept(result);
+			} catch (RuntimeException e) {
+				done.completeExceptionally(e);
+			}
+		}
+	}
+
+	private static Throwable unwrap(Throwable ex) {
+		return ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+	}
+}
@@ -0,0 +1,75 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.time.Duration;
+
+/**
+ * Settings for
+ * {@link AuthenticatorClient#authenticateAll(java.util.Collection, BulkAuthenticationOptions, java.util.function.Consumer)}.
+ */
+public class BulkAuthenticationOptions {
+
+	public final static int DEFAULT_PARALLELISM = 16;
+
+	private int parallelism = DEFAULT_PARALLELISM;
+	private Duration timeout;
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Set how many users may be authenticating at once. Each is waiting on a key
+	 * lookup or for the user to approve on their device, so this bounds the load
+	 * on the LogonBox server rather than any local resource.
+	 *
+	 * @param parallelism parallelism
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1.");
+		}
+		this.parallelism = parallelism;
+	}
+
+	public Duration getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Set how long to wait for each user, from looking up their keys to them
+	 * approving. Users that take longer are reported with a
+	 * {@link java.util.concurrent.TimeoutException} as soon as the timeout
+	 * passes. Their place is only given to the next user once the request to the
+	 * server has finished, which is bounded by
+	 * {@link AuthenticatorClient#setRequestTimeout(Duration)}, so that no more
+	 * than the {@link #setParallelism(int) parallelism} are ever outstanding.
+	 *
+	 * @param timeout timeout or <code>null</code> to wait as long as it takes
+	 */
+	public void setTimeout(Duration timeout) {
+		if (timeout != null && (timeout.isNegative() || timeout.isZero())) {
+			throw new IllegalArgumentException("Timeout must be positive.");
+		}
+		this.timeout = timeout;
+	}
+}
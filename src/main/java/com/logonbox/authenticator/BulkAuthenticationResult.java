@@ -0,0 +1,74 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * The outcome of authenticating one user with
+ * {@link AuthenticatorClient#authenticateAll(java.util.Collection, BulkAuthenticationOptions, java.util.function.Consumer)}.
+ * Either there is a response, which should still be
+ * {@link AuthenticatorResponse#verify() verified}, or an error explaining why
+ * the user could not be authenticated.
+ */
+public final class BulkAuthenticationResult {
+
+	private final String principal;
+	private final AuthenticatorResponse response;
+	private final Throwable error;
+
+	BulkAuthenticationResult(String principal, AuthenticatorResponse response, Throwable error) {
+		this.principal = principal;
+		this.response = response;
+		this.error = error;
+	}
+
+	public String getPrincipal() {
+		return principal;
+	}
+
+	/**
+	 * Get the response if the user signed the payload.
+	 *
+	 * @return response or <code>null</code> if there was an error
+	 */
+	public AuthenticatorResponse getResponse() {
+		return response;
+	}
+
+	/**
+	 * Get why the user could not be authenticated, e.g. an {@link java.io.IOException}
+	 * if they denied the request, an {@link IllegalArgumentException} if they
+	 * have no suitable key, or a {@link java.util.concurrent.TimeoutException}.
+	 *
+	 * @return error or <code>null</code> if there is a response
+	 */
+	public Throwable getError() {
+		return error;
+	}
+
+	public boolean isSuccess() {
+		return error == null;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("BulkAuthenticationResult [principal=%s, success=%s]", principal, isSuccess());
+	}
+}
@@ -34,14 +34,10 @@ public class ByteArrayWriter extends ByteArrayOutputStream {
 	}
 
 	public void writeInt(long i) throws IOException {
-		var raw = new byte[4];
-
-		raw[0] = (byte) (i >> 24);
-		raw[1] = (byte) (i >> 16);
-		raw[2] = (byte) (i >> 8);
-		raw[3] = (byte) (i);
-
-		write(raw);
+		write((int) (i >> 24));
+		write((int) (i >> 16));
+		write((int) (i >> 8));
+		write((int) i);
 	}
 
 	public void writeString(String str) throws IOException {
@@ -54,7 +50,7 @@ public class ByteArrayWriter extends ByteArrayOutputStream {
 	      writeInt(0);
 	    }
 	    else {
-	      var tmp = str.getBytes();
+	      var tmp = str.getBytes(charset);
 
 	      writeInt(tmp.length);
 	      write(tmp);
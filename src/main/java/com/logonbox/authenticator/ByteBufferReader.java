@@ -0,0 +1,134 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the SSH wire format directly from a {@link ByteBuffer}, which may be
+ * heap or direct. Unlike {@link ByteArrayReader}, binary strings may be read as
+ * views of the underlying buffer rather than copies, and strings are decoded
+ * straight from the buffer.
+ */
+class ByteBufferReader {
+
+	private final ByteBuffer buffer;
+	private int position;
+
+	ByteBufferReader(byte[] data) {
+		this(ByteBuffer.wrap(data));
+	}
+
+	ByteBufferReader(ByteBuffer buffer) {
+		this.buffer = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+	}
+
+	public int available() {
+		return buffer.limit() - position;
+	}
+
+	private void checkLength(long len) throws IOException {
+		if (len < 0 || len > available()) {
+			throw new IOException(String.format("Unexpected length of %d bytes exceeds available data of %d bytes", len,
+					available()));
+		}
+	}
+
+	public long readInt() throws IOException {
+		checkLength(4);
+		var value = buffer.getInt(position) & 0xFFFFFFFFL;
+		position += 4;
+		return value;
+	}
+
+	public long readUINT64() throws IOException {
+		checkLength(8);
+		var value = buffer.getLong(position);
+		position += 8;
+		return value;
+	}
+
+	public String readString() throws IOException {
+		int len = (int) readInt();
+		checkLength(len);
+		String str;
+		if (buffer.hasArray()) {
+			str = new String(buffer.array(), buffer.arrayOffset() + position, len, StandardCharsets.UTF_8);
+		} else {
+			str = StandardCharsets.UTF_8.decode(slice(len)).toString();
+		}
+		position += len;
+		return str;
+	}
+
+	public BigInteger readBigInteger() throws IOException {
+		int len = (int) readInt();
+		checkLength(len);
+		BigInteger bi;
+		if (buffer.hasArray()) {
+			bi = new BigInteger(buffer.array(), buffer.arrayOffset() + position, len);
+		} else {
+			var tmp = new byte[len];
+			slice(len).get(tmp);
+			bi = new BigInteger(tmp);
+		}
+		position += len;
+		return bi;
+	}
+
+	/**
+	 * Read a binary string as a read-only view of the underlying buffer. No data
+	 * is copied.
+	 *
+	 * @return binary string
+	 * @throws IOException if there is not enough data
+	 */
+	public ByteBuffer readBinaryStringBuffer() throws IOException {
+		int len = (int) readInt();
+		checkLength(len);
+		var slice = slice(len);
+		position += len;
+		return slice;
+	}
+
+	public byte[] readBinaryString() throws IOException {
+		var slice = readBinaryStringBuffer();
+		var tmp = new byte[slice.remaining()];
+		slice.get(tmp);
+		return tmp;
+	}
+
+	public boolean readBoolean() throws IOException {
+		checkLength(1);
+		return buffer.get(position++) == 1;
+	}
+
+	private ByteBuffer slice(int len) {
+		var dup = buffer.duplicate();
+		dup.position(position).limit(position + len);
+		return dup.slice().asReadOnlyBuffer();
+	}
+}
@@ -0,0 +1,229 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Writes the SSH wire format into a growable {@link ByteBuffer} that is re-used
+ * by the same thread, so encoding does not need to allocate. Strings are
+ * always UTF-8. The result can be passed straight to a {@link MessageDigest}
+ * or Base64 encoded, without first copying it into an array.
+ * <p>
+ * Obtain an instance with {@link #acquire(int)} and close it when done.
+ */
+class ByteBufferWriter implements AutoCloseable {
+
+	private final static int MAX_POOLED_CAPACITY = 64 * 1024;
+	private final static ThreadLocal<ByteBufferWriter> POOL = ThreadLocal.withInitial(() -> new ByteBufferWriter(true));
+
+	private final boolean pooled;
+	private ByteBuffer buffer = ByteBuffer.allocate(1024);
+	private boolean inUse;
+
+	private ByteBufferWriter(boolean pooled) {
+		this.pooled = pooled;
+	}
+
+	/**
+	 * Get this threads writer, ready to write at least the given number of bytes.
+	 * If the threads writer is already in use, a new one is returned.
+	 *
+	 * @param size expected size
+	 * @return writer
+	 */
+	static ByteBufferWriter acquire(int size) {
+		var writer = POOL.get();
+		if (writer.inUse) {
+			writer = new ByteBufferWriter(false);
+		}
+		writer.inUse = true;
+		writer.buffer.clear();
+		writer.ensureCapacity(size);
+		return writer;
+	}
+
+	static int sizeOfString(String str) {
+		return 4 + (str == null ? 0 : utf8Length(str));
+	}
+
+	static int sizeOfBinaryString(int len) {
+		return 4 + len;
+	}
+
+	static int sizeOfBigInteger(BigInteger bi) {
+		return 4 + bi.bitLength() / 8 + 1;
+	}
+
+	@Override
+	public void close() {
+		inUse = false;
+		if (pooled && buffer.capacity() > MAX_POOLED_CAPACITY) {
+			buffer = ByteBuffer.allocate(1024);
+		}
+	}
+
+	int size() {
+		return buffer.position();
+	}
+
+	void writeInt(long i) {
+		ensureCapacity(4);
+		buffer.putInt((int) i);
+	}
+
+	void writeUINT64(long l) {
+		ensureCapacity(8);
+		buffer.putLong(l);
+	}
+
+	void writeBoolean(boolean bool) {
+		ensureCapacity(1);
+		buffer.put((byte) (bool ? 1 : 0));
+	}
+
+	void write(byte[] data) {
+		ensureCapacity(data.length);
+		buffer.put(data);
+	}
+
+	void writeBinaryString(byte[] data) {
+		writeInt(data.length);
+		write(data);
+	}
+
+	void writeBinaryString(ByteBuffer data) {
+		var len = data.remaining();
+		writeInt(len);
+		ensureCapacity(len);
+		buffer.put(data.duplicate());
+	}
+
+	void writeBigInteger(BigInteger bi) {
+		writeBinaryString(bi.toByteArray());
+	}
+
+	void writeString(String str) {
+		if (str == null) {
+			writeInt(0);
+			return;
+		}
+		var len = utf8Length(str);
+		writeInt(len);
+		ensureCapacity(len);
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c < 0x80) {
+				buffer.put((byte) c);
+			} else if (c < 0x800) {
+				buffer.put((byte) (0xc0 | (c >> 6)));
+				buffer.put((byte) (0x80 | (c & 0x3f)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < str.length()
+					&& Character.isLowSurrogate(str.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, str.charAt(++i));
+				buffer.put((byte) (0xf0 | (cp >> 18)));
+				buffer.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+				buffer.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+				buffer.put((byte) (0x80 | (cp & 0x3f)));
+			} else if (Character.isSurrogate(c)) {
+				/* Unpaired surrogate, encoded as '?' as String.getBytes() does */
+				buffer.put((byte) '?');
+			} else {
+				buffer.put((byte) (0xe0 | (c >> 12)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+				buffer.put((byte) (0x80 | (c & 0x3f)));
+			}
+		}
+	}
+
+	/**
+	 * Update a digest with everything written so far.
+	 *
+	 * @param digest digest
+	 */
+	void digest(MessageDigest digest) {
+		digest.update(written());
+	}
+
+	/**
+	 * Encode everything written so far using the URL safe Base64 alphabet.
+	 *
+	 * @return encoded string
+	 */
+	String toBase64Url() {
+		var encoded = Base64.getUrlEncoder().encode(written());
+		return new String(encoded.array(), encoded.arrayOffset(), encoded.remaining(), StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Get a view of everything written so far. It is only valid until the writer
+	 * is written to again or closed.
+	 *
+	 * @return buffer
+	 */
+	ByteBuffer toByteBuffer() {
+		return written();
+	}
+
+	byte[] toByteArray() {
+		var data = new byte[buffer.position()];
+		written().get(data);
+		return data;
+	}
+
+	private ByteBuffer written() {
+		return buffer.duplicate().flip();
+	}
+
+	private void ensureCapacity(int len) {
+		if (buffer.remaining() < len) {
+			var newBuffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + len));
+			newBuffer.put(buffer.flip());
+			buffer = newBuffer;
+		}
+	}
+
+	private static int utf8Length(String str) {
+		int len = 0;
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c < 0x80) {
+				len++;
+			} else if (c < 0x800) {
+				len += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < str.length()
+					&& Character.isLowSurrogate(str.charAt(i + 1))) {
+				len += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				len++;
+			} else {
+				len += 3;
+			}
+		}
+		return len;
+	}
+}
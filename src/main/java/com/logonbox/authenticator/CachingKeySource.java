@@ -0,0 +1,795 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A {@link KeySource} that wraps another {@link KeySource}, and caches the keys
+ * for each principal for a period of time. The number of principals cached is
+ * bounded, with the least recently used being evicted first.
+ * <p>
+ * While cached, the same keys instance is returned for a principal. This is
+ * also the case when an expired entry is fetched again and the keys have not
+ * changed.
+ * <p>
+ * Optionally, entries may be refreshed in the background shortly before they
+ * expire (see {@link #setRefreshAhead(Duration)}), and expired entries may
+ * continue to be served for a grace period while a refresh is in progress
+ * (see {@link #setStaleGracePeriod(Duration)}). Background refreshes run with
+ * limited concurrency, the most frequently used principals first. When either
+ * is used, the source should be {@link #close() closed} when no longer needed.
+ * <p>
+ * Principals for which the wrapped source returns no keys, or fails, may also
+ * be remembered for a (usually much shorter) time, so that repeated attempts
+ * for unknown users are answered without a request to the server (see
+ * {@link #setNegativeTtl(Duration)}).
+ * <p>
+ * Finally, an {@link AuthorizedKeyStore} may be set to persist keys as they are
+ * fetched (see {@link #setStore(AuthorizedKeyStore)}). Keys in the store are
+ * used to fill the cache after a restart, and as a fallback if the wrapped
+ * source fails.
+ */
+public class CachingKeySource implements KeySource, Closeable {
+
+	public final static Duration DEFAULT_TTL = Duration.ofMinutes(5);
+	public final static int DEFAULT_MAX_ENTRIES = 1000;
+	public final static int DEFAULT_REFRESH_CONCURRENCY = 2;
+	public final static int DEFAULT_MAX_NEGATIVE_ENTRIES = 10000;
+	public final static Duration DEFAULT_STORE_MAX_AGE = Duration.ofDays(1);
+
+	private final static class CacheEntry {
+		private final List<String> keys;
+		private final long fetched;
+		private final AtomicLong accesses;
+		private final AtomicBoolean refreshing = new AtomicBoolean();
+
+		private CacheEntry(List<String> keys, long fetched, AtomicLong accesses) {
+			this.keys = keys;
+			this.fetched = fetched;
+			this.accesses = accesses;
+		}
+	}
+
+	private final static class NegativeEntry {
+		private final RuntimeException error;
+		private final long fetched;
+
+		private NegativeEntry(RuntimeException error, long fetched) {
+			this.error = error;
+			this.fetched = fetched;
+		}
+	}
+
+	private final class RefreshTask implements Runnable, Comparable<RefreshTask> {
+		private final AuthenticatorClient client;
+		private final String principal;
+		private final CacheEntry entry;
+		private final long accesses;
+
+		private RefreshTask(AuthenticatorClient client, String principal, CacheEntry entry) {
+			this.client = client;
+			this.principal = principal;
+			this.entry = entry;
+			this.accesses = entry.accesses.get();
+		}
+
+		@Override
+		public void run() {
+			try {
+				var keys = toList(delegate.revalidateKeys(client, principal, entry.keys));
+				if (keys.equals(entry.keys)) {
+					keys = entry.keys;
+				}
+				boolean replaced;
+				synchronized (cache) {
+					/* Only replace the entry if it was not invalidated or replaced meanwhile */
+					replaced = cache.replace(principal, entry,
+							new CacheEntry(keys, ticker.getAsLong(), entry.accesses));
+				}
+				if (replaced) {
+					persist(principal, keys);
+				}
+				refreshes.increment();
+			} catch (RuntimeException re) {
+				refreshFailures.increment();
+				entry.refreshing.set(false);
+				if (client != null && client.isDebug()) {
+					client.getLog().error(String.format("Failed to refresh keys for %s.", principal), re);
+				}
+			}
+		}
+
+		@Override
+		public int compareTo(RefreshTask o) {
+			return Long.compare(o.accesses, accesses);
+		}
+	}
+
+	private final KeySource delegate;
+	private final long ttl;
+	private final Map<String, CacheEntry> cache;
+	private final Map<String, NegativeEntry> negativeCache;
+	private final LongSupplier ticker;
+	private final LongSupplier clock;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder staleHits = new LongAdder();
+	private final LongAdder refreshes = new LongAdder();
+	private final LongAdder refreshFailures = new LongAdder();
+	private final LongAdder negativeHits = new LongAdder();
+	private final LongAdder storeHits = new LongAdder();
+	private final LongAdder storeFailures = new LongAdder();
+
+	private long refreshAhead;
+	private long staleGracePeriod;
+	private long refreshJitter;
+	private int refreshConcurrency = DEFAULT_REFRESH_CONCURRENCY;
+	private ThreadPoolExecutor refreshExecutor;
+	private boolean closed;
+	private long negativeTtl;
+	private volatile int maxNegativeEntries = DEFAULT_MAX_NEGATIVE_ENTRIES;
+	private AuthorizedKeyStore store;
+	private long storeMaxAge = DEFAULT_STORE_MAX_AGE.toMillis();
+
+	public CachingKeySource(KeySource delegate) {
+		this(delegate, DEFAULT_TTL, DEFAULT_MAX_ENTRIES);
+	}
+
+	public CachingKeySource(KeySource delegate, Duration ttl, int maxEntries) {
+		this(delegate, ttl, maxEntries, System::nanoTime);
+	}
+
+	CachingKeySource(KeySource delegate, Duration ttl, int maxEntries, LongSupplier ticker) {
+		this(delegate, ttl, maxEntries, ticker, System::currentTimeMillis);
+	}
+
+	CachingKeySource(KeySource delegate, Duration ttl, int maxEntries, LongSupplier ticker, LongSupplier clock) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("Maximum entries must be at least 1.");
+		}
+		this.delegate = delegate;
+		this.ttl = ttl.toNanos();
+		this.ticker = ticker;
+		this.clock = clock;
+		this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+		this.negativeCache = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, NegativeEntry> eldest) {
+				return size() > maxNegativeEntries;
+			}
+		};
+	}
+
+	public KeySource getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public String getHostname() {
+		return delegate.getHostname();
+	}
+
+	@Override
+	public int getPort() {
+		return delegate.getPort();
+	}
+
+	@Override
+	public EndpointGroup getEndpoints() {
+		return delegate.getEndpoints();
+	}
+
+	public Duration getRefreshAhead() {
+		return Duration.ofNanos(refreshAhead);
+	}
+
+	/**
+	 * Set how long before expiry an entry that is used should be refreshed in the
+	 * background. The entry continues to be served while the refresh is in
+	 * progress. Zero (the default) disables refresh-ahead.
+	 *
+	 * @param refreshAhead refresh ahead
+	 */
+	public void setRefreshAhead(Duration refreshAhead) {
+		this.refreshAhead = checkNotNegative(refreshAhead, "Refresh ahead");
+	}
+
+	public Duration getStaleGracePeriod() {
+		return Duration.ofNanos(staleGracePeriod);
+	}
+
+	/**
+	 * Set how long after expiry an entry may continue to be served, while it is
+	 * refreshed in the background. This keeps logins working if the server is
+	 * slow or briefly unavailable. Zero (the default) means expired entries are
+	 * never served.
+	 *
+	 * @param staleGracePeriod stale grace period
+	 */
+	public void setStaleGracePeriod(Duration staleGracePeriod) {
+		this.staleGracePeriod = checkNotNegative(staleGracePeriod, "Stale grace period");
+	}
+
+	public Duration getRefreshJitter() {
+		return Duration.ofNanos(refreshJitter);
+	}
+
+	/**
+	 * Set the maximum random delay before a background refresh starts, so that
+	 * entries cached at the same time are not all refreshed at the same time.
+	 *
+	 * @param refreshJitter refresh jitter
+	 */
+	public void setRefreshJitter(Duration refreshJitter) {
+		this.refreshJitter = checkNotNegative(refreshJitter, "Refresh jitter");
+	}
+
+	public int getRefreshConcurrency() {
+		return refreshConcurrency;
+	}
+
+	/**
+	 * Set the maximum number of background refreshes that may be in progress at
+	 * once. Any others wait, with the most frequently used principals being
+	 * refreshed first.
+	 *
+	 * @param refreshConcurrency refresh concurrency
+	 */
+	public synchronized void setRefreshConcurrency(int refreshConcurrency) {
+		if (refreshConcurrency < 1) {
+			throw new IllegalArgumentException("Refresh concurrency must be at least 1.");
+		}
+		this.refreshConcurrency = refreshConcurrency;
+		if (refreshExecutor != null) {
+			if (refreshConcurrency > refreshExecutor.getMaximumPoolSize()) {
+				refreshExecutor.setMaximumPoolSize(refreshConcurrency);
+				refreshExecutor.setCorePoolSize(refreshConcurrency);
+			} else {
+				refreshExecutor.setCorePoolSize(refreshConcurrency);
+				refreshExecutor.setMaximumPoolSize(refreshConcurrency);
+			}
+		}
+	}
+
+	public Duration getNegativeTtl() {
+		return Duration.ofNanos(negativeTtl);
+	}
+
+	/**
+	 * Set how long to remember principals for which the wrapped source returned
+	 * no keys or failed. During this time, an empty list is returned or the
+	 * failure is thrown again without contacting the wrapped source. Keep this
+	 * short, as newly registered users will not be able to authenticate until it
+	 * expires (or they are {@link #invalidate(String) invalidated}). Zero (the
+	 * default) disables negative caching.
+	 *
+	 * @param negativeTtl negative TTL
+	 */
+	public void setNegativeTtl(Duration negativeTtl) {
+		this.negativeTtl = checkNotNegative(negativeTtl, "Negative TTL");
+	}
+
+	public int getMaxNegativeEntries() {
+		return maxNegativeEntries;
+	}
+
+	/**
+	 * Set the maximum number of principals to remember as having no keys. The
+	 * least recently used are evicted first.
+	 *
+	 * @param maxNegativeEntries maximum negative entries
+	 */
+	public void setMaxNegativeEntries(int maxNegativeEntries) {
+		if (maxNegativeEntries < 1) {
+			throw new IllegalArgumentException("Maximum negative entries must be at least 1.");
+		}
+		this.maxNegativeEntries = maxNegativeEntries;
+		synchronized (negativeCache) {
+			var it = negativeCache.keySet().iterator();
+			while (negativeCache.size() > maxNegativeEntries && it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+	}
+
+	public AuthorizedKeyStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Set a store to persist keys in as they are fetched. When keys for a
+	 * principal are not cached, but are in the store and were fetched less than
+	 * the TTL ago (for example, just before a restart), they are used without
+	 * contacting the wrapped source. If the wrapped source fails, keys in the
+	 * store that are younger than the {@link #setStoreMaxAge(Duration) maximum
+	 * age} are used instead. The store is not closed by this source.
+	 *
+	 * @param store store, or <code>null</code> for none
+	 */
+	public void setStore(AuthorizedKeyStore store) {
+		this.store = store;
+	}
+
+	public Duration getStoreMaxAge() {
+		return Duration.ofMillis(storeMaxAge);
+	}
+
+	/**
+	 * Set the maximum age of stored keys that may be used when the wrapped
+	 * source fails.
+	 *
+	 * @param storeMaxAge maximum age of stored keys
+	 */
+	public void setStoreMaxAge(Duration storeMaxAge) {
+		checkNotNegative(storeMaxAge, "Store maximum age");
+		this.storeMaxAge = storeMaxAge.toMillis();
+	}
+
+	@Override
+	public Iterable<String> listKeys(AuthenticatorClient client, String principal) {
+		var entry = getFresh(client, principal);
+		if (entry != null) {
+			return entry.keys;
+		}
+		var negative = getNegative(principal);
+		if (negative != null) {
+			if (negative.error != null) {
+				throw rethrow(negative.error);
+			}
+			return Collections.emptyList();
+		}
+		misses.increment();
+		var stored = getStored(principal);
+		if (stored != null && isStoredFresh(stored)) {
+			return restore(principal, stored);
+		}
+		try {
+			var previous = getPrevious(principal, stored);
+			return store(principal, previous == null ? delegate.listKeys(client, principal)
+					: delegate.revalidateKeys(client, principal, previous));
+		} catch (RuntimeException re) {
+			if (stored != null && isStoredUsable(stored)) {
+				storeHits.increment();
+				return stored.getKeys();
+			}
+			storeNegative(principal, re);
+			throw re;
+		}
+	}
+
+	@Override
+	public CompletableFuture<Iterable<String>> listKeysAsync(AuthenticatorClient client, String principal) {
+		var entry = getFresh(client, principal);
+		if (entry != null) {
+			return CompletableFuture.completedFuture(entry.keys);
+		}
+		var negative = getNegative(principal);
+		if (negative != null) {
+			if (negative.error != null) {
+				return CompletableFuture.failedFuture(rethrow(negative.error));
+			}
+			return CompletableFuture.completedFuture(Collections.emptyList());
+		}
+		misses.increment();
+		var stored = getStored(principal);
+		if (stored != null && isStoredFresh(stored)) {
+			return CompletableFuture.completedFuture(restore(principal, stored));
+		}
+		var previous = getPrevious(principal, stored);
+		return (previous == null ? delegate.listKeysAsync(client, principal)
+				: delegate.revalidateKeysAsync(client, principal, previous)).<Iterable<String>>handle((keys, ex) -> {
+			if (ex == null) {
+				return store(principal, keys);
+			}
+			if (stored != null && isStoredUsable(stored)) {
+				storeHits.increment();
+				return stored.getKeys();
+			}
+			var cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+			if (cause instanceof RuntimeException) {
+				storeNegative(principal, (RuntimeException) cause);
+			}
+			throw ex instanceof CompletionException ? (CompletionException) ex : new CompletionException(ex);
+		});
+	}
+
+	/**
+	 * Get the key for a principal with the given fingerprint from the
+	 * {@link #setStore(AuthorizedKeyStore) store}, if the keys stored for them
+	 * would be used by {@link #listKeys(AuthenticatorClient, String)} without
+	 * asking the wrapped {@link KeySource}.
+	 */
+	@Override
+	public String getKey(AuthenticatorClient client, String principal, String fingerprint) {
+		var store = this.store;
+		if (store == null) {
+			return null;
+		}
+		var stored = store.getKey(principal, fingerprint);
+		if (stored == null || stored.getKeys().isEmpty() || !isStoredFresh(stored)) {
+			return null;
+		}
+		storeHits.increment();
+		return stored.getKeys().get(0);
+	}
+
+	/**
+	 * Remove any cached keys for a principal, so the next request goes to the
+	 * wrapped {@link KeySource}.
+	 *
+	 * @param principal principal
+	 */
+	public void invalidate(String principal) {
+		synchronized (cache) {
+			cache.remove(principal);
+		}
+		synchronized (negativeCache) {
+			negativeCache.remove(principal);
+		}
+		var store = this.store;
+		if (store != null) {
+			try {
+				store.remove(principal);
+			} catch (IOException e) {
+				storeFailures.increment();
+			}
+		}
+	}
+
+	/**
+	 * Remove all cached keys.
+	 */
+	public void invalidateAll() {
+		synchronized (cache) {
+			cache.clear();
+		}
+		synchronized (negativeCache) {
+			negativeCache.clear();
+		}
+		var store = this.store;
+		if (store != null) {
+			try {
+				store.clear();
+			} catch (IOException e) {
+				storeFailures.increment();
+			}
+		}
+	}
+
+	public int size() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	public int negativeSize() {
+		synchronized (negativeCache) {
+			return negativeCache.size();
+		}
+	}
+
+	/**
+	 * Get the number of requests answered from the negative cache, i.e. for
+	 * principals recently found to have no keys. These are not counted in
+	 * {@link #getHits()} or {@link #getMisses()}.
+	 *
+	 * @return negative hits
+	 */
+	public long getNegativeHits() {
+		return negativeHits.sum();
+	}
+
+	/**
+	 * Get the number of requests answered from the {@link AuthorizedKeyStore},
+	 * either because the keys were not cached in memory, or because the wrapped
+	 * source failed. These are also counted in {@link #getMisses()}.
+	 *
+	 * @return store hits
+	 */
+	public long getStoreHits() {
+		return storeHits.sum();
+	}
+
+	/**
+	 * Get the number of times writing to the {@link AuthorizedKeyStore} failed.
+	 *
+	 * @return store failures
+	 */
+	public long getStoreFailures() {
+		return storeFailures.sum();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Get the number of hits that were served from an expired entry within the
+	 * grace period. These are also counted in {@link #getHits()}.
+	 *
+	 * @return stale hits
+	 */
+	public long getStaleHits() {
+		return staleHits.sum();
+	}
+
+	public long getRefreshes() {
+		return refreshes.sum();
+	}
+
+	public long getRefreshFailures() {
+		return refreshFailures.sum();
+	}
+
+	/**
+	 * Stop any background refreshes. Cached entries continue to be served, but
+	 * will no longer be refreshed ahead of expiry.
+	 */
+	@Override
+	public void close() {
+		ThreadPoolExecutor executor;
+		synchronized (this) {
+			closed = true;
+			executor = refreshExecutor;
+			refreshExecutor = null;
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	private CacheEntry getFresh(AuthenticatorClient client, String principal) {
+		CacheEntry entry;
+		synchronized (cache) {
+			entry = cache.get(principal);
+		}
+		if (entry != null) {
+			var age = ticker.getAsLong() - entry.fetched;
+			if (age < ttl) {
+				entry.accesses.incrementAndGet();
+				hits.increment();
+				if (refreshAhead > 0 && age >= ttl - refreshAhead) {
+					refresh(client, principal, entry);
+				}
+				return entry;
+			}
+			if (age < ttl + staleGracePeriod) {
+				entry.accesses.incrementAndGet();
+				hits.increment();
+				staleHits.increment();
+				refresh(client, principal, entry);
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	private void refresh(AuthenticatorClient client, String principal, CacheEntry entry) {
+		if (!entry.refreshing.compareAndSet(false, true)) {
+			return;
+		}
+		var executor = getRefreshExecutor();
+		if (executor == null) {
+			entry.refreshing.set(false);
+			return;
+		}
+		var task = new RefreshTask(client, principal, entry);
+		try {
+			if (refreshJitter > 0) {
+				CompletableFuture.delayedExecutor(ThreadLocalRandom.current().nextLong(refreshJitter),
+						TimeUnit.NANOSECONDS, executor).execute(task);
+			} else {
+				executor.execute(task);
+			}
+		} catch (RuntimeException re) {
+			entry.refreshing.set(false);
+		}
+	}
+
+	private synchronized Executor getRefreshExecutor() {
+		if (closed) {
+			return null;
+		}
+		if (refreshExecutor == null) {
+			refreshExecutor = new ThreadPoolExecutor(refreshConcurrency, refreshConcurrency, 60, TimeUnit.SECONDS,
+					new PriorityBlockingQueue<>(), r -> {
+						var t = new Thread(r, "CachingKeySourceRefresh");
+						t.setDaemon(true);
+						return t;
+					});
+			refreshExecutor.allowCoreThreadTimeOut(true);
+		}
+		return refreshExecutor;
+	}
+
+	private NegativeEntry getNegative(String principal) {
+		if (negativeTtl == 0) {
+			return null;
+		}
+		NegativeEntry entry;
+		synchronized (negativeCache) {
+			entry = negativeCache.get(principal);
+			if (entry != null && ticker.getAsLong() - entry.fetched >= negativeTtl) {
+				negativeCache.remove(principal);
+				entry = null;
+			}
+		}
+		if (entry != null) {
+			negativeHits.increment();
+		}
+		return entry;
+	}
+
+	private void storeNegative(String principal, RuntimeException error) {
+		if (negativeTtl > 0 && !isShed(error)) {
+			synchronized (negativeCache) {
+				negativeCache.put(principal, new NegativeEntry(error, ticker.getAsLong()));
+			}
+		}
+	}
+
+	/**
+	 * Get the keys last known for a principal, even if expired, so the wrapped
+	 * source may be able to confirm they are unchanged rather than transfer them
+	 * again.
+	 */
+	private List<String> getPrevious(String principal, StoredKeys stored) {
+		synchronized (cache) {
+			var entry = cache.get(principal);
+			if (entry != null) {
+				return entry.keys;
+			}
+		}
+		return stored == null ? null : stored.getKeys();
+	}
+
+	private StoredKeys getStored(String principal) {
+		var store = this.store;
+		return store == null ? null : store.get(principal);
+	}
+
+	private boolean isStoredFresh(StoredKeys stored) {
+		return TimeUnit.MILLISECONDS.toNanos(clock.getAsLong() - stored.getFetched()) < ttl;
+	}
+
+	private boolean isStoredUsable(StoredKeys stored) {
+		return clock.getAsLong() - stored.getFetched() < storeMaxAge;
+	}
+
+	private List<String> restore(String principal, StoredKeys stored) {
+		storeHits.increment();
+		/* Cache as if fetched when they were originally, so they expire at the same time */
+		var age = TimeUnit.MILLISECONDS.toNanos(Math.max(0, clock.getAsLong() - stored.getFetched()));
+		var entry = new CacheEntry(stored.getKeys(), ticker.getAsLong() - age, new AtomicLong());
+		synchronized (cache) {
+			cache.put(principal, entry);
+		}
+		return entry.keys;
+	}
+
+	private void persist(String principal, List<String> keys) {
+		var store = this.store;
+		if (store != null) {
+			try {
+				if (keys.isEmpty()) {
+					store.remove(principal);
+				} else {
+					store.put(principal, new StoredKeys(keys, clock.getAsLong()));
+				}
+			} catch (IOException | RuntimeException e) {
+				storeFailures.increment();
+			}
+		}
+	}
+
+	private List<String> store(String principal, Iterable<String> keys) {
+		var list = toList(keys);
+		persist(principal, list);
+		if (list.isEmpty() && negativeTtl > 0) {
+			storeNegative(principal, null);
+			synchronized (cache) {
+				cache.remove(principal);
+			}
+			return list;
+		}
+		CacheEntry entry;
+		synchronized (cache) {
+			var previous = cache.get(principal);
+			if (previous != null && previous.keys.equals(list)) {
+				/* Unchanged, so keep the same instance and the client need not decode them again */
+				list = previous.keys;
+			}
+			entry = new CacheEntry(list, ticker.getAsLong(), new AtomicLong());
+			cache.put(principal, entry);
+		}
+		if (negativeTtl > 0) {
+			synchronized (negativeCache) {
+				negativeCache.remove(principal);
+			}
+		}
+		return entry.keys;
+	}
+
+	/**
+	 * Whether a failure was the {@link ConcurrencyLimiter} shedding load. That
+	 * says nothing about the principal, and capacity may return at any time, so
+	 * it is not negatively cached.
+	 */
+	private static boolean isShed(Throwable error) {
+		for (var cause = error; cause != null; cause = cause.getCause()) {
+			if (cause instanceof ConcurrencyLimitException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static IllegalStateException rethrow(RuntimeException error) {
+		/* A new exception for each caller, so the cached one is never modified */
+		return new IllegalStateException(error.getMessage(), error);
+	}
+
+	private static List<String> toList(Iterable<String> keys) {
+		var list = new ArrayList<String>();
+		keys.forEach(list::add);
+		return Collections.unmodifiableList(list);
+	}
+
+	private static long checkNotNegative(Duration duration, String name) {
+		if (duration.isNegative()) {
+			throw new IllegalArgumentException(String.format("%s must not be negative.", name));
+		}
+		return duration.toNanos();
+	}
+}
@@ -0,0 +1,234 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * The circuit breaker for a single {@link Endpoint}. Requests are only sent to
+ * the endpoint while the breaker allows it, so that when a server is down,
+ * requests fail immediately rather than each waiting to time out. See
+ * {@link CircuitBreakerPolicy} for when it opens and closes.
+ */
+public final class CircuitBreaker {
+
+	public enum State {
+		/** Requests are sent as normal */
+		CLOSED,
+		/** No requests are sent */
+		OPEN,
+		/** A few trial requests are sent to see if the endpoint has recovered */
+		HALF_OPEN
+	}
+
+	/** Number of buckets the rolling window is divided into */
+	final static int BUCKETS = 10;
+
+	private final Endpoint endpoint;
+	private final long[] epochs = new long[BUCKETS];
+	private final int[] requests = new int[BUCKETS];
+	private final int[] failures = new int[BUCKETS];
+	private final int[] slow = new int[BUCKETS];
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private int opened;
+	private long openUntil;
+	private int trials;
+	private int trialSuccesses;
+
+	CircuitBreaker(Endpoint endpoint) {
+		this.endpoint = endpoint;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * Get the number of requests that have failed in a row.
+	 *
+	 * @return consecutive failures
+	 */
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("CircuitBreaker [endpoint=%s, state=%s, consecutiveFailures=%d]", endpoint, state,
+				consecutiveFailures);
+	}
+
+	/**
+	 * Get whether a request could be sent now, without taking a trial.
+	 */
+	synchronized boolean isAvailable(long now, CircuitBreakerPolicy policy) {
+		switch (state) {
+		case OPEN:
+			return now - openUntil >= 0;
+		case HALF_OPEN:
+			return trials < policy.getHalfOpenRequests();
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Get whether the request may be sent. If the breaker has been open long
+	 * enough, it becomes half open, and the request is one of the trials.
+	 */
+	boolean tryAcquire(long now, EndpointGroup group) {
+		State from;
+		State to;
+		boolean acquired;
+		synchronized (this) {
+			from = state;
+			if (state == State.OPEN && now - openUntil >= 0) {
+				state = State.HALF_OPEN;
+				trials = 0;
+				trialSuccesses = 0;
+			}
+			if (state == State.HALF_OPEN) {
+				acquired = trials < group.getCircuitBreakerPolicy().getHalfOpenRequests();
+				if (acquired) {
+					trials++;
+				}
+			} else {
+				acquired = state == State.CLOSED;
+			}
+			to = state;
+		}
+		group.stateChanged(endpoint, from, to);
+		return acquired;
+	}
+
+	/**
+	 * A request that was allowed ended without an outcome, for example because
+	 * it was cancelled, so give back its trial.
+	 */
+	synchronized void release() {
+		if (state == State.HALF_OPEN && trials > trialSuccesses) {
+			trials--;
+		}
+	}
+
+	/**
+	 * Record the outcome of a request.
+	 *
+	 * @param now    time now
+	 * @param nanos  time taken, or zero if the time says nothing about the
+	 *               server, such as for signature requests
+	 * @param failed whether the request failed
+	 * @param group  group
+	 */
+	void record(long now, long nanos, boolean failed, EndpointGroup group) {
+		var policy = group.getCircuitBreakerPolicy();
+		var isSlow = nanos >= policy.getSlowRequestDuration().toNanos();
+		State from;
+		State to;
+		synchronized (this) {
+			from = state;
+			consecutiveFailures = failed ? consecutiveFailures + 1 : 0;
+			if (state == State.HALF_OPEN) {
+				if (failed || isSlow) {
+					open(now, policy);
+				} else if (++trialSuccesses >= policy.getHalfOpenRequests()) {
+					close();
+				}
+			} else if (state == State.CLOSED) {
+				var bucket = bucket(now, policy);
+				requests[bucket]++;
+				if (failed) {
+					failures[bucket]++;
+				} else if (isSlow) {
+					slow[bucket]++;
+				}
+				if (consecutiveFailures >= policy.getConsecutiveFailures() || overThreshold(now, policy)) {
+					open(now, policy);
+				}
+			}
+			to = state;
+		}
+		group.stateChanged(endpoint, from, to);
+	}
+
+	private boolean overThreshold(long now, CircuitBreakerPolicy policy) {
+		var epoch = now / bucketNanos(policy);
+		int total = 0;
+		int totalFailures = 0;
+		int totalSlow = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			if (epoch - epochs[i] < BUCKETS) {
+				total += requests[i];
+				totalFailures += failures[i];
+				totalSlow += slow[i];
+			}
+		}
+		return total >= policy.getMinimumRequests()
+				&& ((double) totalFailures / total >= policy.getFailureRateThreshold()
+						|| (double) totalSlow / total >= policy.getSlowRateThreshold());
+	}
+
+	private int bucket(long now, CircuitBreakerPolicy policy) {
+		var epoch = now / bucketNanos(policy);
+		var bucket = (int) Math.floorMod(epoch, (long) BUCKETS);
+		if (epochs[bucket] != epoch) {
+			epochs[bucket] = epoch;
+			requests[bucket] = 0;
+			failures[bucket] = 0;
+			slow[bucket] = 0;
+		}
+		return bucket;
+	}
+
+	private static long bucketNanos(CircuitBreakerPolicy policy) {
+		return policy.getWindow().toNanos() / BUCKETS;
+	}
+
+	private void open(long now, CircuitBreakerPolicy policy) {
+		var time = policy.getOpenTime().toNanos() << Math.min(opened, 20);
+		openUntil = now + Math.min(time, policy.getMaxOpenTime().toNanos());
+		opened++;
+		state = State.OPEN;
+		reset();
+	}
+
+	private void close() {
+		opened = 0;
+		state = State.CLOSED;
+		reset();
+	}
+
+	private void reset() {
+		/* Start each state with a clean window */
+		for (int i = 0; i < BUCKETS; i++) {
+			requests[i] = 0;
+			failures[i] = 0;
+			slow[i] = 0;
+		}
+	}
+
+	/**
+	 * Get when the breaker is next allowed to become half open.
+	 */
+	synchronized long getOpenUntil() {
+		return openUntil;
+	}
+}
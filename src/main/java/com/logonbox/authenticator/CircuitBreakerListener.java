@@ -0,0 +1,40 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Receives changes in the state of the {@link CircuitBreaker}s in an
+ * {@link EndpointGroup}, for example to pass on to monitoring.
+ * <p>
+ * Listeners are called on whichever thread caused the change, which may be
+ * one of the HTTP client's threads, so should return quickly.
+ */
+public interface CircuitBreakerListener {
+
+	/**
+	 * The state of an endpoint's circuit breaker has changed.
+	 *
+	 * @param endpoint endpoint
+	 * @param from     previous state
+	 * @param to       new state
+	 */
+	void stateChanged(Endpoint endpoint, CircuitBreaker.State from, CircuitBreaker.State to);
+}
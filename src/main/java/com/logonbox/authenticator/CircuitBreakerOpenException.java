@@ -0,0 +1,50 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown instead of sending a request when the circuit breakers of all the
+ * endpoints that could be used are open.
+ */
+public class CircuitBreakerOpenException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient List<Endpoint> endpoints;
+
+	public CircuitBreakerOpenException(List<Endpoint> endpoints) {
+		super(String.format("Circuit breaker open for %s, request not sent.", endpoints));
+		this.endpoints = Collections.unmodifiableList(endpoints);
+	}
+
+	/**
+	 * Get the endpoints that were unavailable.
+	 *
+	 * @return endpoints
+	 */
+	public List<Endpoint> getEndpoints() {
+		return endpoints;
+	}
+}
@@ -0,0 +1,200 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.time.Duration;
+
+/**
+ * Settings for the {@link CircuitBreaker}s of the endpoints in an
+ * {@link EndpointGroup}.
+ * <p>
+ * A breaker opens when too many recent requests have failed or been slow, or
+ * when a number of requests in a row have failed. Recent requests are those
+ * within a rolling window, and rates are only judged once there have been
+ * enough of them. While open, no requests are sent to the endpoint. Once the
+ * open time has passed, a few trial requests are allowed; if they succeed the
+ * breaker closes again, otherwise it opens for twice as long as before, up to
+ * a maximum.
+ */
+public class CircuitBreakerPolicy {
+
+	public final static double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+	public final static double DEFAULT_SLOW_RATE_THRESHOLD = 0.8;
+	public final static Duration DEFAULT_SLOW_REQUEST_DURATION = Duration.ofSeconds(10);
+	public final static int DEFAULT_CONSECUTIVE_FAILURES = 5;
+	public final static int DEFAULT_MINIMUM_REQUESTS = 10;
+	public final static Duration DEFAULT_WINDOW = Duration.ofSeconds(30);
+	public final static Duration DEFAULT_OPEN_TIME = Duration.ofSeconds(10);
+	public final static Duration DEFAULT_MAX_OPEN_TIME = Duration.ofMinutes(5);
+	public final static int DEFAULT_HALF_OPEN_REQUESTS = 1;
+
+	private double failureRateThreshold = DEFAULT_FAILURE_RATE_THRESHOLD;
+	private double slowRateThreshold = DEFAULT_SLOW_RATE_THRESHOLD;
+	private Duration slowRequestDuration = DEFAULT_SLOW_REQUEST_DURATION;
+	private int consecutiveFailures = DEFAULT_CONSECUTIVE_FAILURES;
+	private int minimumRequests = DEFAULT_MINIMUM_REQUESTS;
+	private Duration window = DEFAULT_WINDOW;
+	private Duration openTime = DEFAULT_OPEN_TIME;
+	private Duration maxOpenTime = DEFAULT_MAX_OPEN_TIME;
+	private int halfOpenRequests = DEFAULT_HALF_OPEN_REQUESTS;
+
+	public double getFailureRateThreshold() {
+		return failureRateThreshold;
+	}
+
+	/**
+	 * Set the proportion of recent requests that must fail for the breaker to
+	 * open.
+	 *
+	 * @param failureRateThreshold failure rate threshold, between 0 and 1
+	 */
+	public void setFailureRateThreshold(double failureRateThreshold) {
+		this.failureRateThreshold = checkRate(failureRateThreshold);
+	}
+
+	public double getSlowRateThreshold() {
+		return slowRateThreshold;
+	}
+
+	/**
+	 * Set the proportion of recent requests that must be slow for the breaker to
+	 * open.
+	 *
+	 * @param slowRateThreshold slow rate threshold, between 0 and 1
+	 */
+	public void setSlowRateThreshold(double slowRateThreshold) {
+		this.slowRateThreshold = checkRate(slowRateThreshold);
+	}
+
+	public Duration getSlowRequestDuration() {
+		return slowRequestDuration;
+	}
+
+	/**
+	 * Set how long a request must take to count as slow.
+	 *
+	 * @param slowRequestDuration slow request duration
+	 */
+	public void setSlowRequestDuration(Duration slowRequestDuration) {
+		this.slowRequestDuration = slowRequestDuration;
+	}
+
+	public int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	/**
+	 * Set how many requests must fail in a row for the breaker to open, however
+	 * few requests there have been.
+	 *
+	 * @param consecutiveFailures consecutive failures
+	 */
+	public void setConsecutiveFailures(int consecutiveFailures) {
+		if (consecutiveFailures < 1) {
+			throw new IllegalArgumentException("Consecutive failures must be at least 1.");
+		}
+		this.consecutiveFailures = consecutiveFailures;
+	}
+
+	public int getMinimumRequests() {
+		return minimumRequests;
+	}
+
+	/**
+	 * Set how many requests there must have been in the window before the
+	 * failure and slow rates are judged.
+	 *
+	 * @param minimumRequests minimum requests
+	 */
+	public void setMinimumRequests(int minimumRequests) {
+		if (minimumRequests < 1) {
+			throw new IllegalArgumentException("Minimum requests must be at least 1.");
+		}
+		this.minimumRequests = minimumRequests;
+	}
+
+	public Duration getWindow() {
+		return window;
+	}
+
+	/**
+	 * Set how far back requests count towards the failure and slow rates.
+	 *
+	 * @param window window
+	 */
+	public void setWindow(Duration window) {
+		if (window.toNanos() < CircuitBreaker.BUCKETS) {
+			throw new IllegalArgumentException("Window is too short.");
+		}
+		this.window = window;
+	}
+
+	public Duration getOpenTime() {
+		return openTime;
+	}
+
+	/**
+	 * Set how long the breaker first stays open for.
+	 *
+	 * @param openTime open time
+	 */
+	public void setOpenTime(Duration openTime) {
+		this.openTime = openTime;
+	}
+
+	public Duration getMaxOpenTime() {
+		return maxOpenTime;
+	}
+
+	/**
+	 * Set the longest the breaker stays open for after failing trial requests
+	 * again and again.
+	 *
+	 * @param maxOpenTime maximum open time
+	 */
+	public void setMaxOpenTime(Duration maxOpenTime) {
+		this.maxOpenTime = maxOpenTime;
+	}
+
+	public int getHalfOpenRequests() {
+		return halfOpenRequests;
+	}
+
+	/**
+	 * Set how many trial requests are allowed, and must succeed, before a
+	 * breaker that has been open closes again.
+	 *
+	 * @param halfOpenRequests half open requests
+	 */
+	public void setHalfOpenRequests(int halfOpenRequests) {
+		if (halfOpenRequests < 1) {
+			throw new IllegalArgumentException("Half open requests must be at least 1.");
+		}
+		this.halfOpenRequests = halfOpenRequests;
+	}
+
+	private static double checkRate(double rate) {
+		if (rate <= 0 || rate > 1) {
+			throw new IllegalArgumentException("Rate must be greater than 0 and no more than 1.");
+		}
+		return rate;
+	}
+}
@@ -0,0 +1,199 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link KeySource} that wraps another {@link KeySource}, and makes
+ * concurrent requests for the same principal share a single request to the
+ * wrapped source. Callers that arrive while a request is in flight wait for,
+ * and receive, its result (or failure).
+ * <p>
+ * This is best placed underneath a {@link CachingKeySource}, so that a burst of
+ * cache misses for a principal results in one request to the server.
+ */
+public class CoalescingKeySource implements KeySource {
+
+	private final KeySource delegate;
+	private final ConcurrentHashMap<String, CompletableFuture<List<String>>> inFlight = new ConcurrentHashMap<>();
+	private final LongAdder deduplicated = new LongAdder();
+
+	public CoalescingKeySource(KeySource delegate) {
+		this.delegate = delegate;
+	}
+
+	public KeySource getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public String getHostname() {
+		return delegate.getHostname();
+	}
+
+	@Override
+	public int getPort() {
+		return delegate.getPort();
+	}
+
+	@Override
+	public EndpointGroup getEndpoints() {
+		return delegate.getEndpoints();
+	}
+
+	@Override
+	public Iterable<String> listKeys(AuthenticatorClient client, String principal) {
+		return listKeys(client, principal, null);
+	}
+
+	/**
+	 * Revalidate keys with the wrapped source. Callers that arrive while any
+	 * request for the principal is in flight share it, as either way the result
+	 * is the current keys.
+	 */
+	@Override
+	public Iterable<String> revalidateKeys(AuthenticatorClient client, String principal, List<String> previous) {
+		return listKeys(client, principal, previous);
+	}
+
+	@Override
+	public CompletableFuture<Iterable<String>> listKeysAsync(AuthenticatorClient client, String principal) {
+		return listKeysAsync(client, principal, null);
+	}
+
+	@Override
+	public String getKey(AuthenticatorClient client, String principal, String fingerprint) {
+		return delegate.getKey(client, principal, fingerprint);
+	}
+
+	@Override
+	public CompletableFuture<Iterable<String>> revalidateKeysAsync(AuthenticatorClient client, String principal,
+			List<String> previous) {
+		return listKeysAsync(client, principal, previous);
+	}
+
+	private Iterable<String> listKeys(AuthenticatorClient client, String principal, List<String> previous) {
+		var future = new CompletableFuture<List<String>>();
+		var existing = inFlight.putIfAbsent(principal, future);
+		if (existing != null) {
+			deduplicated.increment();
+			try {
+				return existing.join();
+			} catch (CompletionException ce) {
+				throw rethrow(unwrap(ce));
+			}
+		}
+
+		try {
+			var keys = toList(previous == null ? delegate.listKeys(client, principal)
+					: delegate.revalidateKeys(client, principal, previous));
+			inFlight.remove(principal, future);
+			future.complete(keys);
+			return keys;
+		} catch (RuntimeException re) {
+			inFlight.remove(principal, future);
+			future.completeExceptionally(re);
+			throw re;
+		}
+	}
+
+	private CompletableFuture<Iterable<String>> listKeysAsync(AuthenticatorClient client, String principal,
+			List<String> previous) {
+		var future = new CompletableFuture<List<String>>();
+		var existing = inFlight.putIfAbsent(principal, future);
+		if (existing != null) {
+			deduplicated.increment();
+			return existing.<Iterable<String>>handle((keys, ex) -> {
+				if (ex != null) {
+					throw new CompletionException(rethrow(unwrap(ex)));
+				}
+				return keys;
+			});
+		}
+
+		try {
+			(previous == null ? delegate.listKeysAsync(client, principal)
+					: delegate.revalidateKeysAsync(client, principal, previous)).whenComplete((keys, ex) -> {
+				inFlight.remove(principal, future);
+				if (ex == null) {
+					try {
+						future.complete(toList(keys));
+					} catch (RuntimeException re) {
+						future.completeExceptionally(re);
+					}
+				} else {
+					future.completeExceptionally(unwrap(ex));
+				}
+			});
+		} catch (RuntimeException re) {
+			inFlight.remove(principal, future);
+			future.completeExceptionally(re);
+		}
+		/* Callers get a dependent future, so one cancelling cannot affect the others */
+		return future.thenApply(keys -> keys);
+	}
+
+	/**
+	 * Get the number of requests that were satisfied by joining a request already
+	 * in flight, rather than making their own.
+	 *
+	 * @return de-duplicated requests
+	 */
+	public long getDeduplicated() {
+		return deduplicated.sum();
+	}
+
+	/**
+	 * Get the number of principals that currently have a request in flight.
+	 *
+	 * @return in flight requests
+	 */
+	public int getInFlight() {
+		return inFlight.size();
+	}
+
+	private static List<String> toList(Iterable<String> keys) {
+		var list = new ArrayList<String>();
+		keys.forEach(list::add);
+		return Collections.unmodifiableList(list);
+	}
+
+	private static IllegalStateException rethrow(RuntimeException error) {
+		/* A new exception for each waiter, so the shared one is never modified */
+		return new IllegalStateException(error.getMessage(), error);
+	}
+
+	private static RuntimeException unwrap(Throwable ex) {
+		var cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+		if (cause instanceof RuntimeException) {
+			return (RuntimeException) cause;
+		}
+		return new IllegalStateException("Failed to list keys.", cause);
+	}
+}
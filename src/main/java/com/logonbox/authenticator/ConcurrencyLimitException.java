@@ -0,0 +1,37 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request is not sent because the {@link ConcurrencyLimiter} is
+ * at its limit, and either too many requests are already waiting, or this one
+ * waited too long.
+ */
+public class ConcurrencyLimitException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ConcurrencyLimitException(String message) {
+		super(message);
+	}
+}
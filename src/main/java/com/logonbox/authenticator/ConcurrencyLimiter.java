@@ -0,0 +1,469 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits how many requests are sent to the LogonBox servers at once, adapting
+ * the limit to how the servers are coping.
+ * <p>
+ * The limit is adjusted by additive increase, multiplicative decrease (AIMD).
+ * Each request that succeeds while the limit is being used raises it a little,
+ * by up to one per round trip. Each request that fails, or that takes much
+ * longer than the fastest recent round trip, lowers it by a proportion. So
+ * the limit settles near the largest number of requests the servers can take
+ * without queueing them.
+ * <p>
+ * Requests over the limit wait their turn, up to a maximum number and a
+ * maximum time, after which they fail with a {@link ConcurrencyLimitException}.
+ * <p>
+ * Signature requests wait for the user to respond, so their round trip says
+ * nothing about the server, and many may be waiting at once. They are kept
+ * apart from the adaptive limit, in a fixed number of their own (see
+ * {@link #setMaxSignatureRequests(int)}), and never wait or change the limit.
+ */
+public class ConcurrencyLimiter {
+
+	public final static int DEFAULT_INITIAL_LIMIT = 20;
+	public final static int DEFAULT_MIN_LIMIT = 1;
+	public final static int DEFAULT_MAX_LIMIT = 200;
+	public final static int DEFAULT_MAX_QUEUE = 100;
+	public final static Duration DEFAULT_MAX_WAIT = Duration.ofSeconds(1);
+	public final static double DEFAULT_RTT_TOLERANCE = 2;
+	public final static double DEFAULT_BACKOFF = 0.9;
+	public final static int DEFAULT_MAX_SIGNATURE_REQUESTS = 1000;
+
+	/**
+	 * How many round trips are timed before the fastest is forgotten, so that
+	 * the baseline follows lasting changes in the network or server.
+	 */
+	final static int BASELINE_SAMPLES = 1000;
+
+	private enum Outcome {
+		SUCCESS, DROPPED, IGNORED
+	}
+
+	/**
+	 * Permission to send one request, which must be given back by calling
+	 * exactly one of its methods once the outcome is known.
+	 */
+	final static class Permit {
+
+		/** Permit for when there is no limiter */
+		final static Permit NONE = new Permit(null, 0, false);
+
+		private final ConcurrencyLimiter limiter;
+		private final long started;
+		private final boolean timed;
+		private boolean released;
+
+		private Permit(ConcurrencyLimiter limiter, long started, boolean timed) {
+			this.limiter = limiter;
+			this.started = started;
+			this.timed = timed;
+		}
+
+		/**
+		 * The request succeeded.
+		 */
+		void success() {
+			if (limiter != null) {
+				limiter.release(this, Outcome.SUCCESS);
+			}
+		}
+
+		/**
+		 * The request failed, or was rejected by the server.
+		 */
+		void dropped() {
+			if (limiter != null) {
+				limiter.release(this, Outcome.DROPPED);
+			}
+		}
+
+		/**
+		 * The request ended without an outcome, or was never sent.
+		 */
+		void ignore() {
+			if (limiter != null) {
+				limiter.release(this, Outcome.IGNORED);
+			}
+		}
+	}
+
+	private final LongSupplier ticker;
+	private final Deque<CompletableFuture<Permit>> queue = new ArrayDeque<>();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	private int minLimit = DEFAULT_MIN_LIMIT;
+	private int maxLimit = DEFAULT_MAX_LIMIT;
+	private int maxQueue = DEFAULT_MAX_QUEUE;
+	private Duration maxWait = DEFAULT_MAX_WAIT;
+	private double rttTolerance = DEFAULT_RTT_TOLERANCE;
+	private double backoff = DEFAULT_BACKOFF;
+	private int maxSignatureRequests = DEFAULT_MAX_SIGNATURE_REQUESTS;
+
+	private double limit;
+	private int inFlight;
+	private int signatureRequests;
+	private long minRtt = Long.MAX_VALUE;
+	private int samples;
+
+	public ConcurrencyLimiter() {
+		this(DEFAULT_INITIAL_LIMIT);
+	}
+
+	public ConcurrencyLimiter(int initialLimit) {
+		this(initialLimit, System::nanoTime);
+	}
+
+	ConcurrencyLimiter(int initialLimit, LongSupplier ticker) {
+		if (initialLimit < 1) {
+			throw new IllegalArgumentException("Initial limit must be at least 1.");
+		}
+		this.limit = initialLimit;
+		this.ticker = ticker;
+	}
+
+	/**
+	 * Get the current limit on requests in flight.
+	 *
+	 * @return limit
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * Get the number of requests in flight.
+	 *
+	 * @return in flight
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Get the number of signature requests in flight, which are not counted by
+	 * {@link #getInFlight()}.
+	 *
+	 * @return signature requests
+	 */
+	public synchronized int getSignatureRequests() {
+		return signatureRequests;
+	}
+
+	/**
+	 * Get the number of requests waiting to be sent.
+	 *
+	 * @return queue depth
+	 */
+	public synchronized int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * Get how many requests have been rejected because too many were waiting, or
+	 * they waited too long.
+	 *
+	 * @return rejected
+	 */
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	/**
+	 * Get how many requests have failed, lowering the limit.
+	 *
+	 * @return dropped
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	public synchronized int getMinLimit() {
+		return minLimit;
+	}
+
+	public synchronized void setMinLimit(int minLimit) {
+		if (minLimit < 1 || minLimit > maxLimit) {
+			throw new IllegalArgumentException("Minimum limit must be at least 1 and no more than the maximum.");
+		}
+		this.minLimit = minLimit;
+		limit = Math.max(limit, minLimit);
+	}
+
+	public synchronized int getMaxLimit() {
+		return maxLimit;
+	}
+
+	public synchronized void setMaxLimit(int maxLimit) {
+		if (maxLimit < minLimit) {
+			throw new IllegalArgumentException("Maximum limit must be no less than the minimum.");
+		}
+		this.maxLimit = maxLimit;
+		limit = Math.min(limit, maxLimit);
+	}
+
+	public synchronized int getMaxQueue() {
+		return maxQueue;
+	}
+
+	/**
+	 * Set how many requests may wait to be sent when the limit is reached. Any
+	 * more are rejected immediately.
+	 *
+	 * @param maxQueue maximum queue, or zero to never wait
+	 */
+	public synchronized void setMaxQueue(int maxQueue) {
+		if (maxQueue < 0) {
+			throw new IllegalArgumentException("Maximum queue must not be negative.");
+		}
+		this.maxQueue = maxQueue;
+	}
+
+	public synchronized Duration getMaxWait() {
+		return maxWait;
+	}
+
+	/**
+	 * Set how long a request may wait to be sent before it is rejected.
+	 *
+	 * @param maxWait maximum wait, or <code>null</code> to wait as long as it
+	 *                takes
+	 */
+	public synchronized void setMaxWait(Duration maxWait) {
+		this.maxWait = maxWait;
+	}
+
+	public synchronized double getRttTolerance() {
+		return rttTolerance;
+	}
+
+	/**
+	 * Set how many times longer than the fastest recent round trip a request may
+	 * take before it is taken as a sign of overload.
+	 *
+	 * @param rttTolerance round trip tolerance, more than 1
+	 */
+	public synchronized void setRttTolerance(double rttTolerance) {
+		if (rttTolerance <= 1) {
+			throw new IllegalArgumentException("Round trip tolerance must be more than 1.");
+		}
+		this.rttTolerance = rttTolerance;
+	}
+
+	public synchronized double getBackoff() {
+		return backoff;
+	}
+
+	/**
+	 * Set the proportion the limit is multiplied by on overload.
+	 *
+	 * @param backoff backoff, between 0 and 1
+	 */
+	public synchronized void setBackoff(double backoff) {
+		if (backoff <= 0 || backoff >= 1) {
+			throw new IllegalArgumentException("Backoff must be between 0 and 1.");
+		}
+		this.backoff = backoff;
+	}
+
+	public synchronized int getMaxSignatureRequests() {
+		return maxSignatureRequests;
+	}
+
+	/**
+	 * Set how many signature requests may be in flight at once, waiting for users
+	 * to respond. Any more are rejected immediately. This limit is fixed, as the
+	 * time taken by signature requests depends on the users.
+	 *
+	 * @param maxSignatureRequests maximum signature requests
+	 */
+	public synchronized void setMaxSignatureRequests(int maxSignatureRequests) {
+		if (maxSignatureRequests < 1) {
+			throw new IllegalArgumentException("Maximum signature requests must be at least 1.");
+		}
+		this.maxSignatureRequests = maxSignatureRequests;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(
+				"ConcurrencyLimiter [limit=%d, inFlight=%d, queueDepth=%d, rejected=%d, signatureRequests=%d]",
+				(int) limit, inFlight, queue.size(), rejected.sum(), signatureRequests);
+	}
+
+	/**
+	 * Wait for permission to send a request.
+	 *
+	 * @param timed whether its round trip says anything about the server, or it
+	 *              is a signature request
+	 * @return permit
+	 * @throws ConcurrencyLimitException if the request may not be sent
+	 * @throws InterruptedException      if interrupted while waiting
+	 */
+	Permit acquire(boolean timed) throws IOException, InterruptedException {
+		var future = acquireAsync(timed);
+		try {
+			return future.get();
+		} catch (InterruptedException ie) {
+			cancel(future);
+			throw ie;
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof IOException) {
+				throw (IOException) ee.getCause();
+			}
+			throw new IOException(ee.getCause().getMessage(), ee.getCause());
+		}
+	}
+
+	/**
+	 * Get permission to send a request, when it is given.
+	 *
+	 * @param timed whether its round trip says anything about the server, or it
+	 *              is a signature request
+	 * @return future permit, failing with a {@link ConcurrencyLimitException} if
+	 *         the request may not be sent
+	 */
+	CompletableFuture<Permit> acquireAsync(boolean timed) {
+		CompletableFuture<Permit> waiter;
+		Duration wait;
+		synchronized (this) {
+			if (!timed) {
+				if (signatureRequests >= maxSignatureRequests) {
+					rejected.increment();
+					return CompletableFuture.failedFuture(new ConcurrencyLimitException(
+							String.format("Too many signature requests, %d in flight.", signatureRequests)));
+				}
+				signatureRequests++;
+				return CompletableFuture.completedFuture(new Permit(this, ticker.getAsLong(), false));
+			}
+			if (queue.isEmpty() && inFlight < (int) limit) {
+				inFlight++;
+				return CompletableFuture.completedFuture(new Permit(this, ticker.getAsLong(), true));
+			}
+			if (queue.size() >= maxQueue) {
+				rejected.increment();
+				return CompletableFuture.failedFuture(new ConcurrencyLimitException(
+						String.format("Too many requests, %d in flight and %d waiting.", inFlight, queue.size())));
+			}
+			waiter = new CompletableFuture<>();
+			queue.add(waiter);
+			wait = maxWait;
+		}
+		if (wait != null) {
+			CompletableFuture.delayedExecutor(wait.toNanos(), TimeUnit.NANOSECONDS).execute(() -> {
+				boolean removed;
+				synchronized (this) {
+					removed = queue.remove(waiter);
+				}
+				if (removed) {
+					rejected.increment();
+					waiter.completeExceptionally(new ConcurrencyLimitException(
+							String.format("Too many requests, waited %dms to send.", wait.toMillis())));
+				}
+			});
+		}
+		return waiter;
+	}
+
+	private void cancel(CompletableFuture<Permit> future) {
+		synchronized (this) {
+			queue.remove(future);
+		}
+		if (!future.cancel(false) && !future.isCompletedExceptionally()) {
+			/* Given permission just too late */
+			future.join().ignore();
+		}
+	}
+
+	private void release(Permit permit, Outcome outcome) {
+		var ready = new ArrayList<CompletableFuture<Permit>>();
+		synchronized (this) {
+			if (permit.released) {
+				return;
+			}
+			permit.released = true;
+			if (!permit.timed) {
+				signatureRequests--;
+				return;
+			}
+			var wasInFlight = inFlight--;
+			switch (outcome) {
+			case DROPPED:
+				dropped.increment();
+				decrease();
+				break;
+			case SUCCESS:
+				var rtt = ticker.getAsLong() - permit.started;
+				if (++samples % BASELINE_SAMPLES == 0) {
+					minRtt = rtt;
+				} else {
+					minRtt = Math.min(minRtt, rtt);
+				}
+				if (rtt > minRtt * rttTolerance) {
+					decrease();
+				} else {
+					increase(wasInFlight);
+				}
+				break;
+			default:
+				break;
+			}
+
+			while (!queue.isEmpty() && inFlight < (int) limit) {
+				ready.add(queue.poll());
+				inFlight++;
+			}
+		}
+		var now = ticker.getAsLong();
+		for (var waiter : ready) {
+			var next = new Permit(this, now, true);
+			if (!waiter.complete(next)) {
+				/* Cancelled while waiting */
+				next.ignore();
+			}
+		}
+	}
+
+	private void increase(int wasInFlight) {
+		/* Only grow if the limit is actually being used */
+		if (wasInFlight * 2 >= limit) {
+			limit = Math.min(maxLimit, limit + 1 / limit);
+		}
+	}
+
+	private void decrease() {
+		limit = Math.max(minLimit, limit * backoff);
+	}
+}
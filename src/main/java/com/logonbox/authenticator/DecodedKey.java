@@ -0,0 +1,52 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.security.PublicKey;
+
+/**
+ * A public key decoded from an authorized keys entry, along with its SSH
+ * algorithm name and <code>SHA256:</code> fingerprint.
+ */
+final class DecodedKey {
+
+	private final PublicKey key;
+	private final String algorithm;
+	private final String fingerprint;
+
+	DecodedKey(PublicKey key, String algorithm, String fingerprint) {
+		this.key = key;
+		this.algorithm = algorithm;
+		this.fingerprint = fingerprint;
+	}
+
+	PublicKey getKey() {
+		return key;
+	}
+
+	String getAlgorithm() {
+		return algorithm;
+	}
+
+	String getFingerprint() {
+		return fingerprint;
+	}
+}
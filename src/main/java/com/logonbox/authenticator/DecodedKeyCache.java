@@ -0,0 +1,88 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of {@link DecodedKey}, keyed by the Base64 encoded SSH key
+ * blob. When full, the least recently used entry is evicted to make room, so
+ * keys of active users stay decoded however many others pass through.
+ */
+final class DecodedKeyCache {
+
+	private final LinkedHashMap<String, DecodedKey> keys = new LinkedHashMap<>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, DecodedKey> eldest) {
+			return size() > maxSize;
+		}
+	};
+	private volatile int maxSize;
+
+	DecodedKeyCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	int getMaxSize() {
+		return maxSize;
+	}
+
+	void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		synchronized (keys) {
+			var it = keys.keySet().iterator();
+			while (keys.size() > Math.max(0, maxSize) && it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+	}
+
+	int size() {
+		synchronized (keys) {
+			return keys.size();
+		}
+	}
+
+	DecodedKey get(String blob) {
+		synchronized (keys) {
+			return keys.get(blob);
+		}
+	}
+
+	void put(String blob, DecodedKey key) {
+		if (maxSize < 1) {
+			return;
+		}
+		synchronized (keys) {
+			keys.put(blob, key);
+		}
+	}
+
+	void clear() {
+		synchronized (keys) {
+			keys.clear();
+		}
+	}
+}
@@ -1,101 +1,502 @@
 package com.logonbox.authenticator;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.StringReader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+import com.logonbox.authenticator.EndpointGroup.RequestFactory;
 
 public class DefaultKeySource implements KeySource {
 
-	private final String hostname;
-	private final int port;
+	public final static int DEFAULT_MAX_VALIDATORS = 1000;
+
+	private final static int NOT_MODIFIED = 304;
+
+	/**
+	 * The validators needed to make a conditional request for the last complete
+	 * listing received for a principal. The keys themselves are not kept, only a
+	 * digest of them, so a <code>304 Not Modified</code> is only trusted for the
+	 * very keys a caller already holds.
+	 */
+	private final static class Validators {
+		private final String etag;
+		private final String lastModified;
+		private final byte[] digest;
+
+		private Validators(String etag, String lastModified, byte[] digest) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.digest = digest;
+		}
+	}
+
+	private final EndpointGroup endpoints;
+	private final Map<String, Validators> validators = new LinkedHashMap<>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Validators> eldest) {
+			return size() > maxValidators;
+		}
+	};
+	private volatile int maxValidators = DEFAULT_MAX_VALIDATORS;
+	private boolean compression = true;
+	private HedgingPolicy hedging;
 
 	public DefaultKeySource(String hostname, int port) {
-		this.hostname = hostname;
-		this.port = port;
+		this(new EndpointGroup(new Endpoint(hostname, port)));
+	}
+
+	/**
+	 * Constructor for a directory served by a number of LogonBox servers. Keys
+	 * are requested from whichever is performing best, and requests that fail
+	 * are retried on another.
+	 *
+	 * @param endpoints endpoints
+	 */
+	public DefaultKeySource(EndpointGroup endpoints) {
+		this.endpoints = endpoints;
 	}
 
 	public String getHostname() {
-		return hostname;
+		return endpoints.getPrimary().getHostname();
 	}
 
 	public int getPort() {
-		return port;
+		return endpoints.getPrimary().getPort();
+	}
+
+	@Override
+	public EndpointGroup getEndpoints() {
+		return endpoints;
+	}
+
+	public int getMaxValidators() {
+		return maxValidators;
+	}
+
+	/**
+	 * Set the maximum number of principals for which the validators
+	 * (<code>ETag</code> and <code>Last-Modified</code>) of the last complete
+	 * listing are kept. When a cache such as {@link CachingKeySource}
+	 * {@link #revalidateKeys(AuthenticatorClient, String, List) revalidates} the
+	 * same keys, they are used to make a conditional request, and if the server
+	 * responds that nothing has changed, the cached keys are returned without
+	 * being transferred again. Zero disables conditional requests.
+	 *
+	 * @param maxValidators maximum validators
+	 */
+	public void setMaxValidators(int maxValidators) {
+		if (maxValidators < 0) {
+			throw new IllegalArgumentException("Maximum validators must not be negative.");
+		}
+		this.maxValidators = maxValidators;
+		synchronized (validators) {
+			var it = validators.keySet().iterator();
+			while (validators.size() > maxValidators && it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+	}
+
+	public boolean isCompression() {
+		return compression;
+	}
+
+	/**
+	 * Set whether to ask for the response to be gzip compressed. Compressed
+	 * responses are always decompressed, regardless of this setting.
+	 *
+	 * @param compression compression
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	public HedgingPolicy getHedging() {
+		return hedging;
+	}
+
+	/**
+	 * Set a policy for hedging requests for keys, so that a slow response from
+	 * one server is covered by asking again. By default requests are not hedged.
+	 *
+	 * @param hedging hedging policy, or <code>null</code> not to hedge
+	 */
+	public void setHedging(HedgingPolicy hedging) {
+		this.hedging = hedging;
 	}
 
 	@Override
 	public Iterable<String> listKeys(AuthenticatorClient client, String principal) {
+		return listKeys(client, principal, null);
+	}
+
+	@Override
+	public Iterable<String> revalidateKeys(AuthenticatorClient client, String principal, List<String> previous) {
+		return listKeys(client, principal, previous);
+	}
+
+	@Override
+	public CompletableFuture<Iterable<String>> listKeysAsync(AuthenticatorClient client, String principal) {
+		return listKeysAsync(client, principal, null);
+	}
+
+	@Override
+	public CompletableFuture<Iterable<String>> revalidateKeysAsync(AuthenticatorClient client, String principal,
+			List<String> previous) {
+		return listKeysAsync(client, principal, previous);
+	}
+
+	private Iterable<String> listKeys(AuthenticatorClient client, String principal, List<String> previous) {
 		return new Iterable<String>() {
 			@Override
 			public Iterator<String> iterator() {
 				try {
-
-					var request = HttpRequest.newBuilder()
-							.uri(new URI(String.format("https://%s:%d/app/api/authenticator/keys/%s", hostname, port, principal)))
-							.GET().build();
-
-					var httpClient = client.newHttpClientBuilder().build();
-					var response = httpClient.send(request, BodyHandlers.ofString());
+					var validators = getValidators(principal, previous);
+					var event = new KeyFetchEvent();
+					event.begin();
+					HttpResponse<InputStream> response = null;
+					try {
+						response = send(client, principal, validators);
+					} finally {
+						commit(event, principal, response, -1);
+					}
+					var hostname = response.uri().getHost();
+					if (response.statusCode() == NOT_MODIFIED) {
+						response.body().close();
+						if (validators == null) {
+							throw new IOException(
+									String.format("Unexpected response from %s, keys not modified.", hostname));
+						}
+						if (client.isDebug()) {
+							client.getLog().info(String.format("Authorized keys from %s not modified", hostname));
+						}
+						return previous.iterator();
+					}
 
 					if (client.isDebug()) {
-						client.getLog().info(String.format("Received authorized keys from %s", hostname));
-						client.getLog().info(response.body());
+						client.getLog().info(String.format("Receiving authorized keys from %s", hostname));
 					}
-					var body = response.body();
-					System.out.println(body);
-					var reader = new BufferedReader(new StringReader(body));
-					var key = reader.readLine();
-					if (!key.startsWith("# Authorized")) {
-						throw new IOException(String.format("Unable to list users authorized keys from %s", hostname));
+					var reader = new BufferedReader(new InputStreamReader(decode(response, response.body()),
+							StandardCharsets.UTF_8));
+					try {
+						var key = reader.readLine();
+						if (key == null || !key.startsWith("# Authorized")) {
+							throw new IOException(
+									String.format("Unable to list users authorized keys from %s", hostname));
+						}
+					} catch (IOException | RuntimeException e) {
+						reader.close();
+						throw e;
 					}
-					return new Iterator<String>() {
-
-						private String next = null;
-
-						void checkNext() {
-							if (next == null) {
-								String line;
-								try {
-									while ((line = reader.readLine()) != null) {
-										line = line.trim();
-										if (line.equals("") || line.startsWith("#"))
-											continue;
-										next = line;
-										break;
-									}
-								} catch (IOException ioe) {
-									// Will never happen, entire response is read into a string
+					return new KeyIterator(client, reader, storer(principal, response));
+				} catch (IOException | InterruptedException | URISyntaxException e) {
+					throw new IllegalStateException("Failed to list keys.", e);
+				}
+			}
+		};
+
+	}
+
+	private CompletableFuture<Iterable<String>> listKeysAsync(AuthenticatorClient client, String principal,
+			List<String> previous) {
+		try {
+			var validators = getValidators(principal, previous);
+			RequestFactory factory = endpoint -> {
+				try {
+					return newRequest(client, endpoint, principal, validators);
+				} catch (URISyntaxException e) {
+					throw new IllegalStateException("Failed to list keys.", e);
+				}
+			};
+			var hedging = this.hedging;
+			var event = new KeyFetchEvent();
+			event.begin();
+			return (hedging == null ? endpoints.sendAsync(client, factory, BodyHandlers.ofByteArray(), true)
+					: endpoints.sendHedged(client, factory, BodyHandlers.ofByteArray(), hedging))
+					.whenComplete((response, ex) -> commit(event, principal, response,
+							response == null ? -1 : response.body().length))
+					.thenApply(response -> {
+						var hostname = response.uri().getHost();
+						try {
+							if (response.statusCode() == NOT_MODIFIED) {
+								if (validators == null) {
+									throw new IOException(String
+											.format("Unexpected response from %s, keys not modified.", hostname));
+								}
+								if (client.isDebug()) {
+									client.getLog()
+											.info(String.format("Authorized keys from %s not modified", hostname));
 								}
+								return previous;
+							}
+							var body = new String(
+									decode(response, new ByteArrayInputStream(response.body())).readAllBytes(),
+									StandardCharsets.UTF_8);
+							if (client.isDebug()) {
+								client.getLog().info(String.format("Received authorized keys from %s", hostname));
+								client.getLog().info(body);
+							}
+							var keys = Collections.unmodifiableList(parseKeys(body, hostname));
+							var storer = storer(principal, response);
+							if (storer != null) {
+								storer.accept(digest(keys));
 							}
+							return keys;
+						} catch (IOException e) {
+							throw new IllegalStateException("Failed to list keys.", e);
 						}
+					});
+		} catch (RuntimeException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
 
-						@Override
-						public boolean hasNext() {
-							checkNext();
-							return next != null;
-						}
+	@Override
+	public String toString() {
+		return "DefaultKeySource " + endpoints;
+	}
 
-						@Override
-						public String next() {
-							try {
-								checkNext();
-								return next;
-							} finally {
-								next = null;
-							}
-						}
+	private static void commit(KeyFetchEvent event, String principal, HttpResponse<?> response, long bytes) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.principalHash = AuthenticatorEvent.hash(principal);
+			if (response != null) {
+				event.host = response.uri().getHost();
+				event.status = response.statusCode();
+				event.bytes = bytes < 0 ? response.headers().firstValueAsLong("Content-Length").orElse(-1) : bytes;
+			}
+			event.commit();
+		}
+	}
 
-					};
-				} catch (IOException | InterruptedException | URISyntaxException e) {
-					throw new IllegalStateException("Failed to list keys.", e);
-				}
+	private HttpResponse<InputStream> send(AuthenticatorClient client, String principal, Validators validators)
+			throws IOException, InterruptedException, URISyntaxException {
+		RequestFactory factory = endpoint -> newRequest(client, endpoint, principal, validators);
+		var hedging = this.hedging;
+		if (hedging == null) {
+			return endpoints.send(client, factory, BodyHandlers.ofInputStream(), true);
+		}
+		try {
+			return endpoints.sendHedged(client, factory, BodyHandlers.ofInputStream(), hedging).get();
+		} catch (ExecutionException ee) {
+			var cause = ee.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof URISyntaxException) {
+				throw (URISyntaxException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause.getMessage(), cause);
+		}
+	}
+
+	private HttpRequest newRequest(AuthenticatorClient client, Endpoint endpoint, String principal,
+			Validators validators) throws URISyntaxException {
+		var builder = client.newHttpRequestBuilder(new URI(String.format("https://%s:%d/app/api/authenticator/keys/%s",
+				endpoint.getHostname(), endpoint.getPort(), principal))).GET();
+		if (compression) {
+			builder.header("Accept-Encoding", "gzip");
+		}
+		if (validators != null) {
+			if (validators.etag != null) {
+				builder.header("If-None-Match", validators.etag);
+			}
+			if (validators.lastModified != null) {
+				builder.header("If-Modified-Since", validators.lastModified);
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Get the validators to make a conditional request with, only if they were
+	 * received with exactly the keys the caller already has.
+	 */
+	private Validators getValidators(String principal, List<String> previous) {
+		if (previous == null || maxValidators == 0) {
+			return null;
+		}
+		Validators v;
+		synchronized (validators) {
+			v = validators.get(principal);
+		}
+		return v != null && MessageDigest.isEqual(v.digest, digest(previous)) ? v : null;
+	}
+
+	/**
+	 * Get something to store the validators from the response along with the
+	 * digest of the complete listing, or <code>null</code> if there is nothing
+	 * to validate with.
+	 */
+	private Consumer<byte[]> storer(String principal, HttpResponse<?> response) {
+		var etag = response.headers().firstValue("ETag").orElse(null);
+		var lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+		if (maxValidators == 0 || (etag == null && lastModified == null)) {
+			synchronized (validators) {
+				validators.remove(principal);
+			}
+			return null;
+		}
+		return digest -> {
+			var v = new Validators(etag, lastModified, digest);
+			synchronized (validators) {
+				validators.put(principal, v);
 			}
 		};
+	}
 
+	private static byte[] digest(List<String> keys) {
+		var md = AuthenticatorClient.SHA256.get();
+		md.reset();
+		for (var key : keys) {
+			update(md, key);
+		}
+		return md.digest();
 	}
 
+	private static void update(MessageDigest md, String key) {
+		md.update(key.getBytes(StandardCharsets.UTF_8));
+		md.update((byte) '\n');
+	}
+
+	private static InputStream decode(HttpResponse<?> response, InputStream in) throws IOException {
+		var encoding = response.headers().firstValue("Content-Encoding").orElse("identity");
+		if (encoding.equalsIgnoreCase("gzip")) {
+			return new GZIPInputStream(in);
+		} else if (encoding.equalsIgnoreCase("identity")) {
+			return in;
+		}
+		in.close();
+		throw new IOException(String.format("Unsupported content encoding %s.", encoding));
+	}
+
+	private static List<String> parseKeys(String body, String hostname) throws IOException {
+		var reader = new BufferedReader(new StringReader(body));
+		var key = reader.readLine();
+		if (key == null || !key.startsWith("# Authorized")) {
+			throw new IOException(String.format("Unable to list users authorized keys from %s", hostname));
+		}
+		var keys = new ArrayList<String>();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.equals("") || line.startsWith("#"))
+				continue;
+			keys.add(line);
+		}
+		return keys;
+	}
+
+	/**
+	 * Reads keys from the response as they arrive, so the first key may be used
+	 * before the whole response has been received. The response is closed when
+	 * the last key has been read, or when the iterator is closed. If the whole
+	 * response was read, a digest of the keys is passed to the completion
+	 * consumer (if any).
+	 */
+	private final static class KeyIterator implements Iterator<String>, Closeable {
+
+		private final AuthenticatorClient client;
+		private final BufferedReader reader;
+		private final Consumer<byte[]> completion;
+		private final MessageDigest digest;
+		private String next = null;
+		private boolean closed;
+
+		private KeyIterator(AuthenticatorClient client, BufferedReader reader, Consumer<byte[]> completion) {
+			this.client = client;
+			this.reader = reader;
+			this.completion = completion;
+			this.digest = completion == null ? null : newDigest();
+		}
+
+		private static MessageDigest newDigest() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e.getMessage(), e);
+			}
+		}
+
+		void checkNext() {
+			if (next == null && !closed) {
+				String line;
+				try {
+					while ((line = reader.readLine()) != null) {
+						if (client.isDebug()) {
+							client.getLog().info(line);
+						}
+						line = line.trim();
+						if (line.equals("") || line.startsWith("#"))
+							continue;
+						next = line;
+						if (digest != null) {
+							update(digest, line);
+						}
+						return;
+					}
+					close();
+					if (completion != null) {
+						completion.accept(digest.digest());
+					}
+				} catch (IOException ioe) {
+					close();
+					throw new IllegalStateException("Failed to list keys.", ioe);
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			checkNext();
+			return next != null;
+		}
+
+		@Override
+		public String next() {
+			try {
+				checkNext();
+				return next;
+			} finally {
+				next = null;
+			}
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				try {
+					reader.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
 }
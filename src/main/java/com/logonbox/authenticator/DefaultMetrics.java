@@ -0,0 +1,102 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link Metrics} that keep a {@link LatencyHistogram} for each phase,
+ * algorithm and outcome. Use {@link #snapshot()} to read them, for example to
+ * export to a monitoring system.
+ */
+public class DefaultMetrics implements Metrics {
+
+	/** Algorithm name used when the algorithm is not known */
+	public final static String NO_ALGORITHM = "none";
+
+	private final Map<Phase, Map<String, LatencyHistogram[]>> histograms = new EnumMap<>(Phase.class);
+
+	public DefaultMetrics() {
+		for (var phase : Phase.values()) {
+			histograms.put(phase, new ConcurrentHashMap<>());
+		}
+	}
+
+	@Override
+	public void record(Phase phase, String algorithm, Outcome outcome, long nanos) {
+		var byOutcome = histograms.get(phase).computeIfAbsent(algorithm == null ? NO_ALGORITHM : algorithm, k -> {
+			var h = new LatencyHistogram[Outcome.values().length];
+			for (int i = 0; i < h.length; i++) {
+				h[i] = new LatencyHistogram();
+			}
+			return h;
+		});
+		byOutcome[outcome.ordinal()].record(nanos);
+	}
+
+	/**
+	 * Get a copy of every histogram that has had anything recorded, in phase
+	 * order.
+	 *
+	 * @return snapshots
+	 */
+	public List<MetricSnapshot> snapshot() {
+		var snapshots = new ArrayList<MetricSnapshot>();
+		for (var phase : histograms.entrySet()) {
+			for (var algorithm : phase.getValue().entrySet()) {
+				for (var outcome : Outcome.values()) {
+					var histogram = algorithm.getValue()[outcome.ordinal()].snapshot();
+					if (histogram.getCount() > 0) {
+						snapshots.add(new MetricSnapshot(phase.getKey(), algorithm.getKey(), outcome, histogram));
+					}
+				}
+			}
+		}
+		return Collections.unmodifiableList(snapshots);
+	}
+
+	/**
+	 * Get a copy of the histogram for a phase, algorithm and outcome.
+	 *
+	 * @param phase     phase
+	 * @param algorithm algorithm, or <code>null</code> if not known
+	 * @param outcome   outcome
+	 * @return snapshot, empty if nothing has been recorded
+	 */
+	public LatencyHistogram.Snapshot snapshot(Phase phase, String algorithm, Outcome outcome) {
+		var byOutcome = histograms.get(phase).get(algorithm == null ? NO_ALGORITHM : algorithm);
+		return byOutcome == null ? new LatencyHistogram().snapshot() : byOutcome[outcome.ordinal()].snapshot();
+	}
+
+	@Override
+	public String toString() {
+		var b = new StringBuilder();
+		for (var s : snapshot()) {
+			b.append(s).append(System.lineSeparator());
+		}
+		return b.toString();
+	}
+}
@@ -25,19 +25,23 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
 import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 public class DefaultSignatureGenerator implements SignatureGenerator {
 	
-	private final String host;
-	private final int port;
+	private final EndpointGroup endpoints;
 	
 	public DefaultSignatureGenerator(KeySource keySource) {
-		this(keySource.getHostname(), keySource.getPort());
+		this(keySource.getEndpoints() == null
+				? new EndpointGroup(new Endpoint(keySource.getHostname(), keySource.getPort()))
+				: keySource.getEndpoints());
 	}
 
 	public DefaultSignatureGenerator(String host) {
@@ -45,74 +49,152 @@ public class DefaultSignatureGenerator implements SignatureGenerator {
 	}
 
 	public DefaultSignatureGenerator(String host, int port) {
-		this.host = host;
-		this.port = port;
+		this(new EndpointGroup(new Endpoint(host, port)));
+	}
+
+	/**
+	 * Constructor for a directory served by a number of LogonBox servers.
+	 * Signature requests are sent to whichever is performing best. As they
+	 * cannot safely be repeated, they are only retried on another server if they
+	 * could not connect.
+	 *
+	 * @param endpoints endpoints
+	 */
+	public DefaultSignatureGenerator(EndpointGroup endpoints) {
+		this.endpoints = endpoints;
 	}
 	
 	public String getHostname() {
-		return host;
+		return endpoints.getPrimary().getHostname();
 	}
 
 	public int getPort() {
-		return port;
+		return endpoints.getPrimary().getPort();
+	}
+
+	public EndpointGroup getEndpoints() {
+		return endpoints;
 	}
 
 	public byte[] requestSignature(AuthenticatorClient client, String principal, String fingerprint, String text,
 			String buttonText, String encodedPayload, int flags) throws IOException {
 
+		var event = new SignatureRequestEvent();
+		event.begin();
+		HttpResponse<String> response = null;
+		var success = false;
 		try {
-			var builder = new StringBuilder();
-			builder.append("username=");
-			builder.append(URLEncoder.encode(principal, StandardCharsets.UTF_8));
-			builder.append("&fingerprint=");
-			builder.append(URLEncoder.encode(fingerprint, StandardCharsets.UTF_8));
-			builder.append("&remoteName=");
-			builder.append(URLEncoder.encode(client.getRemoteName(), StandardCharsets.UTF_8));
-			builder.append("&text=");
-			builder.append(URLEncoder.encode(text, StandardCharsets.UTF_8));
-			builder.append("&authorizeText=");
-			builder.append(URLEncoder.encode(buttonText, StandardCharsets.UTF_8));
-			builder.append("&flags=");
-			builder.append(String.valueOf(flags));
-			builder.append("&payload=");
-			builder.append(encodedPayload);
-
-			if (client.isDebug()) {
-				client.getLog().info(String.format("Request data \"%s\"", builder.toString()));
+			response = endpoints.send(client,
+					endpoint -> newRequest(client, endpoint, principal, fingerprint, text, buttonText, encodedPayload,
+							flags),
+					BodyHandlers.ofString(), false);
+			var signature = processResponse(client, response);
+			success = true;
+			return signature;
+		} catch (IllegalArgumentException | URISyntaxException | InterruptedException e) {
+			throw new IOException(e.getMessage(), e);
+		} finally {
+			commit(event, principal, fingerprint, response, success);
+		}
+	}
+
+	@Override
+	public CompletableFuture<byte[]> requestSignatureAsync(AuthenticatorClient client, String principal,
+			String fingerprint, String text, String buttonText, String encodedPayload, int flags) {
+		var event = new SignatureRequestEvent();
+		event.begin();
+		return endpoints.sendAsync(client,
+				endpoint -> newRequest(client, endpoint, principal, fingerprint, text, buttonText, encodedPayload,
+						flags),
+				BodyHandlers.ofString(), false).handle((response, ex) -> {
+					if (ex != null) {
+						commit(event, principal, fingerprint, null, false);
+						var cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+						if (cause instanceof IllegalArgumentException || cause instanceof URISyntaxException) {
+							throw new CompletionException(new IOException(cause.getMessage(), cause));
+						}
+						throw new CompletionException(cause);
+					}
+					var success = false;
+					try {
+						var signature = processResponse(client, response);
+						success = true;
+						return signature;
+					} catch (IOException e) {
+						throw new CompletionException(e);
+					} catch (IllegalArgumentException e) {
+						throw new CompletionException(new IOException(e.getMessage(), e));
+					} finally {
+						commit(event, principal, fingerprint, response, success);
+					}
+				});
+	}
+
+	private static void commit(SignatureRequestEvent event, String principal, String fingerprint,
+			HttpResponse<String> response, boolean success) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.principalHash = AuthenticatorEvent.hash(principal);
+			event.fingerprint = fingerprint;
+			event.success = success;
+			if (response != null) {
+				event.host = response.uri().getHost();
+				event.status = response.statusCode();
+				event.bytes = response.body().getBytes(StandardCharsets.UTF_8).length;
 			}
+			event.commit();
+		}
+	}
 
-			var request = HttpRequest.newBuilder()
-					.uri(new URI(String.format("https://%s:%d/app/api/authenticator/signPayload", host,
-							port)))
-					.header("Content-Type", "application/x-www-form-urlencoded")
-					.POST(HttpRequest.BodyPublishers.ofString(builder.toString())).build();
+	private HttpRequest newRequest(AuthenticatorClient client, Endpoint endpoint, String principal,
+			String fingerprint, String text, String buttonText, String encodedPayload, int flags)
+			throws URISyntaxException {
+		var builder = new StringBuilder();
+		builder.append("username=");
+		builder.append(URLEncoder.encode(principal, StandardCharsets.UTF_8));
+		builder.append("&fingerprint=");
+		builder.append(URLEncoder.encode(fingerprint, StandardCharsets.UTF_8));
+		builder.append("&remoteName=");
+		builder.append(URLEncoder.encode(client.getRemoteName(), StandardCharsets.UTF_8));
+		builder.append("&text=");
+		builder.append(URLEncoder.encode(text, StandardCharsets.UTF_8));
+		builder.append("&authorizeText=");
+		builder.append(URLEncoder.encode(buttonText, StandardCharsets.UTF_8));
+		builder.append("&flags=");
+		builder.append(String.valueOf(flags));
+		builder.append("&payload=");
+		builder.append(encodedPayload);
+
+		if (client.isDebug()) {
+			client.getLog().info(String.format("Request data \"%s\"", builder.toString()));
+		}
 
-			var httpClient = client.newHttpClientBuilder().build();
-			var response = httpClient.send(request, BodyHandlers.ofString());
+		return client.newHttpRequestBuilder(new URI(String.format("https://%s:%d/app/api/authenticator/signPayload",
+						endpoint.getHostname(), endpoint.getPort())))
+				.header("Content-Type", "application/x-www-form-urlencoded")
+				.POST(HttpRequest.BodyPublishers.ofString(builder.toString())).build();
+	}
 
-			if (client.isDebug()) {
-				client.getLog().info(String.format("Received %s response", response.statusCode()));
-				client.getLog().info(response.body());
-			}
-			var result = new ObjectMapper().readValue(response.body(), SignatureResponse.class);
+	private byte[] processResponse(AuthenticatorClient client, HttpResponse<String> response) throws IOException {
+		if (client.isDebug()) {
+			client.getLog().info(String.format("Received %s response", response.statusCode()));
+			client.getLog().info(response.body());
+		}
+		var result = new ObjectMapper().readValue(response.body(), SignatureResponse.class);
 
-			if (!result.isSuccess()) {
-				throw new IOException(result.getMessage());
-			}
+		if (!result.isSuccess()) {
+			throw new IOException(result.getMessage());
+		}
 
-			if ("".equals(result.getSignature())) {
-				try (var reader = new ByteArrayReader(Base64.getUrlDecoder().decode(result.getResponse()))) {
-					var success = reader.readBoolean();
-					if (!success) {
-						throw new IOException(reader.readString());
-					}
-				}
-				throw new IOException("The server did not respond with a valid response!");
+		if ("".equals(result.getSignature())) {
+			var reader = new ByteBufferReader(Base64.getUrlDecoder().decode(result.getResponse()));
+			var success = reader.readBoolean();
+			if (!success) {
+				throw new IOException(reader.readString());
 			}
-
-			return Base64.getUrlDecoder().decode(result.getSignature());
-		} catch (IllegalArgumentException | URISyntaxException | InterruptedException e) {
-			throw new IOException(e.getMessage(), e);
+			throw new IOException("The server did not respond with a valid response!");
 		}
+
+		return Base64.getUrlDecoder().decode(result.getSignature());
 	}
 }
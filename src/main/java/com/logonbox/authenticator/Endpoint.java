@@ -0,0 +1,139 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single LogonBox server that requests may be sent to, as part of an
+ * {@link EndpointGroup}. Tracks the latency of recent requests to the server,
+ * how many are in progress, and its {@link CircuitBreaker}.
+ */
+public final class Endpoint {
+
+	/** Weight given to the latest sample in the moving average */
+	private final static double DECAY = 0.3;
+
+	/** Time taken for the latency to be half forgotten while it is not updated */
+	final static long IDLE_HALF_LIFE = Duration.ofSeconds(30).toNanos();
+
+	private final String hostname;
+	private final int port;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final CircuitBreaker circuitBreaker = new CircuitBreaker(this);
+
+	private double latency;
+	private long updated;
+
+	public Endpoint(String hostname) {
+		this(hostname, 443);
+	}
+
+	public Endpoint(String hostname, int port) {
+		this.hostname = hostname;
+		this.port = port;
+	}
+
+	public String getHostname() {
+		return hostname;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Get the exponentially weighted moving average of the time taken by
+	 * requests to this endpoint, as last measured. Only requests that are safe
+	 * to repeat are measured, as others (such as signature requests) wait for
+	 * the user.
+	 *
+	 * @return latency
+	 */
+	public synchronized Duration getLatency() {
+		return Duration.ofNanos((long) latency);
+	}
+
+	/**
+	 * Get the number of requests to this endpoint in progress.
+	 *
+	 * @return in flight
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(hostname, port);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		var other = (Endpoint) obj;
+		return Objects.equals(hostname, other.hostname) && port == other.port;
+	}
+
+	@Override
+	public String toString() {
+		return hostname + ":" + port;
+	}
+
+	/**
+	 * Get a score for choosing between endpoints, lower being better. Endpoints
+	 * that have not been used yet score best, so they are tried, and the latency
+	 * of endpoints not used recently is gradually forgotten, so that one that was
+	 * slow for a while is tried again.
+	 */
+	synchronized double score(long now) {
+		return (latency(now) + 1) * (inFlight.get() + 1);
+	}
+
+	void started() {
+		inFlight.incrementAndGet();
+	}
+
+	void finished() {
+		inFlight.decrementAndGet();
+	}
+
+	synchronized void success(long nanos, long now) {
+		var current = latency(now);
+		latency = current == 0 ? nanos : current + DECAY * (nanos - current);
+		updated = now;
+	}
+
+	private double latency(long now) {
+		var idle = now - updated;
+		return idle <= 0 ? latency : latency * Math.pow(0.5, (double) idle / IDLE_HALF_LIFE);
+	}
+}
@@ -0,0 +1,502 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.URISyntaxException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import com.logonbox.authenticator.ConcurrencyLimiter.Permit;
+
+/**
+ * A group of LogonBox servers ({@link Endpoint}s) serving the same directory,
+ * for example a number of replicas. Each request is sent to the better of two
+ * randomly chosen endpoints, judged by the moving average of their latency
+ * (measured from requests that are safe to repeat, and gradually forgotten
+ * while not updated) and the number of requests they have in progress.
+ * <p>
+ * Each endpoint has a {@link CircuitBreaker}, which opens when requests to it
+ * are failing or slow. Signature requests wait for the user, so they are
+ * never counted as slow, and timing out while waiting is not counted as a
+ * failure. No requests are sent to an endpoint while its breaker
+ * is open, and if the breakers of all endpoints are open, requests fail
+ * immediately with a {@link CircuitBreakerOpenException}. Requests that are
+ * safe to repeat (such as listing keys) are retried on another endpoint if
+ * they fail. Other requests are only retried if they could not connect.
+ * <p>
+ * The first endpoint is the primary one, and is used where a single server
+ * must be named, such as the URL returned by
+ * {@link AuthenticatorRequest#getSignUrl()}.
+ */
+public class EndpointGroup {
+
+	public final static int DEFAULT_MAX_ATTEMPTS = 3;
+
+	/**
+	 * Creates a request for a particular endpoint.
+	 */
+	interface RequestFactory {
+		HttpRequest create(Endpoint endpoint) throws URISyntaxException;
+	}
+
+	private final List<Endpoint> endpoints;
+	private final LongSupplier ticker;
+	private final List<CircuitBreakerListener> listeners = new CopyOnWriteArrayList<>();
+	private CircuitBreakerPolicy circuitBreakerPolicy = new CircuitBreakerPolicy();
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+	public EndpointGroup(Endpoint... endpoints) {
+		this(Arrays.asList(endpoints));
+	}
+
+	public EndpointGroup(List<Endpoint> endpoints) {
+		this(endpoints, System::nanoTime);
+	}
+
+	EndpointGroup(List<Endpoint> endpoints, LongSupplier ticker) {
+		if (endpoints.isEmpty()) {
+			throw new IllegalArgumentException("At least one endpoint is required.");
+		}
+		this.endpoints = Collections.unmodifiableList(new ArrayList<>(endpoints));
+		this.ticker = ticker;
+	}
+
+	public List<Endpoint> getEndpoints() {
+		return endpoints;
+	}
+
+	/**
+	 * Get the primary endpoint.
+	 *
+	 * @return primary endpoint
+	 */
+	public Endpoint getPrimary() {
+		return endpoints.get(0);
+	}
+
+	public CircuitBreakerPolicy getCircuitBreakerPolicy() {
+		return circuitBreakerPolicy;
+	}
+
+	/**
+	 * Set when the circuit breakers of the endpoints in this group open and
+	 * close.
+	 *
+	 * @param circuitBreakerPolicy circuit breaker policy
+	 */
+	public void setCircuitBreakerPolicy(CircuitBreakerPolicy circuitBreakerPolicy) {
+		this.circuitBreakerPolicy = circuitBreakerPolicy;
+	}
+
+	/**
+	 * Add a listener to be told when the circuit breaker of any endpoint in this
+	 * group changes state.
+	 *
+	 * @param listener listener
+	 */
+	public void addCircuitBreakerListener(CircuitBreakerListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeCircuitBreakerListener(CircuitBreakerListener listener) {
+		listeners.remove(listener);
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Set the maximum number of endpoints a request is tried on.
+	 *
+	 * @param maxAttempts maximum attempts
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("Maximum attempts must be at least 1.");
+		}
+		this.maxAttempts = maxAttempts;
+	}
+
+	@Override
+	public String toString() {
+		return endpoints.toString();
+	}
+
+	/**
+	 * Choose an endpoint for a request, avoiding any already tried and any whose
+	 * circuit breaker will not allow it.
+	 *
+	 * @param tried endpoints already tried
+	 * @return endpoint, or <code>null</code> if none may be used
+	 */
+	Endpoint select(Set<Endpoint> tried) {
+		var now = ticker.getAsLong();
+		var candidates = candidates(tried, now);
+		while (!candidates.isEmpty()) {
+			var endpoint = choose(candidates, now);
+			if (endpoint.getCircuitBreaker().tryAcquire(now, this)) {
+				return endpoint;
+			}
+			/* Another request took the last trial, try the others */
+			candidates.remove(endpoint);
+		}
+		return null;
+	}
+
+	void stateChanged(Endpoint endpoint, CircuitBreaker.State from, CircuitBreaker.State to) {
+		if (from != to) {
+			for (var listener : listeners) {
+				listener.stateChanged(endpoint, from, to);
+			}
+		}
+	}
+
+	/**
+	 * Send a request to an endpoint, retrying on other endpoints if it fails and
+	 * it is safe to do so. A response with a 5xx status counts as a failure, but
+	 * is returned if there is nowhere else to try.
+	 */
+	<T> HttpResponse<T> send(AuthenticatorClient client, RequestFactory factory, BodyHandler<T> handler,
+			boolean idempotent) throws IOException, InterruptedException, URISyntaxException {
+		var limiter = client.getConcurrencyLimiter();
+		var tried = new HashSet<Endpoint>();
+		while (true) {
+			var attempt = attempt(tried, limiter == null ? Permit.NONE : limiter.acquire(idempotent), idempotent);
+			HttpRequest request;
+			try {
+				request = factory.create(attempt.endpoint);
+			} catch (URISyntaxException | RuntimeException e) {
+				attempt.abandoned();
+				throw e;
+			}
+			try {
+				var response = client.getHttpClient().send(request, handler);
+				if (attempt.completed(response) && idempotent && canRetry(tried)) {
+					discard(response);
+					continue;
+				}
+				return response;
+			} catch (IOException ioe) {
+				attempt.failed(ioe);
+				if (!(idempotent || isConnectFailure(ioe)) || !canRetry(tried)) {
+					throw ioe;
+				}
+				if (client.isDebug()) {
+					client.getLog().info(String.format("Request to %s failed, retrying. %s", attempt.endpoint, ioe));
+				}
+			} catch (InterruptedException | RuntimeException e) {
+				attempt.abandoned();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Asynchronous version of
+	 * {@link #send(AuthenticatorClient, RequestFactory, BodyHandler, boolean)}.
+	 */
+	<T> CompletableFuture<HttpResponse<T>> sendAsync(AuthenticatorClient client, RequestFactory factory,
+			BodyHandler<T> handler, boolean idempotent) {
+		return sendAsync(client, factory, handler, idempotent, new HashSet<>());
+	}
+
+	private <T> CompletableFuture<HttpResponse<T>> sendAsync(AuthenticatorClient client, RequestFactory factory,
+			BodyHandler<T> handler, boolean idempotent, Set<Endpoint> tried) {
+		var limiter = client.getConcurrencyLimiter();
+		var permit = limiter == null ? CompletableFuture.completedFuture(Permit.NONE)
+				: limiter.acquireAsync(idempotent);
+		return permit.thenCompose(p -> {
+			Attempt attempt;
+			HttpRequest request;
+			try {
+				attempt = attempt(tried, p, idempotent);
+			} catch (CircuitBreakerOpenException e) {
+				return CompletableFuture.failedFuture(e);
+			}
+			try {
+				request = factory.create(attempt.endpoint);
+			} catch (URISyntaxException | RuntimeException e) {
+				attempt.abandoned();
+				return CompletableFuture.failedFuture(e);
+			}
+			return client.getHttpClient().sendAsync(request, handler).handle((response, ex) -> {
+				if (ex == null) {
+					if (attempt.completed(response) && idempotent && canRetry(tried)) {
+						discard(response);
+						return sendAsync(client, factory, handler, idempotent, tried);
+					}
+					return CompletableFuture.completedFuture(response);
+				}
+				var cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+				if (!(cause instanceof IOException)) {
+					attempt.abandoned();
+				} else {
+					attempt.failed((IOException) cause);
+					if ((idempotent || isConnectFailure((IOException) cause)) && canRetry(tried)) {
+						if (client.isDebug()) {
+							client.getLog().info(
+									String.format("Request to %s failed, retrying. %s", attempt.endpoint, cause));
+						}
+						return sendAsync(client, factory, handler, idempotent, tried);
+					}
+				}
+				return CompletableFuture.<HttpResponse<T>>failedFuture(cause);
+			}).thenCompose(f -> f);
+		});
+	}
+
+	/**
+	 * Send a request that is safe to repeat, hedging it according to the policy.
+	 * If there is no answer in time, a second request is sent to an endpoint not
+	 * yet tried, or to the same endpoint if there is no other, and whichever
+	 * answers first is used. The other is abandoned, and its response is closed
+	 * as soon as it arrives, so that no more of it is transferred. If no endpoint
+	 * may be used, there is no hedge and nothing is taken from the budget.
+	 */
+	<T> CompletableFuture<HttpResponse<T>> sendHedged(AuthenticatorClient client, RequestFactory factory,
+			BodyHandler<T> handler, HedgingPolicy hedging) {
+		var delay = hedging.requested();
+		if (delay < 0) {
+			return timed(sendAsync(client, factory, handler, true), hedging);
+		}
+
+		var result = new CompletableFuture<HttpResponse<T>>();
+		var outstanding = new AtomicInteger(1);
+		var answered = new AtomicBoolean();
+		var tried = ConcurrentHashMap.<Endpoint>newKeySet();
+		timed(sendAsync(client, factory, handler, true, tried), hedging)
+				.whenComplete((response, ex) -> settle(result, response, ex, outstanding, answered, null));
+
+		CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(() -> {
+			if (answered.get() || result.isDone()) {
+				return;
+			}
+			var exclude = new HashSet<>(tried);
+			var now = ticker.getAsLong();
+			if (candidates(exclude, now).isEmpty()) {
+				/* Nowhere else to send it, so send it to the same endpoint again */
+				exclude.clear();
+				if (candidates(exclude, now).isEmpty()) {
+					return;
+				}
+			}
+			if (!hedging.tryHedge()) {
+				return;
+			}
+			outstanding.incrementAndGet();
+			if (client.isDebug()) {
+				client.getLog().info(String.format("No response after %dms, hedging request.",
+						TimeUnit.NANOSECONDS.toMillis(delay)));
+			}
+			timed(sendAsync(client, factory, handler, true, exclude), hedging).whenComplete(
+					(response, ex) -> settle(result, response, ex, outstanding, answered, hedging::hedgeWon));
+		});
+		return result;
+	}
+
+	/**
+	 * Complete the result with a response if it is the first, or with a failure
+	 * if nothing else is outstanding. If this response is the one used, the
+	 * win is recorded before the result is completed, so that it is seen by
+	 * the caller.
+	 */
+	private static <T> void settle(CompletableFuture<HttpResponse<T>> result, HttpResponse<T> response,
+			Throwable ex, AtomicInteger outstanding, AtomicBoolean answered, Runnable won) {
+		if (ex == null) {
+			if (answered.compareAndSet(false, true)) {
+				if (won != null) {
+					won.run();
+				}
+				if (!result.complete(response)) {
+					/* Cancelled by the caller */
+					discard(response);
+				}
+			} else {
+				discard(response);
+			}
+		} else if (outstanding.decrementAndGet() == 0) {
+			result.completeExceptionally(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+		}
+	}
+
+	private <T> CompletableFuture<HttpResponse<T>> timed(CompletableFuture<HttpResponse<T>> future,
+			HedgingPolicy hedging) {
+		var started = ticker.getAsLong();
+		return future.whenComplete((response, ex) -> {
+			if (ex == null && !isServerError(response)) {
+				hedging.record(ticker.getAsLong() - started);
+			}
+		});
+	}
+
+	/**
+	 * Start an attempt at sending a request, choosing the endpoint.
+	 */
+	private Attempt attempt(Set<Endpoint> tried, Permit permit, boolean timed) throws CircuitBreakerOpenException {
+		var endpoint = select(tried);
+		if (endpoint == null) {
+			permit.ignore();
+			throw new CircuitBreakerOpenException(endpoints);
+		}
+		tried.add(endpoint);
+		return new Attempt(endpoint, permit, timed);
+	}
+
+	private boolean canRetry(Set<Endpoint> tried) {
+		return tried.size() < Math.min(maxAttempts, endpoints.size())
+				&& !candidates(tried, ticker.getAsLong()).isEmpty();
+	}
+
+	private List<Endpoint> candidates(Set<Endpoint> tried, long now) {
+		var candidates = new ArrayList<Endpoint>(endpoints.size());
+		for (var endpoint : endpoints) {
+			if (!tried.contains(endpoint) && endpoint.getCircuitBreaker().isAvailable(now, circuitBreakerPolicy)) {
+				candidates.add(endpoint);
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * Choose the better of two random candidates.
+	 */
+	private static Endpoint choose(List<Endpoint> candidates, long now) {
+		if (candidates.size() == 1) {
+			return candidates.get(0);
+		}
+		var rnd = ThreadLocalRandom.current();
+		var a = rnd.nextInt(candidates.size());
+		var b = rnd.nextInt(candidates.size() - 1);
+		if (b >= a) {
+			b++;
+		}
+		var first = candidates.get(a);
+		var second = candidates.get(b);
+		return first.score(now) <= second.score(now) ? first : second;
+	}
+
+	private static boolean isServerError(HttpResponse<?> response) {
+		return response.statusCode() >= 500;
+	}
+
+	private static boolean isConnectFailure(IOException ioe) {
+		/* The request was never sent, so it is safe to send again */
+		return ioe instanceof ConnectException || ioe instanceof HttpConnectTimeoutException
+				|| ioe.getCause() instanceof ConnectException;
+	}
+
+	private static void discard(HttpResponse<?> response) {
+		if (response.body() instanceof InputStream) {
+			try {
+				((InputStream) response.body()).close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * A single attempt at sending a request to an endpoint, recording its
+	 * outcome with the endpoint, its circuit breaker and the concurrency limiter.
+	 */
+	private final class Attempt {
+		private final Endpoint endpoint;
+		private final Permit permit;
+		private final boolean timed;
+		private final long started;
+
+		private Attempt(Endpoint endpoint, Permit permit, boolean timed) {
+			this.endpoint = endpoint;
+			this.permit = permit;
+			this.timed = timed;
+			started = ticker.getAsLong();
+			endpoint.started();
+		}
+
+		/**
+		 * Record a response, returning whether it was a failure.
+		 */
+		boolean completed(HttpResponse<?> response) {
+			if (isServerError(response)) {
+				failed();
+				return true;
+			}
+			endpoint.finished();
+			var now = ticker.getAsLong();
+			if (timed) {
+				endpoint.success(now - started, now);
+			}
+			endpoint.getCircuitBreaker().record(now, timed ? now - started : 0, false, EndpointGroup.this);
+			permit.success();
+			return false;
+		}
+
+		/**
+		 * Record a request that could not be completed. A request that is not timed
+		 * timing out means the user did not respond in time, which is not the fault
+		 * of the server.
+		 */
+		void failed(IOException ioe) {
+			if (timed || !(ioe instanceof HttpTimeoutException) || ioe instanceof HttpConnectTimeoutException) {
+				failed();
+				return;
+			}
+			endpoint.finished();
+			endpoint.getCircuitBreaker().record(ticker.getAsLong(), 0, false, EndpointGroup.this);
+			permit.ignore();
+		}
+
+		void failed() {
+			endpoint.finished();
+			var now = ticker.getAsLong();
+			endpoint.getCircuitBreaker().record(now, now - started, true, EndpointGroup.this);
+			permit.dropped();
+		}
+
+		void abandoned() {
+			endpoint.finished();
+			endpoint.getCircuitBreaker().release();
+			permit.ignore();
+		}
+	}
+}
@@ -0,0 +1,391 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * An {@link AuthorizedKeyStore} that keeps all keys in memory, and records
+ * every change in an append-only file. When opened, the whole file is read in
+ * one go to restore the keys. As the file grows with replaced and removed
+ * entries, it is compacted in the background by writing the current keys to a
+ * new file that replaces it.
+ * <p>
+ * Each record is checksummed, so a record that was only partly written (for
+ * example, when the process was killed) is discarded when the file is next
+ * opened.
+ */
+public class FileKeyStore implements AuthorizedKeyStore {
+
+	public final static int DEFAULT_MIN_COMPACT_RECORDS = 1000;
+
+	private final static byte[] MAGIC = "LBKS".getBytes(StandardCharsets.US_ASCII);
+	private final static int VERSION = 1;
+	private final static int HEADER_LENGTH = MAGIC.length + 4;
+
+	private final Path file;
+	private final Map<String, StoredKeys> keys = new ConcurrentHashMap<>();
+	private final Object lock = new Object();
+	private FileChannel channel;
+	private long records;
+	private List<byte[]> pending;
+	private ExecutorService compactor;
+	private int minCompactRecords = DEFAULT_MIN_COMPACT_RECORDS;
+	private boolean compactionScheduled;
+	private boolean closed;
+
+	/**
+	 * Open (or create) a store.
+	 *
+	 * @param file file
+	 * @throws IOException on error
+	 */
+	public FileKeyStore(Path file) throws IOException {
+		this.file = file;
+		var length = load();
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			if (length == 0) {
+				channel.write(header());
+			} else {
+				/* Discard anything after the last complete record */
+				channel.truncate(length);
+				channel.position(length);
+			}
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	public int getMinCompactRecords() {
+		return minCompactRecords;
+	}
+
+	/**
+	 * Set the minimum number of records the file must contain before it is
+	 * compacted. Compaction happens when more than half of the records are
+	 * obsolete.
+	 *
+	 * @param minCompactRecords minimum records
+	 */
+	public void setMinCompactRecords(int minCompactRecords) {
+		this.minCompactRecords = minCompactRecords;
+	}
+
+	@Override
+	public StoredKeys get(String principal) {
+		return keys.get(principal);
+	}
+
+	@Override
+	public void put(String principal, StoredKeys stored) throws IOException {
+		synchronized (lock) {
+			checkOpen();
+			append(putRecord(principal, stored));
+			keys.put(principal, stored);
+		}
+	}
+
+	@Override
+	public void remove(String principal) throws IOException {
+		synchronized (lock) {
+			checkOpen();
+			if (keys.containsKey(principal)) {
+				append(removeRecord(principal));
+				keys.remove(principal);
+			}
+		}
+	}
+
+	@Override
+	public void clear() throws IOException {
+		synchronized (lock) {
+			checkOpen();
+			for (var principal : new ArrayList<>(keys.keySet())) {
+				append(removeRecord(principal));
+				keys.remove(principal);
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		return keys.size();
+	}
+
+	/**
+	 * Get the number of records in the file, including those for keys that have
+	 * since been replaced or removed.
+	 *
+	 * @return records
+	 */
+	public long getRecords() {
+		synchronized (lock) {
+			return records;
+		}
+	}
+
+	/**
+	 * Compact the file now, in the calling thread, so that it contains only the
+	 * current keys.
+	 *
+	 * @throws IOException on error
+	 */
+	public void compact() throws IOException {
+		Map<String, StoredKeys> snapshot;
+		synchronized (lock) {
+			checkOpen();
+			if (pending != null) {
+				/* Already compacting */
+				return;
+			}
+			snapshot = new HashMap<>(keys);
+			pending = new ArrayList<>();
+		}
+
+		var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			/* Appends continue to the current file meanwhile, and are copied to the new one at the end */
+			var newChannel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				newChannel.write(header());
+				for (var en : snapshot.entrySet()) {
+					newChannel.write(ByteBuffer.wrap(putRecord(en.getKey(), en.getValue())));
+				}
+				synchronized (lock) {
+					checkOpen();
+					for (var record : pending) {
+						newChannel.write(ByteBuffer.wrap(record));
+					}
+					newChannel.force(true);
+					channel.close();
+					try {
+						Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					} catch (IOException | RuntimeException e) {
+						channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+						throw e;
+					}
+					channel = newChannel;
+					records = snapshot.size() + pending.size();
+					pending = null;
+				}
+			} catch (IOException | RuntimeException e) {
+				newChannel.close();
+				throw e;
+			}
+		} catch (IOException | RuntimeException e) {
+			synchronized (lock) {
+				pending = null;
+			}
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		ExecutorService executor;
+		synchronized (lock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			executor = compactor;
+			compactor = null;
+			try {
+				channel.force(false);
+			} finally {
+				channel.close();
+			}
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Store is closed.");
+		}
+	}
+
+	private void append(byte[] record) throws IOException {
+		channel.write(ByteBuffer.wrap(record));
+		records++;
+		if (pending != null) {
+			pending.add(record);
+		} else {
+			compactIfNeeded();
+		}
+	}
+
+	/**
+	 * Start compacting in the background if enough of the file is unused.
+	 */
+	private void compactIfNeeded() {
+		if (!closed && !compactionScheduled && records >= minCompactRecords && records > keys.size() * 2L) {
+			if (compactor == null) {
+				compactor = Executors.newSingleThreadExecutor(r -> {
+					var t = new Thread(r, "FileKeyStoreCompactor");
+					t.setDaemon(true);
+					return t;
+				});
+			}
+			compactionScheduled = true;
+			compactor.execute(() -> {
+				var compacted = false;
+				try {
+					compact();
+					compacted = true;
+				} catch (IOException e) {
+					/* Try again on a later append */
+				} finally {
+					synchronized (lock) {
+						compactionScheduled = false;
+						if (compacted) {
+							/* Records appended meanwhile may need compacting too */
+							compactIfNeeded();
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Read the whole file and restore the keys from it.
+	 *
+	 * @return length of file up to the end of the last complete record, or zero
+	 *         if there is no file (or it is empty)
+	 */
+	private long load() throws IOException {
+		if (!Files.exists(file)) {
+			return 0;
+		}
+		var data = Files.readAllBytes(file);
+		if (data.length == 0) {
+			return 0;
+		}
+		if (data.length < HEADER_LENGTH || data[0] != MAGIC[0] || data[1] != MAGIC[1] || data[2] != MAGIC[2]
+				|| data[3] != MAGIC[3]) {
+			throw new IOException(String.format("%s is not a key store.", file));
+		}
+		var reader = new ByteBufferReader(ByteBuffer.wrap(data, MAGIC.length, data.length - MAGIC.length));
+		var version = reader.readInt();
+		if (version != VERSION) {
+			throw new IOException(String.format("%s has unsupported version %d.", file, version));
+		}
+
+		long end = HEADER_LENGTH;
+		var crc = new CRC32();
+		try {
+			while (reader.available() > 0) {
+				var record = reader.readBinaryStringBuffer();
+				var checksum = reader.readInt();
+				crc.reset();
+				crc.update(record.duplicate());
+				if (crc.getValue() != checksum) {
+					break;
+				}
+				var recordReader = new ByteBufferReader(record);
+				var put = recordReader.readBoolean();
+				var principal = recordReader.readString();
+				if (put) {
+					var fetched = recordReader.readUINT64();
+					var count = (int) recordReader.readInt();
+					var list = new ArrayList<String>(count);
+					for (int i = 0; i < count; i++) {
+						list.add(recordReader.readString());
+					}
+					keys.put(principal, new StoredKeys(list, fetched));
+				} else {
+					keys.remove(principal);
+				}
+				records++;
+				end += 4 + record.remaining() + 4;
+			}
+		} catch (IOException ioe) {
+			/* Incomplete record at the end */
+		}
+		return end;
+	}
+
+	private static ByteBuffer header() {
+		var header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.put(MAGIC).putInt(VERSION);
+		return header.flip();
+	}
+
+	private static byte[] putRecord(String principal, StoredKeys stored) {
+		var size = 1 + ByteBufferWriter.sizeOfString(principal) + 8 + 4;
+		for (var key : stored.getKeys()) {
+			size += ByteBufferWriter.sizeOfString(key);
+		}
+		try (var writer = ByteBufferWriter.acquire(size)) {
+			writer.writeBoolean(true);
+			writer.writeString(principal);
+			writer.writeUINT64(stored.getFetched());
+			writer.writeInt(stored.getKeys().size());
+			for (var key : stored.getKeys()) {
+				writer.writeString(key);
+			}
+			return record(writer.toByteBuffer());
+		}
+	}
+
+	private static byte[] removeRecord(String principal) {
+		try (var writer = ByteBufferWriter.acquire(1 + ByteBufferWriter.sizeOfString(principal))) {
+			writer.writeBoolean(false);
+			writer.writeString(principal);
+			return record(writer.toByteBuffer());
+		}
+	}
+
+	private static byte[] record(ByteBuffer payload) {
+		var crc = new CRC32();
+		crc.update(payload.duplicate());
+		var record = ByteBuffer.allocate(4 + payload.remaining() + 4);
+		record.putInt(payload.remaining()).put(payload).putInt((int) crc.getValue());
+		return record.array();
+	}
+}
@@ -0,0 +1,260 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * A {@link KeySource} that reads keys from a directory of files in
+ * authorized keys format, one per principal, with the file named after the
+ * principal. Files whose names start with a <code>.</code> are ignored.
+ * <p>
+ * All files are read when the source is created, in parallel, and the
+ * directory is then watched for changes so that only files that are added,
+ * changed or removed are read again. Lookups never touch the filesystem or
+ * take a lock; they return an immutable snapshot of the principal's keys.
+ * <p>
+ * A file that cannot be read is treated as if it had no keys, so a principal
+ * whose file becomes unreadable can no longer authenticate, and one bad file
+ * does not prevent the others from being used. Such failures are counted by
+ * {@link #getFailures()}.
+ * <p>
+ * The hostname and port are only used by {@link AuthenticatorClient} to
+ * request signatures, and to describe the server to the user. The source
+ * should be {@link #close() closed} when no longer needed.
+ */
+public class FileSystemKeySource implements KeySource, Closeable {
+
+	private final Path directory;
+	private final String hostname;
+	private final int port;
+	private final Map<String, List<String>> keys = new ConcurrentHashMap<>();
+	private final WatchService watcher;
+	private final LongAdder reloads = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param directory directory containing a file for each principal
+	 * @param hostname  hostname of the LogonBox server that signs requests
+	 * @param port      port of the LogonBox server that signs requests
+	 * @throws IOException on error
+	 */
+	public FileSystemKeySource(Path directory, String hostname, int port) throws IOException {
+		this.directory = directory;
+		this.hostname = hostname;
+		this.port = port;
+
+		/* Watch first, so that nothing that changes while indexing is missed */
+		watcher = directory.getFileSystem().newWatchService();
+		try {
+			directory.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+			reload();
+		} catch (IOException | RuntimeException e) {
+			watcher.close();
+			throw e;
+		}
+
+		var thread = new Thread(this::watch, "FileSystemKeySourceWatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	@Override
+	public String getHostname() {
+		return hostname;
+	}
+
+	@Override
+	public int getPort() {
+		return port;
+	}
+
+	@Override
+	public Iterable<String> listKeys(AuthenticatorClient client, String principal) {
+		return keys.getOrDefault(principal, Collections.emptyList());
+	}
+
+	@Override
+	public CompletableFuture<Iterable<String>> listKeysAsync(AuthenticatorClient client, String principal) {
+		return CompletableFuture.completedFuture(listKeys(client, principal));
+	}
+
+	/**
+	 * Get the number of principals that have keys.
+	 *
+	 * @return size
+	 */
+	public int size() {
+		return keys.size();
+	}
+
+	/**
+	 * Get the number of times a file has been read since the source was
+	 * created, including the initial reading of all files.
+	 *
+	 * @return reloads
+	 */
+	public long getReloads() {
+		return reloads.sum();
+	}
+
+	/**
+	 * Get the number of times a file could not be read, and so its principal's
+	 * keys were removed.
+	 *
+	 * @return failures
+	 */
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	/**
+	 * Read all files again. This happens automatically if too many changes
+	 * happen at once for them to be tracked individually.
+	 *
+	 * @throws IOException if the directory cannot be listed
+	 */
+	public synchronized void reload() throws IOException {
+		List<Path> files;
+		try (var stream = Files.list(directory)) {
+			files = stream.collect(Collectors.toList());
+		}
+		var found = new HashSet<String>();
+		files.parallelStream().forEach(file -> {
+			if (load(file)) {
+				synchronized (found) {
+					found.add(file.getFileName().toString());
+				}
+			}
+		});
+		keys.keySet().retainAll(found);
+	}
+
+	/**
+	 * Stop watching the directory. Keys already read continue to be returned.
+	 */
+	@Override
+	public void close() throws IOException {
+		watcher.close();
+	}
+
+	@Override
+	public String toString() {
+		return "FileSystemKeySource [" + directory + "]";
+	}
+
+	private void watch() {
+		try {
+			while (true) {
+				var key = watcher.take();
+				var overflow = false;
+				for (var event : key.pollEvents()) {
+					if (event.kind() == OVERFLOW) {
+						overflow = true;
+					} else {
+						var file = directory.resolve((Path) event.context());
+						synchronized (this) {
+							load(file);
+						}
+					}
+				}
+				if (overflow) {
+					try {
+						reload();
+					} catch (IOException e) {
+					}
+				}
+				if (!key.reset()) {
+					/* Directory no longer accessible */
+					break;
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+		}
+	}
+
+	/**
+	 * Read a single file, replacing the keys for its principal, or removing them
+	 * if it no longer exists or cannot be read.
+	 *
+	 * @return whether the file contained keys for a principal
+	 */
+	private boolean load(Path file) {
+		var principal = file.getFileName().toString();
+		if (principal.startsWith(".")) {
+			return false;
+		}
+		if (!Files.isRegularFile(file)) {
+			keys.remove(principal);
+			return false;
+		}
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		} catch (NoSuchFileException nsfe) {
+			keys.remove(principal);
+			return false;
+		} catch (IOException ioe) {
+			/* Will be read again when next changed */
+			failures.increment();
+			keys.remove(principal);
+			return false;
+		}
+		var list = new ArrayList<String>(lines.size());
+		for (var line : lines) {
+			line = line.trim();
+			if (line.equals("") || line.startsWith("#"))
+				continue;
+			list.add(line);
+		}
+		reloads.increment();
+		keys.put(principal, Collections.unmodifiableList(list));
+		return true;
+	}
+}
@@ -0,0 +1,229 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Controls hedging of requests that are safe to repeat, such as listing keys.
+ * If the first request has not answered within a percentile of recent
+ * latency, a second is sent (usually to another endpoint), and whichever
+ * answers first is used. The other is then abandoned.
+ * <p>
+ * Hedging is limited by a budget, the proportion of extra requests allowed.
+ * For each request sent, that proportion of a hedge is earned, and each hedge
+ * spends a whole one. A few unspent hedges may be saved up to allow for short
+ * bursts of slow responses.
+ */
+public class HedgingPolicy {
+
+	public final static double DEFAULT_PERCENTILE = 0.95;
+	public final static double DEFAULT_BUDGET = 0.05;
+	public final static Duration DEFAULT_MIN_DELAY = Duration.ofMillis(5);
+	public final static int DEFAULT_WINDOW = 1000;
+
+	/**
+	 * How many latencies must be known before there is any hedging.
+	 */
+	final static int MIN_SAMPLES = 10;
+
+	private final static double MAX_SAVED = 10;
+
+	private final double percentile;
+	private final double budget;
+	private final long[] samples;
+	private final LongAdder hedged = new LongAdder();
+	private final LongAdder hedgeWins = new LongAdder();
+	private final LongAdder overBudget = new LongAdder();
+	private long minDelay = DEFAULT_MIN_DELAY.toNanos();
+	private int count;
+	private int next;
+	private long delay = -1;
+	private double saved;
+
+	public HedgingPolicy() {
+		this(DEFAULT_PERCENTILE, DEFAULT_BUDGET);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param percentile percentile of recent latency to wait for before hedging,
+	 *                   between 0 and 1
+	 * @param budget     maximum proportion of extra requests, for example 0.1
+	 *                   allows 10% more requests
+	 */
+	public HedgingPolicy(double percentile, double budget) {
+		this(percentile, budget, DEFAULT_WINDOW);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param percentile percentile of recent latency to wait for before hedging,
+	 *                   between 0 and 1
+	 * @param budget     maximum proportion of extra requests, for example 0.1
+	 *                   allows 10% more requests
+	 * @param window     number of recent latencies to take the percentile from
+	 */
+	public HedgingPolicy(double percentile, double budget, int window) {
+		if (percentile <= 0 || percentile > 1) {
+			throw new IllegalArgumentException("Percentile must be greater than 0 and no more than 1.");
+		}
+		if (budget < 0) {
+			throw new IllegalArgumentException("Budget must not be negative.");
+		}
+		if (window < MIN_SAMPLES) {
+			throw new IllegalArgumentException(String.format("Window must be at least %d.", MIN_SAMPLES));
+		}
+		this.percentile = percentile;
+		this.budget = budget;
+		this.samples = new long[window];
+	}
+
+	public double getPercentile() {
+		return percentile;
+	}
+
+	public double getBudget() {
+		return budget;
+	}
+
+	public Duration getMinDelay() {
+		return Duration.ofNanos(minDelay);
+	}
+
+	/**
+	 * Set the shortest time to wait before hedging, however fast recent requests
+	 * have been.
+	 *
+	 * @param minDelay minimum delay
+	 */
+	public void setMinDelay(Duration minDelay) {
+		this.minDelay = minDelay.toNanos();
+	}
+
+	/**
+	 * Get how many hedged requests have been sent.
+	 *
+	 * @return hedged requests
+	 */
+	public long getHedged() {
+		return hedged.sum();
+	}
+
+	/**
+	 * Get how many hedged requests answered before the request they hedged.
+	 *
+	 * @return hedge wins
+	 */
+	public long getHedgeWins() {
+		return hedgeWins.sum();
+	}
+
+	/**
+	 * Get how many times a request would have been hedged, but the budget was
+	 * spent.
+	 *
+	 * @return over budget
+	 */
+	public long getOverBudget() {
+		return overBudget.sum();
+	}
+
+	/**
+	 * Get how long to wait for a request before hedging it.
+	 *
+	 * @return delay, or <code>null</code> if not enough is known yet
+	 */
+	public synchronized Duration getDelay() {
+		var nanos = delayNanos();
+		return nanos < 0 ? null : Duration.ofNanos(nanos);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("HedgingPolicy [percentile=%s, budget=%s, delay=%s, hedged=%d, hedgeWins=%d]", percentile,
+				budget, getDelay(), getHedged(), getHedgeWins());
+	}
+
+	/**
+	 * A request is being sent, so earn a little more of the budget and get how
+	 * long to wait before hedging it.
+	 *
+	 * @return delay in nanoseconds, or -1 not to hedge
+	 */
+	synchronized long requested() {
+		saved = Math.min(MAX_SAVED, saved + budget);
+		return delayNanos();
+	}
+
+	/**
+	 * Spend the budget for a hedge if there is enough of it.
+	 *
+	 * @return whether to hedge
+	 */
+	synchronized boolean tryHedge() {
+		if (saved < 1) {
+			overBudget.increment();
+			return false;
+		}
+		saved -= 1;
+		hedged.increment();
+		return true;
+	}
+
+	void hedgeWon() {
+		hedgeWins.increment();
+	}
+
+	/**
+	 * Record the latency of a successful request.
+	 *
+	 * @param nanos latency in nanoseconds
+	 */
+	synchronized void record(long nanos) {
+		samples[next] = nanos;
+		next = (next + 1) % samples.length;
+		if (count < samples.length) {
+			count++;
+		}
+		/* Sorting is not cheap, so only work the percentile out again now and then */
+		if (delay < 0 || next % Math.max(1, samples.length / 10) == 0) {
+			delay = -1;
+		}
+	}
+
+	private long delayNanos() {
+		if (count < MIN_SAMPLES) {
+			return -1;
+		}
+		if (delay < 0) {
+			var sorted = Arrays.copyOf(samples, count);
+			Arrays.sort(sorted);
+			var idx = Math.min(count - 1, (int) Math.ceil(percentile * count) - 1);
+			delay = Math.max(minDelay, sorted[Math.max(0, idx)]);
+		}
+		return delay;
+	}
+}
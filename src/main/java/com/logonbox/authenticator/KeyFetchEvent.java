@@ -0,0 +1,51 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Emitted by {@link DefaultKeySource} for each request for a user's keys.
+ */
+@Name("com.logonbox.authenticator.KeyFetch")
+@Label("Key Fetch")
+@Description("Authorized keys requested from a LogonBox server")
+@Threshold("10 ms")
+final class KeyFetchEvent extends AuthenticatorEvent {
+
+	@Label("Principal Hash")
+	String principalHash;
+
+	@Label("Host")
+	String host;
+
+	@Label("HTTP Status")
+	int status;
+
+	@Label("Bytes")
+	@Description("Size of the response body, or -1 if not known")
+	@DataAmount
+	long bytes = -1;
+}
@@ -20,10 +20,72 @@ package com.logonbox.authenticator;
  * #L%
  */
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 public interface KeySource {
 	
 	Iterable<String> listKeys(AuthenticatorClient client, String principal);
 
+	/**
+	 * Asynchronously list the authorized keys for a principal. The default
+	 * implementation runs {@link #listKeys(AuthenticatorClient, String)} on the
+	 * common pool (or a virtual thread if the client has them enabled) and fully
+	 * reads the keys, implementations that can do real non-blocking I/O should
+	 * override this.
+	 */
+	default CompletableFuture<Iterable<String>> listKeysAsync(AuthenticatorClient client, String principal) {
+		var keys = new ArrayList<String>();
+		return AuthenticatorClient.runBlocking(client, () -> listKeys(client, principal).forEach(keys::add))
+				.thenApply(v -> keys);
+	}
+
+	/**
+	 * List the authorized keys for a principal when the keys previously listed
+	 * for them are still held, for example by a {@link CachingKeySource} whose
+	 * entry has expired. A source that can find out whether the keys have
+	 * changed without transferring them again, as {@link DefaultKeySource} does
+	 * with a conditional request, may then return the previous keys. The default
+	 * implementation ignores them and just lists the keys.
+	 *
+	 * @param client    client
+	 * @param principal principal
+	 * @param previous  keys previously listed for the principal
+	 * @return keys
+	 */
+	default Iterable<String> revalidateKeys(AuthenticatorClient client, String principal, List<String> previous) {
+		return listKeys(client, principal);
+	}
+
+	/**
+	 * Asynchronously list the authorized keys for a principal when the keys
+	 * previously listed for them are still held. See
+	 * {@link #revalidateKeys(AuthenticatorClient, String, List)}.
+	 */
+	default CompletableFuture<Iterable<String>> revalidateKeysAsync(AuthenticatorClient client, String principal,
+			List<String> previous) {
+		return listKeysAsync(client, principal);
+	}
+
+	/**
+	 * Get the key for a principal that has the given fingerprint, if this source
+	 * can find it without listing all of their keys, for example from an
+	 * {@link AuthorizedKeyStore}. {@link AuthenticatorClient} then only decodes
+	 * that key. If <code>null</code> is returned, the client lists the keys as
+	 * usual, so a source must only return a key that
+	 * {@link #listKeys(AuthenticatorClient, String)} would also return. The
+	 * default implementation returns <code>null</code>.
+	 *
+	 * @param client      client
+	 * @param principal   principal
+	 * @param fingerprint fingerprint in the form <code>SHA256:base64</code>
+	 * @return key in authorized keys format, or <code>null</code>
+	 */
+	default String getKey(AuthenticatorClient client, String principal, String fingerprint) {
+		return null;
+	}
+
 	default String getHostname() {
 		return "localhost";
 	}
@@ -31,4 +93,17 @@ public interface KeySource {
 	default int getPort() {
 		return 443;
 	}
+
+	/**
+	 * Get the group of LogonBox servers this source gets keys from, if there is
+	 * one. When present, {@link DefaultSignatureGenerator} sends signature
+	 * requests to the same group, so they share what is known about the health
+	 * of each server.
+	 *
+	 * @return endpoints or <code>null</code> to just use
+	 *         {@link #getHostname()} and {@link #getPort()}
+	 */
+	default EndpointGroup getEndpoints() {
+		return null;
+	}
 }
@@ -0,0 +1,192 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies that may be recorded from many threads at once
+ * without locking. Values are counted in buckets whose width grows with the
+ * value, so every value is kept to within about 3%, from one nanosecond up to
+ * about 18 minutes. Anything longer is counted as the maximum.
+ */
+public final class LatencyHistogram {
+
+	/** Sub-buckets per power of two, as a power of two */
+	private final static int SUB_BITS = 5;
+	private final static int SUB_COUNT = 1 << SUB_BITS;
+	private final static int MAX_MAGNITUDE = 40;
+	private final static long MAX_VALUE = (1L << MAX_MAGNITUDE) - 1;
+	private final static int BUCKETS = SUB_COUNT * (MAX_MAGNITUDE - SUB_BITS + 1);
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder total = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a value.
+	 *
+	 * @param nanos latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		var value = Math.max(0, Math.min(nanos, MAX_VALUE));
+		counts.incrementAndGet(index(value));
+		total.add(value);
+		if (value > max.get()) {
+			max.accumulateAndGet(value, Math::max);
+		}
+	}
+
+	/**
+	 * Take a copy of the histogram as it is now.
+	 *
+	 * @return snapshot
+	 */
+	public Snapshot snapshot() {
+		var copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+		}
+		return new Snapshot(copy, total.sum(), max.get());
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+
+	static int index(long value) {
+		if (value < SUB_COUNT) {
+			return (int) value;
+		}
+		var shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return SUB_COUNT * (shift + 1) + (int) (value >>> shift) - SUB_COUNT;
+	}
+
+	/**
+	 * Get the largest value that falls in a bucket.
+	 */
+	static long upperBound(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		var shift = index / SUB_COUNT - 1;
+		var sub = index % SUB_COUNT;
+		return ((long) (SUB_COUNT + sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * A copy of a {@link LatencyHistogram} at a point in time.
+	 */
+	public final static class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long total;
+		private final long max;
+
+		private Snapshot(long[] counts, long total, long max) {
+			this.counts = counts;
+			this.total = total;
+			this.max = max;
+			long count = 0;
+			for (var c : counts) {
+				count += c;
+			}
+			this.count = count;
+		}
+
+		/**
+		 * Get the number of values recorded.
+		 *
+		 * @return count
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Get the sum of all values recorded.
+		 *
+		 * @return total
+		 */
+		public Duration getTotal() {
+			return Duration.ofNanos(total);
+		}
+
+		public Duration getMean() {
+			return count == 0 ? Duration.ZERO : Duration.ofNanos(total / count);
+		}
+
+		public Duration getMax() {
+			return Duration.ofNanos(max);
+		}
+
+		/**
+		 * Get the value below which a proportion of values fall.
+		 *
+		 * @param percentile percentile, between 0 and 1
+		 * @return value
+		 */
+		public Duration getValueAtPercentile(double percentile) {
+			if (count == 0) {
+				return Duration.ZERO;
+			}
+			var target = Math.max(1, (long) Math.ceil(percentile * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= target) {
+					return Duration.ofNanos(Math.min(upperBound(i), max));
+				}
+			}
+			return Duration.ofNanos(max);
+		}
+
+		/**
+		 * Get the count of values in each bucket that has any, keyed by the largest
+		 * value in the bucket, smallest first. Suitable for exporting as a
+		 * cumulative histogram.
+		 *
+		 * @return buckets
+		 */
+		public Map<Duration, Long> getBuckets() {
+			var buckets = new LinkedHashMap<Duration, Long>();
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] > 0) {
+					buckets.put(Duration.ofNanos(upperBound(i)), counts[i]);
+				}
+			}
+			return Collections.unmodifiableMap(buckets);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("count=%d, mean=%s, p50=%s, p99=%s, max=%s", count, getMean(),
+					getValueAtPercentile(0.5), getValueAtPercentile(0.99), getMax());
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An {@link AuthorizedKeyStore} that keeps keys on the heap, evicting the
+ * least recently used principals once the maximum number is reached.
+ */
+public class MemoryKeyStore implements AuthorizedKeyStore {
+
+	public final static int DEFAULT_MAX_ENTRIES = 1000;
+
+	private final Map<String, StoredKeys> keys;
+
+	public MemoryKeyStore() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	public MemoryKeyStore(int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("Maximum entries must be at least 1.");
+		}
+		keys = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, StoredKeys> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	@Override
+	public StoredKeys get(String principal) {
+		synchronized (keys) {
+			return keys.get(principal);
+		}
+	}
+
+	@Override
+	public void put(String principal, StoredKeys stored) {
+		synchronized (keys) {
+			keys.put(principal, stored);
+		}
+	}
+
+	@Override
+	public void remove(String principal) {
+		synchronized (keys) {
+			keys.remove(principal);
+		}
+	}
+
+	@Override
+	public void clear() {
+		synchronized (keys) {
+			keys.clear();
+		}
+	}
+
+	@Override
+	public int size() {
+		synchronized (keys) {
+			return keys.size();
+		}
+	}
+
+	@Override
+	public void close() {
+		clear();
+	}
+}
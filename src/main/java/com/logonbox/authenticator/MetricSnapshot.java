@@ -0,0 +1,69 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.logonbox.authenticator.Metrics.Outcome;
+import com.logonbox.authenticator.Metrics.Phase;
+
+/**
+ * The latencies recorded by {@link DefaultMetrics} for one phase, algorithm
+ * and outcome.
+ */
+public final class MetricSnapshot {
+
+	private final Phase phase;
+	private final String algorithm;
+	private final Outcome outcome;
+	private final LatencyHistogram.Snapshot histogram;
+
+	MetricSnapshot(Phase phase, String algorithm, Outcome outcome, LatencyHistogram.Snapshot histogram) {
+		this.phase = phase;
+		this.algorithm = algorithm;
+		this.outcome = outcome;
+		this.histogram = histogram;
+	}
+
+	public Phase getPhase() {
+		return phase;
+	}
+
+	/**
+	 * Get the algorithm, or {@link DefaultMetrics#NO_ALGORITHM} if not known.
+	 *
+	 * @return algorithm
+	 */
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	public Outcome getOutcome() {
+		return outcome;
+	}
+
+	public LatencyHistogram.Snapshot getHistogram() {
+		return histogram;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s %s %s: %s", phase, algorithm, outcome, histogram);
+	}
+}
@@ -0,0 +1,86 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Receives timings of each phase of authentication from an
+ * {@link AuthenticatorClient}, so they may be passed on to whatever metrics
+ * system is in use. {@link DefaultMetrics} keeps them in histograms in memory.
+ * <p>
+ * Implementations are called on the threads doing the work, so must be cheap
+ * and thread safe.
+ */
+public interface Metrics {
+
+	/**
+	 * The phases of authentication that are timed.
+	 */
+	enum Phase {
+		/**
+		 * Getting a user's authorized keys from the {@link KeySource}. For a key
+		 * source that streams keys, this is until the keys start to arrive.
+		 */
+		KEY_FETCH,
+		/**
+		 * Decoding a key from its authorized keys format. Keys already in the
+		 * client's decoded key cache are not timed.
+		 */
+		KEY_DECODE,
+		/** Working out the fingerprint of a decoded key */
+		FINGERPRINT,
+		/** Requesting a signature, including waiting for the user to approve */
+		SIGNATURE_REQUEST,
+		/**
+		 * {@link AuthenticatorClient#processResponse(byte[], byte[])} of a server
+		 * redirect response
+		 */
+		PROCESS_RESPONSE,
+		/** {@link AuthenticatorResponse#verify()} */
+		VERIFY
+	}
+
+	/**
+	 * Whether a phase succeeded.
+	 */
+	enum Outcome {
+		SUCCESS, FAILURE
+	}
+
+	/**
+	 * Metrics that record nothing. Nothing is timed when these are used.
+	 */
+	Metrics NONE = new Metrics() {
+		@Override
+		public void record(Phase phase, String algorithm, Outcome outcome, long nanos) {
+		}
+	};
+
+	/**
+	 * Record how long a phase took.
+	 *
+	 * @param phase     phase
+	 * @param algorithm SSH key algorithm, for example <code>ssh-ed25519</code>,
+	 *                  or <code>null</code> if not known or not relevant
+	 * @param outcome   outcome
+	 * @param nanos     time taken in nanoseconds
+	 */
+	void record(Phase phase, String algorithm, Outcome outcome, long nanos);
+}
@@ -0,0 +1,571 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An {@link AuthorizedKeyStore} that keeps keys outside of the Java heap, so
+ * that very large numbers of principals may be stored without adding to
+ * garbage collection work.
+ * <p>
+ * Each key is stored as its algorithm name, raw key blob (rather than the
+ * larger Base64 text), comment and the 32 byte SHA-256 fingerprint of the
+ * blob. Principals are found using an open addressing hash table that is also
+ * held off heap. Keys are only turned back into {@link String}s when they are
+ * requested, and only decoded into {@link java.security.PublicKey}s by
+ * {@link AuthenticatorClient} when used. When it looks a key up by
+ * fingerprint, through a {@link StoreKeySource} or {@link CachingKeySource},
+ * only the matching key is turned back into a {@link String}.
+ * <p>
+ * Memory used by replaced or removed keys is reclaimed by compacting the
+ * store when more than half of it is unused.
+ */
+public class OffHeapKeyStore implements AuthorizedKeyStore {
+
+	public final static int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+	public final static int DEFAULT_INITIAL_CAPACITY = 1024;
+
+	private final static int SLOT_SIZE = 16;
+	private final static long EMPTY = 0;
+	private final static long DELETED = -1;
+	private final static int FINGERPRINT_LENGTH = 32;
+	private final static byte PARSED = 0;
+	private final static byte RAW = 1;
+	private final static float MAX_LOAD = 0.7f;
+	/* The index is a single buffer, so its size must fit in an int */
+	private final static int MAX_SLOTS = Integer.highestOneBit(Integer.MAX_VALUE / SLOT_SIZE);
+
+	/**
+	 * The most principals a store may hold.
+	 */
+	public final static int MAX_CAPACITY = (int) (MAX_SLOTS * MAX_LOAD);
+
+	private final int segmentSize;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	private List<ByteBuffer> segments = new ArrayList<>();
+	private ByteBuffer index;
+	private int slots;
+	private int size;
+	private int used;
+	private long allocated;
+	private long live;
+	private boolean closed;
+
+	public OffHeapKeyStore() {
+		this(DEFAULT_INITIAL_CAPACITY, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param initialCapacity number of principals to size the index for
+	 * @param segmentSize     size of each block of memory allocated for keys
+	 */
+	public OffHeapKeyStore(int initialCapacity, int segmentSize) {
+		if (initialCapacity < 1) {
+			throw new IllegalArgumentException("Initial capacity must be at least 1.");
+		}
+		if (initialCapacity > MAX_CAPACITY) {
+			throw new IllegalArgumentException(String.format("Initial capacity must be at most %d.", MAX_CAPACITY));
+		}
+		if (segmentSize < 1024) {
+			throw new IllegalArgumentException("Segment size must be at least 1024 bytes.");
+		}
+		this.segmentSize = segmentSize;
+		this.slots = Math.min(MAX_SLOTS, Integer.highestOneBit(Math.max(2, (int) (initialCapacity / MAX_LOAD)) - 1) << 1);
+		this.index = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+	}
+
+	@Override
+	public StoredKeys get(String principal) {
+		var principalBytes = principal.getBytes(StandardCharsets.UTF_8);
+		lock.readLock().lock();
+		try {
+			if (closed) {
+				return null;
+			}
+			var slot = find(principalBytes, hash(principalBytes));
+			if (slot < 0) {
+				return null;
+			}
+			return readKeys(index.getLong(slot * SLOT_SIZE));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the key for a principal that has the given fingerprint, using the
+	 * stored fingerprints, so only the matching key is created.
+	 */
+	@Override
+	public StoredKeys getKey(String principal, String fingerprint) {
+		var digest = digestOf(fingerprint);
+		var principalBytes = principal.getBytes(StandardCharsets.UTF_8);
+		lock.readLock().lock();
+		try {
+			if (closed) {
+				return null;
+			}
+			var slot = find(principalBytes, hash(principalBytes));
+			if (slot < 0) {
+				return null;
+			}
+			var record = record(index.getLong(slot * SLOT_SIZE));
+			skip(record); /* principal */
+			var fetched = record.getLong();
+			var count = record.getInt();
+			var fp = new byte[FINGERPRINT_LENGTH];
+			for (int i = 0; digest != null && i < count; i++) {
+				var start = record.position();
+				if (record.get() == PARSED) {
+					skip(record);
+					skip(record);
+					skip(record);
+					record.get(fp);
+					if (Arrays.equals(fp, digest)) {
+						record.position(start);
+						return new StoredKeys(Collections.singletonList(readKey(record)), fetched);
+					}
+				} else {
+					skip(record);
+				}
+			}
+			return new StoredKeys(Collections.emptyList(), fetched);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void put(String principal, StoredKeys keys) throws IOException {
+		var principalBytes = principal.getBytes(StandardCharsets.UTF_8);
+		var record = encode(principalBytes, keys);
+		var hash = hash(principalBytes);
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+			var slot = find(principalBytes, hash);
+			if (slot >= 0) {
+				live -= recordLength(index.getLong(slot * SLOT_SIZE));
+			} else {
+				if (used + 1 > slots * MAX_LOAD) {
+					if (size + 1 > slots * MAX_LOAD / 2 && slots < MAX_SLOTS) {
+						rehash(slots * 2);
+					} else if (size + 1 > MAX_CAPACITY) {
+						throw new IOException(
+								String.format("Store is full, it may hold at most %d principals.", MAX_CAPACITY));
+					} else {
+						rehash(slots);
+					}
+				}
+				slot = insertionSlot(hash);
+				if (index.getLong(slot * SLOT_SIZE) == EMPTY) {
+					used++;
+				}
+				size++;
+			}
+			index.putLong(slot * SLOT_SIZE, allocate(record));
+			index.putInt(slot * SLOT_SIZE + 8, hash);
+			live += record.length;
+			compactIfNeeded();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void remove(String principal) throws IOException {
+		var principalBytes = principal.getBytes(StandardCharsets.UTF_8);
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+			var slot = find(principalBytes, hash(principalBytes));
+			if (slot >= 0) {
+				live -= recordLength(index.getLong(slot * SLOT_SIZE));
+				index.putLong(slot * SLOT_SIZE, DELETED);
+				size--;
+				compactIfNeeded();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void clear() throws IOException {
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+			segments = new ArrayList<>();
+			index = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+			size = used = 0;
+			allocated = live = 0;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the number of bytes of off heap memory used by the index and keys,
+	 * including any not yet reclaimed.
+	 *
+	 * @return memory used
+	 */
+	public long getMemoryUsed() {
+		lock.readLock().lock();
+		try {
+			return (long) slots * SLOT_SIZE + allocated;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the number of bytes used by current keys.
+	 *
+	 * @return live bytes
+	 */
+	public long getLiveBytes() {
+		lock.readLock().lock();
+		try {
+			return live;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Reclaim memory used by replaced and removed keys now.
+	 */
+	public void compact() {
+		lock.writeLock().lock();
+		try {
+			if (!closed) {
+				rehash(slots);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Release all memory. The store may not be used afterwards.
+	 */
+	@Override
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			closed = true;
+			segments = new ArrayList<>();
+			index = null;
+			size = used = 0;
+			allocated = live = 0;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Store is closed.");
+		}
+	}
+
+	/**
+	 * Find the slot holding a principal.
+	 *
+	 * @return slot, or -1 if not found
+	 */
+	private int find(byte[] principal, int hash) {
+		var mask = slots - 1;
+		for (int i = hash & mask, n = 0; n < slots; i = (i + 1) & mask, n++) {
+			var address = index.getLong(i * SLOT_SIZE);
+			if (address == EMPTY) {
+				return -1;
+			}
+			if (address != DELETED && index.getInt(i * SLOT_SIZE + 8) == hash
+					&& principalEquals(address, principal)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int insertionSlot(int hash) {
+		var mask = slots - 1;
+		for (int i = hash & mask;; i = (i + 1) & mask) {
+			var address = index.getLong(i * SLOT_SIZE);
+			if (address == EMPTY || address == DELETED) {
+				return i;
+			}
+		}
+	}
+
+	private boolean principalEquals(long address, byte[] principal) {
+		var record = record(address);
+		if (record.getInt() != principal.length) {
+			return false;
+		}
+		for (var b : principal) {
+			if (record.get() != b) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void compactIfNeeded() {
+		if (allocated > segmentSize && live < allocated / 2) {
+			rehash(slots);
+		}
+	}
+
+	/**
+	 * Copy all current keys into new memory with an index of the given number of
+	 * slots, dropping anything replaced or removed.
+	 */
+	private void rehash(int newSlots) {
+		var oldSegments = segments;
+		var oldIndex = index;
+		var oldSlots = slots;
+		segments = new ArrayList<>();
+		index = ByteBuffer.allocateDirect(newSlots * SLOT_SIZE);
+		slots = newSlots;
+		allocated = 0;
+		used = 0;
+		var mask = newSlots - 1;
+		for (int i = 0; i < oldSlots; i++) {
+			var address = oldIndex.getLong(i * SLOT_SIZE);
+			if (address == EMPTY || address == DELETED) {
+				continue;
+			}
+			var hash = oldIndex.getInt(i * SLOT_SIZE + 8);
+			var record = recordOf(oldSegments, address);
+			var data = new byte[recordLength(record.duplicate())];
+			record.get(data);
+			var slot = hash & mask;
+			while (index.getLong(slot * SLOT_SIZE) != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			index.putLong(slot * SLOT_SIZE, allocate(data));
+			index.putInt(slot * SLOT_SIZE + 8, hash);
+			used++;
+		}
+	}
+
+	/**
+	 * Copy a record into the arena.
+	 *
+	 * @return address, the segment number (plus one, so zero is never a valid
+	 *         address) in the upper 32 bits, and the offset in the lower
+	 */
+	private long allocate(byte[] record) {
+		ByteBuffer segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if (segment == null || segment.remaining() < record.length) {
+			segment = ByteBuffer.allocateDirect(Math.max(segmentSize, record.length));
+			segments.add(segment);
+			allocated += segment.capacity();
+		}
+		var address = ((long) segments.size() << 32) | segment.position();
+		segment.put(record);
+		return address;
+	}
+
+	private ByteBuffer record(long address) {
+		return recordOf(segments, address);
+	}
+
+	private static ByteBuffer recordOf(List<ByteBuffer> segments, long address) {
+		var segment = segments.get((int) (address >>> 32) - 1).duplicate();
+		segment.limit(segment.capacity()).position((int) address);
+		return segment;
+	}
+
+	private int recordLength(long address) {
+		return recordLength(record(address));
+	}
+
+	private static int recordLength(ByteBuffer record) {
+		var start = record.position();
+		skip(record);
+		record.getLong();
+		var count = record.getInt();
+		for (int i = 0; i < count; i++) {
+			if (record.get() == PARSED) {
+				skip(record);
+				skip(record);
+				skip(record);
+				record.position(record.position() + FINGERPRINT_LENGTH);
+			} else {
+				skip(record);
+			}
+		}
+		return record.position() - start;
+	}
+
+	private static void skip(ByteBuffer record) {
+		var len = record.getInt();
+		record.position(record.position() + len);
+	}
+
+	private static byte[] readBytes(ByteBuffer record) {
+		var data = new byte[record.getInt()];
+		record.get(data);
+		return data;
+	}
+
+	private StoredKeys readKeys(long address) {
+		var record = record(address);
+		skip(record);
+		var fetched = record.getLong();
+		var count = record.getInt();
+		var keys = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			keys.add(readKey(record));
+		}
+		return new StoredKeys(keys, fetched);
+	}
+
+	private static String readKey(ByteBuffer record) {
+		if (record.get() == RAW) {
+			return new String(readBytes(record), StandardCharsets.UTF_8);
+		}
+		var algorithm = new String(readBytes(record), StandardCharsets.UTF_8);
+		var blob = readBytes(record);
+		var comment = readBytes(record);
+		record.position(record.position() + FINGERPRINT_LENGTH);
+		var key = new StringBuilder(algorithm.length() + blob.length * 4 / 3 + comment.length + 6);
+		key.append(algorithm).append(' ').append(Base64.getEncoder().encodeToString(blob));
+		if (comment.length > 0) {
+			key.append(' ').append(new String(comment, StandardCharsets.UTF_8));
+		}
+		return key.toString();
+	}
+
+	private byte[] encode(byte[] principal, StoredKeys keys) {
+		var size = 4 + principal.length + 8 + 4;
+		var parsed = new ArrayList<byte[][]>(keys.getKeys().size());
+		for (var key : keys.getKeys()) {
+			var parts = parse(key);
+			parsed.add(parts);
+			for (var part : parts) {
+				size += 4 + part.length;
+			}
+			/* Type, and the fingerprint has no length */
+			size += 1 - (parts.length > 1 ? 4 : 0);
+		}
+		var buffer = ByteBuffer.allocate(size);
+		buffer.putInt(principal.length).put(principal);
+		buffer.putLong(keys.getFetched());
+		buffer.putInt(parsed.size());
+		for (var parts : parsed) {
+			if (parts.length == 1) {
+				buffer.put(RAW);
+				buffer.putInt(parts[0].length).put(parts[0]);
+			} else {
+				buffer.put(PARSED);
+				for (int i = 0; i < 3; i++) {
+					buffer.putInt(parts[i].length).put(parts[i]);
+				}
+				buffer.put(parts[3]);
+			}
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Split a key into algorithm, blob, comment and fingerprint, if it can be
+	 * exactly re-created from them. Otherwise, the key is kept as it is.
+	 */
+	private byte[][] parse(String key) {
+		var parts = key.split(" ", 3);
+		if (parts.length >= 2 && !parts[0].isEmpty()) {
+			try {
+				var blob = Base64.getDecoder().decode(parts[1]);
+				var comment = parts.length > 2 ? parts[2] : "";
+				if (blob.length > 0 && Base64.getEncoder().encodeToString(blob).equals(parts[1])
+						&& (parts.length == 2 || !comment.isEmpty())) {
+					var digest = sha256.get();
+					digest.reset();
+					return new byte[][] { parts[0].getBytes(StandardCharsets.UTF_8), blob,
+							comment.getBytes(StandardCharsets.UTF_8), digest.digest(blob) };
+				}
+			} catch (IllegalArgumentException iae) {
+			}
+		}
+		return new byte[][] { key.getBytes(StandardCharsets.UTF_8) };
+	}
+
+	/**
+	 * Get the digest from a fingerprint.
+	 *
+	 * @return digest, or <code>null</code> if not a SHA-256 fingerprint
+	 */
+	private static byte[] digestOf(String fingerprint) {
+		if (!fingerprint.startsWith("SHA256:")) {
+			return null;
+		}
+		try {
+			var digest = Base64.getDecoder().decode(fingerprint.substring(7));
+			return digest.length == FINGERPRINT_LENGTH ? digest : null;
+		} catch (IllegalArgumentException iae) {
+			return null;
+		}
+	}
+
+	private static int hash(byte[] principal) {
+		var h = Arrays.hashCode(principal);
+		/* Spread the bits, as the table size is a power of two */
+		return h ^ (h >>> 16);
+	}
+}
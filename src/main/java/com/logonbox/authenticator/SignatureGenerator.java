@@ -21,6 +21,7 @@ package com.logonbox.authenticator;
  */
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Generates a signature. Only used for <code>Direct</code> authentication.
@@ -28,4 +29,28 @@ import java.io.IOException;
 public interface SignatureGenerator {
 	byte[] requestSignature(AuthenticatorClient client, String principal, String fingerprint, String text, String buttonText, String encodedPayload,
 			int flags) throws IOException;
+
+	/**
+	 * Asynchronously request a signature. The default implementation runs
+	 * {@link #requestSignature(AuthenticatorClient, String, String, String, String, String, int)}
+	 * on the common pool (or a virtual thread if the client has them enabled).
+	 * Implementations that can do real non-blocking I/O should override this.
+	 * The future completes exceptionally with an {@link IOException} if the
+	 * signature could not be obtained.
+	 */
+	default CompletableFuture<byte[]> requestSignatureAsync(AuthenticatorClient client, String principal,
+			String fingerprint, String text, String buttonText, String encodedPayload, int flags) {
+		var future = new CompletableFuture<byte[]>();
+		AuthenticatorClient.runBlocking(client, () -> {
+			try {
+				future.complete(requestSignature(client, principal, fingerprint, text, buttonText, encodedPayload, flags));
+			} catch (IOException | RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+		}).exceptionally(ex -> {
+			future.completeExceptionally(ex);
+			return null;
+		});
+		return future;
+	}
 }
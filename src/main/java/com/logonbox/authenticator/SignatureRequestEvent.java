@@ -0,0 +1,58 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Emitted by {@link DefaultSignatureGenerator} for each signature request,
+ * which includes waiting for the user to respond.
+ */
+@Name("com.logonbox.authenticator.SignatureRequest")
+@Label("Signature Request")
+@Description("Signature requested from a LogonBox server, including waiting for the user")
+@Threshold("10 ms")
+final class SignatureRequestEvent extends AuthenticatorEvent {
+
+	@Label("Principal Hash")
+	String principalHash;
+
+	@Label("Fingerprint")
+	String fingerprint;
+
+	@Label("Host")
+	String host;
+
+	@Label("HTTP Status")
+	int status;
+
+	@Label("Bytes")
+	@Description("Size of the response body, or -1 if not known")
+	@DataAmount
+	long bytes = -1;
+
+	@Label("Success")
+	boolean success;
+}
@@ -0,0 +1,93 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * A {@link WritableKeySource} backed by an {@link AuthorizedKeyStore}, for use
+ * as a tier of a {@link TieredKeySource}. Keys older than the time to live
+ * are treated as missing.
+ */
+public class StoreKeySource implements WritableKeySource {
+
+	private final AuthorizedKeyStore store;
+	private final long ttl;
+	private final LongSupplier clock;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param store store
+	 * @param ttl   how long keys in the store may be used for, or
+	 *              <code>null</code> to use them indefinitely
+	 */
+	public StoreKeySource(AuthorizedKeyStore store, Duration ttl) {
+		this(store, ttl, System::currentTimeMillis);
+	}
+
+	StoreKeySource(AuthorizedKeyStore store, Duration ttl, LongSupplier clock) {
+		this.store = store;
+		this.ttl = ttl == null ? Long.MAX_VALUE : ttl.toMillis();
+		this.clock = clock;
+	}
+
+	public AuthorizedKeyStore getStore() {
+		return store;
+	}
+
+	@Override
+	public Iterable<String> listKeys(AuthenticatorClient client, String principal) {
+		var stored = store.get(principal);
+		if (stored == null || clock.getAsLong() - stored.getFetched() >= ttl) {
+			return Collections.emptyList();
+		}
+		return stored.getKeys();
+	}
+
+	@Override
+	public String getKey(AuthenticatorClient client, String principal, String fingerprint) {
+		var stored = store.getKey(principal, fingerprint);
+		if (stored == null || stored.getKeys().isEmpty() || clock.getAsLong() - stored.getFetched() >= ttl) {
+			return null;
+		}
+		return stored.getKeys().get(0);
+	}
+
+	@Override
+	public void writeKeys(String principal, List<String> keys) {
+		try {
+			store.put(principal, new StoredKeys(keys, clock.getAsLong()));
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to write keys.", e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "StoreKeySource [" + store.getClass().getSimpleName() + "]";
+	}
+}
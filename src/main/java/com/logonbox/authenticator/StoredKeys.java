@@ -0,0 +1,55 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The authorized keys for a principal, as held by an
+ * {@link AuthorizedKeyStore}, along with when they were fetched from the
+ * LogonBox server.
+ */
+public final class StoredKeys {
+
+	private final List<String> keys;
+	private final long fetched;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param keys    keys in authorized keys format
+	 * @param fetched when the keys were fetched, in milliseconds since the epoch
+	 */
+	public StoredKeys(List<String> keys, long fetched) {
+		this.keys = Collections.unmodifiableList(keys);
+		this.fetched = fetched;
+	}
+
+	public List<String> getKeys() {
+		return keys;
+	}
+
+	public long getFetched() {
+		return fetched;
+	}
+}
@@ -0,0 +1,42 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Creates the threads {@link AuthenticatorClient} runs blocking work on. This
+ * is the Java 11 version, a multi-release JAR replaces it with one that uses
+ * virtual threads when running on Java 21 or later.
+ */
+final class Threads {
+
+	private Threads() {
+	}
+
+	static boolean isVirtualSupported() {
+		return false;
+	}
+
+	static ExecutorService newVirtualThreadPerTaskExecutor(String name) {
+		throw new UnsupportedOperationException("Virtual threads require Java 21 or later.");
+	}
+}
@@ -0,0 +1,157 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How often a tier of a {@link TieredKeySource} was able to answer a lookup,
+ * and how long it took to do so.
+ */
+public final class TierStatistics {
+
+	private final String name;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder lookupErrors = new LongAdder();
+	private final LongAdder writes = new LongAdder();
+	private final LongAdder latency = new LongAdder();
+
+	TierStatistics(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the number of lookups this tier answered with keys.
+	 *
+	 * @return hits
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Get the number of lookups this tier had no keys for.
+	 *
+	 * @return misses
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Get the number of lookups or write backs that failed.
+	 *
+	 * @return errors
+	 */
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	/**
+	 * Get the number of times keys found in a lower tier were written to this
+	 * tier.
+	 *
+	 * @return writes
+	 */
+	public long getWrites() {
+		return writes.sum();
+	}
+
+	/**
+	 * Get the total number of lookups made of this tier.
+	 *
+	 * @return lookups
+	 */
+	public long getLookups() {
+		return getHits() + getMisses() + getLookupErrors();
+	}
+
+	/**
+	 * Get the fraction of lookups that were hits.
+	 *
+	 * @return hit rate, between 0 and 1
+	 */
+	public double getHitRate() {
+		var lookups = getLookups();
+		return lookups == 0 ? 0 : (double) getHits() / lookups;
+	}
+
+	/**
+	 * Get the average time taken by a lookup of this tier.
+	 *
+	 * @return average latency
+	 */
+	public Duration getAverageLatency() {
+		var lookups = getLookups();
+		return lookups == 0 ? Duration.ZERO : Duration.ofNanos(latency.sum() / lookups);
+	}
+
+	/**
+	 * Get the total time taken by all lookups of this tier.
+	 *
+	 * @return total latency
+	 */
+	public Duration getTotalLatency() {
+		return Duration.ofNanos(latency.sum());
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s [hits=%d, misses=%d, errors=%d, writes=%d, hitRate=%.3f, averageLatency=%s]", name,
+				getHits(), getMisses(), getErrors(), getWrites(), getHitRate(), getAverageLatency());
+	}
+
+	private long getLookupErrors() {
+		return lookupErrors.sum();
+	}
+
+	void hit(long nanos) {
+		hits.increment();
+		latency.add(nanos);
+	}
+
+	void miss(long nanos) {
+		misses.increment();
+		latency.add(nanos);
+	}
+
+	void error(long nanos) {
+		errors.increment();
+		lookupErrors.increment();
+		latency.add(nanos);
+	}
+
+	void writeError() {
+		errors.increment();
+	}
+
+	void write() {
+		writes.increment();
+	}
+}
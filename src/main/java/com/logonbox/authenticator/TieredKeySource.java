@@ -0,0 +1,196 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A {@link KeySource} made up of a number of other {@link KeySource}s, or
+ * tiers, usually ordered from fastest to slowest, with the authoritative
+ * source (such as {@link DefaultKeySource}) last. Each tier is asked for keys
+ * in turn until one has some. Keys found in a lower tier are written to any
+ * tier above it that is a {@link WritableKeySource}.
+ * <p>
+ * A tier that fails is treated as a miss, unless it is the last. Statistics
+ * for each tier are available from {@link #getStatistics()}.
+ * <p>
+ * For example, to keep keys in memory, then on disk, before going to the
+ * LogonBox server :-
+ *
+ * <pre>
+ * new TieredKeySource(new StoreKeySource(new MemoryKeyStore(), Duration.ofMinutes(5)),
+ * 		new StoreKeySource(new FileKeyStore(path), Duration.ofHours(1)),
+ * 		new DefaultKeySource("tenant.logonbox.directory", 443));
+ * </pre>
+ */
+public class TieredKeySource implements KeySource {
+
+	private final List<KeySource> tiers;
+	private final List<TierStatistics> statistics;
+
+	public TieredKeySource(KeySource... tiers) {
+		this(Arrays.asList(tiers));
+	}
+
+	public TieredKeySource(List<KeySource> tiers) {
+		if (tiers.isEmpty()) {
+			throw new IllegalArgumentException("At least one tier is required.");
+		}
+		this.tiers = Collections.unmodifiableList(new ArrayList<>(tiers));
+		var statistics = new ArrayList<TierStatistics>(tiers.size());
+		for (int i = 0; i < tiers.size(); i++) {
+			statistics.add(new TierStatistics(String.format("%d %s", i, tiers.get(i))));
+		}
+		this.statistics = Collections.unmodifiableList(statistics);
+	}
+
+	public List<KeySource> getTiers() {
+		return tiers;
+	}
+
+	/**
+	 * Get the statistics for each tier, in the same order as the tiers.
+	 *
+	 * @return statistics
+	 */
+	public List<TierStatistics> getStatistics() {
+		return statistics;
+	}
+
+	@Override
+	public String getHostname() {
+		return tiers.get(tiers.size() - 1).getHostname();
+	}
+
+	@Override
+	public int getPort() {
+		return tiers.get(tiers.size() - 1).getPort();
+	}
+
+	@Override
+	public EndpointGroup getEndpoints() {
+		return tiers.get(tiers.size() - 1).getEndpoints();
+	}
+
+	@Override
+	public Iterable<String> listKeys(AuthenticatorClient client, String principal) {
+		var last = tiers.size() - 1;
+		for (int i = 0; i <= last; i++) {
+			var stats = statistics.get(i);
+			var started = System.nanoTime();
+			List<String> keys;
+			try {
+				keys = toList(tiers.get(i).listKeys(client, principal));
+			} catch (RuntimeException re) {
+				stats.error(System.nanoTime() - started);
+				if (i == last) {
+					throw re;
+				}
+				continue;
+			}
+			if (keys.isEmpty()) {
+				stats.miss(System.nanoTime() - started);
+			} else {
+				stats.hit(System.nanoTime() - started);
+				writeBack(i, principal, keys);
+				return keys;
+			}
+		}
+		return Collections.emptyList();
+	}
+
+	@Override
+	public CompletableFuture<Iterable<String>> listKeysAsync(AuthenticatorClient client, String principal) {
+		return listKeysAsync(client, principal, 0);
+	}
+
+	/**
+	 * Look the key up in the first tier only. A lower tier may still hold a key
+	 * that the first has since replaced, and listing would never reach it.
+	 */
+	@Override
+	public String getKey(AuthenticatorClient client, String principal, String fingerprint) {
+		try {
+			return tiers.get(0).getKey(client, principal, fingerprint);
+		} catch (RuntimeException re) {
+			return null;
+		}
+	}
+
+	private CompletableFuture<Iterable<String>> listKeysAsync(AuthenticatorClient client, String principal,
+			int tier) {
+		var stats = statistics.get(tier);
+		var last = tier == tiers.size() - 1;
+		var started = System.nanoTime();
+		CompletableFuture<Iterable<String>> future;
+		try {
+			future = tiers.get(tier).listKeysAsync(client, principal);
+		} catch (RuntimeException re) {
+			future = CompletableFuture.failedFuture(re);
+		}
+		return future.handle((keys, ex) -> {
+			if (ex != null) {
+				stats.error(System.nanoTime() - started);
+				if (last) {
+					throw ex instanceof CompletionException ? (CompletionException) ex : new CompletionException(ex);
+				}
+				return null;
+			}
+			var list = toList(keys);
+			if (list.isEmpty()) {
+				stats.miss(System.nanoTime() - started);
+				return last ? list : null;
+			}
+			stats.hit(System.nanoTime() - started);
+			writeBack(tier, principal, list);
+			return list;
+		}).thenCompose(keys -> keys == null ? listKeysAsync(client, principal, tier + 1)
+				: CompletableFuture.completedFuture(keys));
+	}
+
+	private void writeBack(int tier, String principal, List<String> keys) {
+		for (int i = 0; i < tier; i++) {
+			if (tiers.get(i) instanceof WritableKeySource) {
+				try {
+					((WritableKeySource) tiers.get(i)).writeKeys(principal, keys);
+					statistics.get(i).write();
+				} catch (RuntimeException re) {
+					statistics.get(i).writeError();
+				}
+			}
+		}
+	}
+
+	private static List<String> toList(Iterable<String> keys) {
+		if (keys instanceof List) {
+			return (List<String>) keys;
+		}
+		var list = new ArrayList<String>();
+		keys.forEach(list::add);
+		return list;
+	}
+}
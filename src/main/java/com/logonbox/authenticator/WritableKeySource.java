@@ -0,0 +1,39 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.util.List;
+
+/**
+ * A {@link KeySource} that keys may also be written to, allowing it to be used
+ * as an upper tier of a {@link TieredKeySource}.
+ */
+public interface WritableKeySource extends KeySource {
+
+	/**
+	 * Write the keys for a principal, replacing any it already has.
+	 *
+	 * @param principal principal
+	 * @param keys      keys
+	 */
+	void writeKeys(String principal, List<String> keys);
+}
@@ -0,0 +1,44 @@
+package com.logonbox.authenticator;
+
+/*
+ * #%L
+ * LogonBox Authenticator API
+ * %%
+ * Copyright (C) 2022 LogonBox Limited
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the threads {@link AuthenticatorClient} runs blocking work on. This
+ * is the Java 21 version, where every task gets its own virtual thread, so a
+ * user waiting to approve on their device costs little more than the request
+ * itself.
+ */
+final class Threads {
+
+	private Threads() {
+	}
+
+	static boolean isVirtualSupported() {
+		return true;
+	}
+
+	static ExecutorService newVirtualThreadPerTaskExecutor(String name) {
+		return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+	}
+}
@@ -2,18 +2,53 @@ package com.logonbox.authenticator;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.net.Authenticator;
+import java.net.CookieHandler;
+import java.net.ProxySelector;
+import java.net.http.HttpClient;
+import java.net.http.HttpClient.Builder;
+import java.net.http.HttpClient.Redirect;
+import java.net.http.HttpClient.Version;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.PushPromiseHandler;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+
 import org.junit.jupiter.api.Test;
 
-public class AuthenticatorClientTest extends AbstractTest {
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordingFile;
+
+public class AuthenticatorClientTest extends AbstractHttpTest {
 
 	@Test
 	void testDefaultRng() {
@@ -42,6 +77,15 @@ public class AuthenticatorClientTest extends AbstractTest {
 		assertEquals("test.mydomain.com", client.getKeySource().getHostname());
 	}
 
+	@Test
+	void testCreate3() {
+		var client = new AuthenticatorClient(new CachingKeySource(new DefaultKeySource("test.mydomain.com", 8443)));
+		configureClient(client);
+		assertEquals(8443, client.getKeySource().getPort());
+		assertEquals("test.mydomain.com", client.getKeySource().getHostname());
+		assertEquals("test.mydomain.com", ((DefaultSignatureGenerator) client.getSignatureGenerator()).getHostname());
+	}
+
 	@Test
 	void testUpdate() {
 		var client = new AuthenticatorClient("test.mydomain.com");
@@ -54,6 +98,46 @@ public class AuthenticatorClientTest extends AbstractTest {
 		assertEquals("A remote name", client.getRemoteName());
 	}
 
+	@Test
+	void testSharedHttpClient() {
+		var client = new AuthenticatorClient("test.mydomain.com");
+		configureClient(client);
+		var http = client.getHttpClient();
+		assertSame(http, client.getHttpClient());
+
+		client.setConnectTimeout(Duration.ofSeconds(5));
+		client.setHttpVersion(Version.HTTP_1_1);
+		var http2 = client.getHttpClient();
+		assertNotSame(http, http2);
+		assertSame(http2, client.getHttpClient());
+		assertEquals(Duration.ofSeconds(5), http2.connectTimeout().get());
+		assertEquals(Version.HTTP_1_1, http2.version());
+	}
+
+	@Test
+	void testReconfigureClosesHttpClient() throws Exception {
+		var closed = new CountDownLatch(1);
+		var client = new AuthenticatorClient("test.mydomain.com") {
+			@Override
+			protected Builder newHttpClientBuilder() {
+				return closeableBuilder(HttpClient.newBuilder(), closed);
+			}
+		};
+		configureClient(client);
+		client.getHttpClient();
+		client.setConnectTimeout(Duration.ofSeconds(5));
+		assertTrue(closed.await(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	void testCloseHttpClient() {
+		var client = new AuthenticatorClient("test.mydomain.com");
+		configureClient(client);
+		client.getHttpClient();
+		client.close();
+		assertThrows(IllegalStateException.class, () -> client.getHttpClient());
+	}
+
 	@Test
 	void testGetRSAKey() throws Exception {
 		var keys = keyList();
@@ -79,6 +163,94 @@ public class AuthenticatorClientTest extends AbstractTest {
 				|| "EdDSA".equals(inkeys.iterator().next().getAlgorithm()));
 	}
 
+	@Test
+	void testDecodedKeysAreCached() throws Exception {
+		var keys = keyList();
+		var client = new AuthenticatorClient((c, p, f, t, bt, e, fl) -> {
+			throw new UnsupportedOperationException();
+		}, (c, p) -> keys, (c) -> new byte[c]);
+		configureClient(client);
+		var first = client.getUserKeys("test").iterator().next();
+		assertSame(first, client.getUserKeys("test").iterator().next());
+
+		client.setKeyCacheSize(0);
+		var second = client.getUserKeys("test").iterator().next();
+		assertNotSame(first, second);
+		assertEquals(first, second);
+	}
+
+	@Test
+	void testGetUserKeyRevokedInPlace() throws Exception {
+		var keys = new ArrayList<>(keyList());
+		var client = new AuthenticatorClient((c, p, f, t, bt, e, fl) -> {
+			throw new UnsupportedOperationException();
+		}, (c, p) -> keys, (c) -> new byte[c]);
+		configureClient(client);
+
+		var key = client.getUserKey("test", "SHA256:BzftJTuzZTYRl9xxAqRVJKvWc4zPMn0iAS4IV8PVUMo");
+		assertEquals("RSA", key.getAlgorithm());
+		keys.removeIf(k -> k.startsWith("ssh-rsa"));
+		assertThrows(IllegalArgumentException.class,
+				() -> client.getUserKey("test", "SHA256:BzftJTuzZTYRl9xxAqRVJKvWc4zPMn0iAS4IV8PVUMo"));
+	}
+
+	@Test
+	void testGetUserKeyByFingerprint() throws Exception {
+		var keys = keyList();
+		var calls = new AtomicInteger();
+		var client = new AuthenticatorClient((c, p, f, t, bt, e, fl) -> {
+			throw new UnsupportedOperationException();
+		}, new CachingKeySource((c, p) -> {
+			calls.incrementAndGet();
+			return keys;
+		}), (c) -> new byte[c]);
+		configureClient(client);
+		client.setKeyCacheSize(0);
+
+		var key = client.getUserKey("test", "SHA256:BzftJTuzZTYRl9xxAqRVJKvWc4zPMn0iAS4IV8PVUMo");
+		assertEquals("RSA", key.getAlgorithm());
+		assertSame(key, client.getUserKey("test", "SHA256:BzftJTuzZTYRl9xxAqRVJKvWc4zPMn0iAS4IV8PVUMo"));
+		assertEquals(1, calls.get());
+		assertThrows(IllegalArgumentException.class, () -> client.getUserKey("test", "SHA256:XXXX"));
+
+		client.setSupportedAlgorithms(Arrays.asList("ssh-ed25519"));
+		assertThrows(IllegalArgumentException.class,
+				() -> client.getUserKey("test", "SHA256:BzftJTuzZTYRl9xxAqRVJKvWc4zPMn0iAS4IV8PVUMo"));
+	}
+
+	@Test
+	void testGetUserKeyFromStore() throws Exception {
+		var calls = new AtomicInteger();
+		try (var store = new OffHeapKeyStore()) {
+			store.put("test", new StoredKeys(keyList(), System.currentTimeMillis()));
+			var keySource = new CachingKeySource((c, p) -> {
+				calls.incrementAndGet();
+				return keyList();
+			});
+			keySource.setStore(store);
+			var client = new AuthenticatorClient((c, p, f, t, bt, e, fl) -> {
+				throw new UnsupportedOperationException();
+			}, keySource, (c) -> new byte[c]);
+			configureClient(client);
+			var metrics = new DefaultMetrics();
+			client.setMetrics(metrics);
+
+			var key = client.getUserKey("test", "SHA256:BzftJTuzZTYRl9xxAqRVJKvWc4zPMn0iAS4IV8PVUMo");
+			assertEquals("RSA", key.getAlgorithm());
+			assertEquals(1, metrics.snapshot(Metrics.Phase.KEY_DECODE, "ssh-rsa", Metrics.Outcome.SUCCESS).getCount());
+			assertEquals(0,
+					metrics.snapshot(Metrics.Phase.KEY_DECODE, "ssh-ed25519", Metrics.Outcome.SUCCESS).getCount());
+			assertEquals(0, calls.get());
+			assertEquals(1, keySource.getStoreHits());
+
+			/* Not in the store, so the keys are listed */
+			assertThrows(IllegalArgumentException.class, () -> client.getUserKey("test", "SHA256:XXXX"));
+			client.setSupportedAlgorithms(Arrays.asList("ssh-ed25519"));
+			assertThrows(IllegalArgumentException.class,
+					() -> client.getUserKey("test", "SHA256:BzftJTuzZTYRl9xxAqRVJKvWc4zPMn0iAS4IV8PVUMo"));
+		}
+	}
+
 	@Test
 	void testDirectRSAZeroRandomBytes() throws Exception {
 		var sig = Base64.getDecoder().decode(
@@ -170,6 +342,338 @@ public class AuthenticatorClientTest extends AbstractTest {
 		assertFalse(client.authenticate("test").verify());
 	}
 
+	@Test
+	void testDirectAsyncEd25519SequentialRandomBytes() throws Exception {
+		var sig = Base64.getDecoder()
+				.decode("1eB+ogdIs4G/+KvZBNI1Gzh6tQNsHn5BsFiDUhMPr3igf2Pnnm6bwRWlUlXYFUmi4LEr1mR9Jvc/5QUA9zm/CQ==");
+		var keys = keyList();
+		var client = new AuthenticatorClient((c, p, f, t, bt, e, fl) -> sig, (c, p) -> keys, sequentialRng());
+		configureClient(client);
+		client.setSupportedAlgorithms(Arrays.asList("ssh-ed25519"));
+		assertTrue(client.authenticateAsync("test").get().verify());
+	}
+
+	@Test
+	void testDirectAsyncFallbackToNextKey() throws Exception {
+		var sig = Base64.getDecoder().decode(
+				"FcYTC3MqvhBeWZimEclN6c1ERnYdPOfWL7Uc3gGUybs+3wIow1rZ0/mH9c4VJ2IkwgdEDspmyppoGge8JMPrFf5zxsqQzJiUzqKFQDFOe3HcSRwjJk3OM8KFaQTymHubWsCiRQCGoiUuMd+7ETF6uANad3bT6fbAWiAPjhxJSwKP4udihMXhznuNfK7llNZT9t5EdMIiS4Xp7jh4L7ZddBINTR/O/fSBRk4HAppR5yJanEnHk7pfYjRxji+7jvtwx0nDAIhgkubsnelNGTgy1zDbHGt2cBS47XSMcyzN6xChFPHCN8b6J78mEP8vCjFCZReoAckzQqelbzBoKoneS/zDmqJqNeV21RfHCKApeZ877ZW0v54B4tHNeeWGFj7nbs8PzAe8UQAAU9jZyyQIi1qYZWKK7vtqhz3OurTqGvLSrFiVGOBV3rzguqbF+Tf4a4YCUhyg+AAW266yS/vB2aVxka+SQ6fNKAnDbiFxRRCzUT5sZl+XBSg7IS/TSwVU");
+		var keys = keyList();
+		var client = new AuthenticatorClient((c, p, f, t, bt, e, fl) -> {
+			if (fl == 0)
+				throw new IOException("Ed25519 refused");
+			return sig;
+		}, (c, p) -> keys, sequentialRng());
+		configureClient(client);
+		assertTrue(client.authenticateAsync("test").get().verify());
+	}
+
+	@Test
+	void testMetrics() throws Exception {
+		var sig = Base64.getDecoder().decode(
+				"FcYTC3MqvhBeWZimEclN6c1ERnYdPOfWL7Uc3gGUybs+3wIow1rZ0/mH9c4VJ2IkwgdEDspmyppoGge8JMPrFf5zxsqQzJiUzqKFQDFOe3HcSRwjJk3OM8KFaQTymHubWsCiRQCGoiUuMd+7ETF6uANad3bT6fbAWiAPjhxJSwKP4udihMXhznuNfK7llNZT9t5EdMIiS4Xp7jh4L7ZddBINTR/O/fSBRk4HAppR5yJanEnHk7pfYjRxji+7jvtwx0nDAIhgkubsnelNGTgy1zDbHGt2cBS47XSMcyzN6xChFPHCN8b6J78mEP8vCjFCZReoAckzQqelbzBoKoneS/zDmqJqNeV21RfHCKApeZ877ZW0v54B4tHNeeWGFj7nbs8PzAe8UQAAU9jZyyQIi1qYZWKK7vtqhz3OurTqGvLSrFiVGOBV3rzguqbF+Tf4a4YCUhyg+AAW266yS/vB2aVxka+SQ6fNKAnDbiFxRRCzUT5sZl+XBSg7IS/TSwVU");
+		var keys = keyList();
+		var client = new AuthenticatorClient((c, p, f, t, bt, e, fl) -> {
+			if (fl == 0)
+				throw new IOException("Ed25519 refused");
+			return sig;
+		}, (c, p) -> keys, sequentialRng());
+		configureClient(client);
+		var metrics = new DefaultMetrics();
+		client.setMetrics(metrics);
+		var response = client.authenticate("test");
+		assertEquals("ssh-rsa", response.getAlgorithm());
+		assertTrue(response.verify());
+
+		assertEquals(1, metrics.snapshot(Metrics.Phase.KEY_FETCH, null, Metrics.Outcome.SUCCESS).getCount());
+		for (var algorithm : Arrays.asList("ssh-ed25519", "ssh-rsa")) {
+			assertEquals(1, metrics.snapshot(Metrics.Phase.KEY_DECODE, algorithm, Metrics.Outcome.SUCCESS).getCount());
+			assertEquals(1, metrics.snapshot(Metrics.Phase.FINGERPRINT, algorithm, Metrics.Outcome.SUCCESS).getCount());
+		}
+		assertEquals(1, metrics.snapshot(Metrics.Phase.SIGNATURE_REQUEST, "ssh-ed25519", Metrics.Outcome.FAILURE)
+				.getCount());
+		assertEquals(1,
+				metrics.snapshot(Metrics.Phase.SIGNATURE_REQUEST, "ssh-rsa", Metrics.Outcome.SUCCESS).getCount());
+		assertEquals(1, metrics.snapshot(Metrics.Phase.VERIFY, "ssh-rsa", Metrics.Outcome.SUCCESS).getCount());
+		assertEquals(8, metrics.snapshot().size());
+
+		/* Decoded keys are cached, so not timed again */
+		client.authenticateAsync("test").get();
+		assertEquals(2, metrics.snapshot(Metrics.Phase.KEY_FETCH, null, Metrics.Outcome.SUCCESS).getCount());
+		assertEquals(1,
+				metrics.snapshot(Metrics.Phase.KEY_DECODE, "ssh-rsa", Metrics.Outcome.SUCCESS).getCount());
+		assertEquals(2,
+				metrics.snapshot(Metrics.Phase.SIGNATURE_REQUEST, "ssh-rsa", Metrics.Outcome.SUCCESS).getCount());
+	}
+
+	@Test
+	void testFlightRecorderEvents() throws Exception {
+		var sig = Base64.getDecoder().decode(
+				"FcYTC3MqvhBeWZimEclN6c1ERnYdPOfWL7Uc3gGUybs+3wIow1rZ0/mH9c4VJ2IkwgdEDspmyppoGge8JMPrFf5zxsqQzJiUzqKFQDFOe3HcSRwjJk3OM8KFaQTymHubWsCiRQCGoiUuMd+7ETF6uANad3bT6fbAWiAPjhxJSwKP4udihMXhznuNfK7llNZT9t5EdMIiS4Xp7jh4L7ZddBINTR/O/fSBRk4HAppR5yJanEnHk7pfYjRxji+7jvtwx0nDAIhgkubsnelNGTgy1zDbHGt2cBS47XSMcyzN6xChFPHCN8b6J78mEP8vCjFCZReoAckzQqelbzBoKoneS/zDmqJqNeV21RfHCKApeZ877ZW0v54B4tHNeeWGFj7nbs8PzAe8UQAAU9jZyyQIi1qYZWKK7vtqhz3OurTqGvLSrFiVGOBV3rzguqbF+Tf4a4YCUhyg+AAW266yS/vB2aVxka+SQ6fNKAnDbiFxRRCzUT5sZl+XBSg7IS/TSwVU");
+		var keys = keyList();
+		var client = new AuthenticatorClient((c, p, f, t, bt, e, fl) -> {
+			if (fl == 0)
+				throw new IOException("Ed25519 refused");
+			return sig;
+		}, (c, p) -> keys, sequentialRng());
+		configureClient(client);
+
+		var file = Files.createTempFile("authenticator", ".jfr");
+		try {
+			try (var recording = new Recording()) {
+				for (var name : Arrays.asList("Authenticate", "KeyDecode", "Verify")) {
+					recording.enable("com.logonbox.authenticator." + name).withThreshold(Duration.ZERO);
+				}
+				recording.start();
+				assertTrue(client.authenticate("test").verify());
+				recording.stop();
+				recording.dump(file);
+			}
+
+			var events = RecordingFile.readAllEvents(file);
+			var authenticate = events.stream()
+					.filter(e -> e.getEventType().getName().equals("com.logonbox.authenticator.Authenticate"))
+					.findFirst().orElseThrow();
+			assertEquals("ssh-rsa", authenticate.getString("algorithm"));
+			assertTrue(authenticate.getBoolean("success"));
+			assertEquals(AuthenticatorEvent.hash("test"), authenticate.getString("principalHash"));
+			assertEquals(16, authenticate.getString("principalHash").length());
+
+			assertEquals(2, events.stream()
+					.filter(e -> e.getEventType().getName().equals("com.logonbox.authenticator.KeyDecode")).count());
+			var verify = events.stream()
+					.filter(e -> e.getEventType().getName().equals("com.logonbox.authenticator.Verify"))
+					.findFirst().orElseThrow();
+			assertEquals("ssh-rsa", verify.getString("algorithm"));
+			assertTrue(verify.getBoolean("verified"));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	void testVirtualThreads() throws Exception {
+		var keys = keyList();
+		var threads = new ArrayList<String>();
+		var client = new AuthenticatorClient((c, p, f, t, bt, e, fl) -> {
+			throw new UnsupportedOperationException();
+		}, (c, p) -> {
+			threads.add(Thread.currentThread().getName());
+			return keys;
+		}, sequentialRng());
+		configureClient(client);
+		assertFalse(client.isVirtualThreads());
+		if (!AuthenticatorClient.isVirtualThreadsSupported()) {
+			assertThrows(UnsupportedOperationException.class, () -> client.setVirtualThreads(true));
+			assertFalse(client.isVirtualThreads());
+			return;
+		}
+
+		client.setVirtualThreads(true);
+		assertEquals(keys, client.getKeySource().listKeysAsync(client, "test").get());
+		assertTrue(threads.get(0).startsWith("AuthenticatorClient-"));
+
+		/* Closed, so the futures fail rather than the calls throwing */
+		client.close();
+		var ex = assertThrows(ExecutionException.class,
+				() -> client.getKeySource().listKeysAsync(client, "test").get(10, TimeUnit.SECONDS));
+		assertEquals(IllegalStateException.class, ex.getCause().getClass());
+		ex = assertThrows(ExecutionException.class, () -> client.getSignatureGenerator()
+				.requestSignatureAsync(client, "test", "SHA256:XXXX", "", "", "", 0).get(10, TimeUnit.SECONDS));
+		assertEquals(IllegalStateException.class, ex.getCause().getClass());
+		ex = assertThrows(ExecutionException.class,
+				() -> client.generateRequestAsync("test", "https://localhost").get(10, TimeUnit.SECONDS));
+		assertEquals(IllegalStateException.class, ex.getCause().getClass());
+	}
+
+	@Test
+	void testAuthenticateAll() throws Exception {
+		var keys = keyList();
+		var inFlight = new AtomicInteger();
+		var maxInFlight = new AtomicInteger();
+		var client = new AuthenticatorClient(delayedSignatureGenerator(inFlight, maxInFlight), (c, p) -> keys,
+				sequentialRng());
+		configureClient(client);
+
+		var principals = new ArrayList<String>();
+		for (int i = 0; i < 20; i++) {
+			principals.add((i % 5 == 0 ? "deny" : "user") + i);
+		}
+		var options = new BulkAuthenticationOptions();
+		options.setParallelism(3);
+		var results = new ArrayList<BulkAuthenticationResult>();
+		client.authenticateAll(principals, options, results::add).get(10, TimeUnit.SECONDS);
+
+		assertEquals(20, results.size());
+		assertEquals(3, maxInFlight.get());
+		for (var result : results) {
+			if (result.getPrincipal().startsWith("deny")) {
+				assertFalse(result.isSuccess());
+				assertEquals(IllegalArgumentException.class, result.getError().getClass());
+			} else {
+				assertTrue(result.isSuccess());
+				assertEquals("ssh-ed25519", result.getResponse().getAlgorithm());
+			}
+		}
+		assertEquals(4, results.stream().filter(r -> !r.isSuccess()).count());
+	}
+
+	@Test
+	void testAuthenticateAllTimeout() throws Exception {
+		var keys = keyList();
+		var client = new AuthenticatorClient(delayedSignatureGenerator(new AtomicInteger(), new AtomicInteger()),
+				(c, p) -> keys, sequentialRng());
+		configureClient(client);
+
+		var options = new BulkAuthenticationOptions();
+		options.setTimeout(Duration.ofMillis(500));
+		var results = new ArrayList<BulkAuthenticationResult>();
+		client.authenticateAll(Arrays.asList("slow", "user1"), options, results::add).get(10, TimeUnit.SECONDS);
+
+		assertEquals(2, results.size());
+		assertEquals("user1", results.get(0).getPrincipal());
+		assertTrue(results.get(0).isSuccess());
+		assertEquals("slow", results.get(1).getPrincipal());
+		assertEquals(TimeoutException.class, results.get(1).getError().getClass());
+
+		/* The timeout is reported on time, but the place is held until the request finishes */
+		options.setParallelism(1);
+		var started = System.nanoTime();
+		var reported = new ArrayList<Long>();
+		results.clear();
+		client.authenticateAll(Arrays.asList("slow", "user1"), options, r -> {
+			results.add(r);
+			reported.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+		}).get(10, TimeUnit.SECONDS);
+
+		assertEquals(2, results.size());
+		assertEquals("slow", results.get(0).getPrincipal());
+		assertEquals(TimeoutException.class, results.get(0).getError().getClass());
+		assertTrue(reported.get(0) < 1500);
+		assertEquals("user1", results.get(1).getPrincipal());
+		assertTrue(reported.get(1) >= 2000);
+		assertThrows(IllegalArgumentException.class, () -> options.setParallelism(0));
+		assertThrows(IllegalArgumentException.class, () -> options.setTimeout(Duration.ZERO));
+	}
+
+	@Test
+	void testAuthenticateAllStopsWhenConsumerFails() throws Exception {
+		var keys = keyList();
+		var client = new AuthenticatorClient(delayedSignatureGenerator(new AtomicInteger(), new AtomicInteger()),
+				(c, p) -> keys, sequentialRng());
+		configureClient(client);
+
+		var options = new BulkAuthenticationOptions();
+		options.setParallelism(1);
+		var results = new ArrayList<BulkAuthenticationResult>();
+		var future = client.authenticateAll(Arrays.asList("user1", "user2", "user3"), options, r -> {
+			results.add(r);
+			throw new IllegalStateException("Stop");
+		});
+		var ex = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+		assertEquals(IllegalStateException.class, ex.getCause().getClass());
+		Thread.sleep(200);
+		assertEquals(1, results.size());
+	}
+
+	@Test
+	void testAuthenticateAllIteratorFails() throws Exception {
+		var keys = keyList();
+		var client = new AuthenticatorClient(delayedSignatureGenerator(new AtomicInteger(), new AtomicInteger()),
+				(c, p) -> keys, sequentialRng());
+		configureClient(client);
+
+		var options = new BulkAuthenticationOptions();
+		options.setParallelism(1);
+		for (var good = 0; good < 2; good++) {
+			var results = new ArrayList<BulkAuthenticationResult>();
+			var future = client.authenticateAll(failingAfter(good), options, results::add);
+			var ex = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+			assertEquals(NoSuchElementException.class, ex.getCause().getClass());
+			Thread.sleep(200);
+			assertEquals(good, results.size());
+		}
+	}
+
+	/**
+	 * A collection whose iterator returns a number of principals, then fails.
+	 */
+	private static Collection<String> failingAfter(int good) {
+		return new AbstractCollection<>() {
+			@Override
+			public Iterator<String> iterator() {
+				return new Iterator<>() {
+					private int taken;
+
+					@Override
+					public boolean hasNext() {
+						if (taken == good) {
+							throw new NoSuchElementException("Failed to read principals.");
+						}
+						return true;
+					}
+
+					@Override
+					public String next() {
+						hasNext();
+						return "user" + ++taken;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return Integer.MAX_VALUE;
+			}
+		};
+	}
+
+	/**
+	 * Approves after a short delay without holding a thread, except for
+	 * principals starting with <code>deny</code>, which are refused, and
+	 * <code>slow</code>, which never finish approving.
+	 */
+	private static SignatureGenerator delayedSignatureGenerator(AtomicInteger inFlight, AtomicInteger maxInFlight) {
+		return new SignatureGenerator() {
+			@Override
+			public byte[] requestSignature(AuthenticatorClient client, String principal, String fingerprint,
+					String text, String buttonText, String encodedPayload, int flags) throws IOException {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public CompletableFuture<byte[]> requestSignatureAsync(AuthenticatorClient client, String principal,
+					String fingerprint, String text, String buttonText, String encodedPayload, int flags) {
+				var future = new CompletableFuture<byte[]>();
+				if (principal.equals("slow")) {
+					CompletableFuture.delayedExecutor(2, TimeUnit.SECONDS).execute(() -> future.complete(new byte[64]));
+					return future;
+				}
+				maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+				CompletableFuture.delayedExecutor(50, TimeUnit.MILLISECONDS).execute(() -> {
+					inFlight.decrementAndGet();
+					if (principal.startsWith("deny")) {
+						future.completeExceptionally(new IOException("Denied"));
+					} else {
+						future.complete(new byte[64]);
+					}
+				});
+				return future;
+			}
+		};
+	}
+
+	@Test
+	void testDirectAsyncNoSuitableKey() throws Exception {
+		var keys = keyList();
+		var client = new AuthenticatorClient((c, p, f, t, bt, e, fl) -> {
+			throw new UnsupportedOperationException();
+		}, (c, p) -> keys, sequentialRng());
+		configureClient(client);
+		client.setSupportedAlgorithms(Arrays.asList("ecdsa-sha2-nistp256"));
+		var ex = assertThrows(ExecutionException.class, () -> client.authenticateAsync("test").get());
+		assertEquals(IllegalArgumentException.class, ex.getCause().getClass());
+	}
+
 	@Test
 	void testDefaultConstructor() {
 		var c = new AuthenticatorClient();
@@ -181,6 +685,99 @@ public class AuthenticatorClientTest extends AbstractTest {
 	protected void configureClient(AuthenticatorClient client) {
 	}
 
+	/**
+	 * Wrap a builder so it creates clients that count down when closed, as
+	 * {@link HttpClient} is only {@link AutoCloseable} from Java 21.
+	 */
+	static Builder closeableBuilder(Builder builder, CountDownLatch closed) {
+		return (Builder) Proxy.newProxyInstance(Builder.class.getClassLoader(), new Class<?>[] { Builder.class },
+				(proxy, method, args) -> {
+					var result = method.invoke(builder, args);
+					if (method.getName().equals("build")) {
+						return new CloseableHttpClient((HttpClient) result, closed);
+					}
+					return result == builder ? proxy : result;
+				});
+	}
+
+	static final class CloseableHttpClient extends HttpClient implements AutoCloseable {
+		private final HttpClient delegate;
+		private final CountDownLatch closed;
+
+		CloseableHttpClient(HttpClient delegate, CountDownLatch closed) {
+			this.delegate = delegate;
+			this.closed = closed;
+		}
+
+		@Override
+		public void close() {
+			closed.countDown();
+		}
+
+		@Override
+		public Optional<CookieHandler> cookieHandler() {
+			return delegate.cookieHandler();
+		}
+
+		@Override
+		public Optional<Duration> connectTimeout() {
+			return delegate.connectTimeout();
+		}
+
+		@Override
+		public Redirect followRedirects() {
+			return delegate.followRedirects();
+		}
+
+		@Override
+		public Optional<ProxySelector> proxy() {
+			return delegate.proxy();
+		}
+
+		@Override
+		public SSLContext sslContext() {
+			return delegate.sslContext();
+		}
+
+		@Override
+		public SSLParameters sslParameters() {
+			return delegate.sslParameters();
+		}
+
+		@Override
+		public Optional<Authenticator> authenticator() {
+			return delegate.authenticator();
+		}
+
+		@Override
+		public Version version() {
+			return delegate.version();
+		}
+
+		@Override
+		public Optional<Executor> executor() {
+			return delegate.executor();
+		}
+
+		@Override
+		public <T> HttpResponse<T> send(HttpRequest request, BodyHandler<T> responseBodyHandler)
+				throws IOException, InterruptedException {
+			return delegate.send(request, responseBodyHandler);
+		}
+
+		@Override
+		public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+				BodyHandler<T> responseBodyHandler) {
+			return delegate.sendAsync(request, responseBodyHandler);
+		}
+
+		@Override
+		public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+				BodyHandler<T> responseBodyHandler, PushPromiseHandler<T> pushPromiseHandler) {
+			return delegate.sendAsync(request, responseBodyHandler, pushPromiseHandler);
+		}
+	}
+
 	static List<String> keyList() {
 		return Arrays.asList(
 				"ssh-ed25519 AAAAC3NzaC1lZDI1NTE5AAAAIL0ISnrIwtSbFr9oRTZNHJfaWcHH7xYKeCRJx8O3N+7+ LogonBox Key",
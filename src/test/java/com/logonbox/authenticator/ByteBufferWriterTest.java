@@ -0,0 +1,105 @@
+package com.logonbox.authenticator;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import org.junit.jupiter.api.Test;
+
+public class ByteBufferWriterTest {
+
+	@Test
+	void testSameAsByteArrayWriter() throws Exception {
+		var str = "A Test String é€😀";
+		var bi = new BigInteger("-329802389981797891243908975290812");
+		var expected = new ByteArrayWriter();
+		expected.writeBoolean(true);
+		expected.writeString(str);
+		expected.writeString(null);
+		expected.writeInt(4294967040l);
+		expected.writeBigInteger(bi);
+		expected.writeBinaryString(new byte[] { 1, 2, 3 });
+		expected.write(new byte[] { 4, 5 });
+
+		try (var w = ByteBufferWriter.acquire(1)) {
+			w.writeBoolean(true);
+			w.writeString(str);
+			w.writeString(null);
+			w.writeInt(4294967040l);
+			w.writeBigInteger(bi);
+			w.writeBinaryString(ByteBuffer.wrap(new byte[] { 0, 1, 2, 3, 0 }, 1, 3));
+			w.write(new byte[] { 4, 5 });
+			assertArrayEquals(expected.toByteArray(), w.toByteArray());
+			assertEquals(expected.size(), w.size());
+		}
+	}
+
+	@Test
+	void testUINT64() throws Exception {
+		try (var w = ByteBufferWriter.acquire(1)) {
+			w.writeUINT64(-2);
+			w.writeUINT64(0x0102030405060708L);
+			assertEquals(16, w.toByteBuffer().remaining());
+			var r = new ByteBufferReader(w.toByteArray());
+			assertEquals(-2, r.readUINT64());
+			assertEquals(0x0102030405060708L, r.readUINT64());
+			assertThrows(IOException.class, () -> r.readUINT64());
+		}
+	}
+
+	@Test
+	void testSizes() throws IOException {
+		var bi = new BigInteger("329802389981797891243908975290812");
+		var str = "Café € 😀";
+		var bw = new ByteArrayWriter();
+		bw.writeBigInteger(bi);
+		assertEquals(bw.size(), ByteBufferWriter.sizeOfBigInteger(bi));
+		bw = new ByteArrayWriter();
+		bw.writeString(str);
+		assertEquals(bw.size(), ByteBufferWriter.sizeOfString(str));
+		assertEquals(4, ByteBufferWriter.sizeOfString(null));
+		assertEquals(14, ByteBufferWriter.sizeOfBinaryString(10));
+	}
+
+	@Test
+	void testBase64AndDigest() throws Exception {
+		try (var w = ByteBufferWriter.acquire(16)) {
+			w.writeString("A Test String");
+			var data = "A Test String".getBytes(StandardCharsets.UTF_8);
+			var expected = new byte[data.length + 4];
+			expected[3] = (byte) data.length;
+			System.arraycopy(data, 0, expected, 4, data.length);
+
+			assertEquals(Base64.getUrlEncoder().encodeToString(expected), w.toBase64Url());
+
+			var md = MessageDigest.getInstance("SHA-256");
+			w.digest(md);
+			assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(expected), md.digest());
+		}
+	}
+
+	@Test
+	void testPooled() {
+		ByteBufferWriter first;
+		try (var w = ByteBufferWriter.acquire(16)) {
+			first = w;
+			w.writeInt(1);
+			try (var nested = ByteBufferWriter.acquire(16)) {
+				assertNotSame(w, nested);
+			}
+		}
+		try (var w = ByteBufferWriter.acquire(16)) {
+			assertSame(first, w);
+			assertEquals(0, w.size());
+		}
+	}
+}
@@ -0,0 +1,489 @@
+package com.logonbox.authenticator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CachingKeySourceTest {
+
+	@Test
+	void testCachesUntilExpiry() {
+		var calls = new AtomicInteger();
+		var time = new AtomicLong();
+		var ks = new CachingKeySource((c, p) -> {
+			calls.incrementAndGet();
+			return AuthenticatorClientTest.keyList();
+		}, Duration.ofSeconds(10), 10, time::get);
+
+		var keys = ks.listKeys(null, "test");
+		assertEquals(AuthenticatorClientTest.keyList(), keys);
+		assertSame(keys, ks.listKeys(null, "test"));
+		assertEquals(1, calls.get());
+		assertEquals(1, ks.getHits());
+		assertEquals(1, ks.getMisses());
+
+		time.addAndGet(Duration.ofSeconds(10).toNanos());
+		ks.listKeys(null, "test");
+		assertEquals(2, calls.get());
+		assertEquals(2, ks.getMisses());
+	}
+
+	@Test
+	void testRevalidatesExpiredKeys() throws Exception {
+		var previous = new ArrayList<List<String>>();
+		var time = new AtomicLong();
+		var ks = new CachingKeySource(new KeySource() {
+			@Override
+			public Iterable<String> listKeys(AuthenticatorClient client, String principal) {
+				previous.add(null);
+				return AuthenticatorClientTest.keyList();
+			}
+
+			@Override
+			public Iterable<String> revalidateKeys(AuthenticatorClient client, String principal,
+					List<String> keys) {
+				previous.add(keys);
+				return keys;
+			}
+
+			@Override
+			public CompletableFuture<Iterable<String>> revalidateKeysAsync(AuthenticatorClient client,
+					String principal, List<String> keys) {
+				previous.add(keys);
+				return CompletableFuture.completedFuture(keys);
+			}
+		}, Duration.ofSeconds(10), 10, time::get);
+
+		var keys = ks.listKeys(null, "test");
+		time.addAndGet(Duration.ofSeconds(10).toNanos());
+		assertSame(keys, ks.listKeys(null, "test"));
+		time.addAndGet(Duration.ofSeconds(10).toNanos());
+		assertSame(keys, ks.listKeysAsync(null, "test").get());
+		assertEquals(Arrays.asList(null, keys, keys), previous);
+	}
+
+	@Test
+	void testAsync() throws Exception {
+		var calls = new AtomicInteger();
+		var ks = new CachingKeySource((c, p) -> {
+			calls.incrementAndGet();
+			return AuthenticatorClientTest.keyList();
+		});
+		var keys = ks.listKeysAsync(null, "test").get();
+		assertEquals(AuthenticatorClientTest.keyList(), keys);
+		assertSame(keys, ks.listKeysAsync(null, "test").get());
+		assertSame(keys, ks.listKeys(null, "test"));
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	void testEvictsLeastRecentlyUsed() {
+		var calls = new AtomicInteger();
+		var ks = new CachingKeySource((c, p) -> {
+			calls.incrementAndGet();
+			return AuthenticatorClientTest.keyList();
+		}, Duration.ofMinutes(1), 2);
+
+		ks.listKeys(null, "a");
+		ks.listKeys(null, "b");
+		ks.listKeys(null, "a");
+		ks.listKeys(null, "c");
+		assertEquals(2, ks.size());
+		assertEquals(3, calls.get());
+
+		ks.listKeys(null, "a");
+		assertEquals(3, calls.get());
+		ks.listKeys(null, "b");
+		assertEquals(4, calls.get());
+	}
+
+	@Test
+	void testInvalidate() {
+		var calls = new AtomicInteger();
+		var ks = new CachingKeySource((c, p) -> {
+			calls.incrementAndGet();
+			return AuthenticatorClientTest.keyList();
+		});
+		ks.listKeys(null, "a");
+		ks.listKeys(null, "b");
+		ks.invalidate("a");
+		ks.listKeys(null, "a");
+		ks.listKeys(null, "b");
+		assertEquals(3, calls.get());
+
+		ks.invalidateAll();
+		assertEquals(0, ks.size());
+		ks.listKeys(null, "b");
+		assertEquals(4, calls.get());
+	}
+
+	@Test
+	void testDelegatesHost() {
+		var ks = new CachingKeySource(new DefaultKeySource("qwerty", 12345));
+		assertEquals("qwerty", ks.getHostname());
+		assertEquals(12345, ks.getPort());
+	}
+
+	@Test
+	void testBadMaxEntries() {
+		assertThrows(IllegalArgumentException.class,
+				() -> new CachingKeySource((c, p) -> AuthenticatorClientTest.keyList(), Duration.ofMinutes(1), 0));
+	}
+
+	@Test
+	void testRefreshAhead() throws Exception {
+		var calls = new AtomicInteger();
+		var time = new AtomicLong();
+		try (var ks = new CachingKeySource((c, p) -> {
+			calls.incrementAndGet();
+			return AuthenticatorClientTest.keyList();
+		}, Duration.ofSeconds(10), 10, time::get)) {
+			ks.setRefreshAhead(Duration.ofSeconds(2));
+
+			var keys = ks.listKeys(null, "test");
+			time.addAndGet(Duration.ofSeconds(5).toNanos());
+			assertSame(keys, ks.listKeys(null, "test"));
+			assertEquals(1, calls.get());
+
+			time.addAndGet(Duration.ofSeconds(4).toNanos());
+			assertSame(keys, ks.listKeys(null, "test"));
+			waitFor(() -> ks.getRefreshes() == 1);
+			assertEquals(2, calls.get());
+
+			/* Refreshed entry has a new expiry, and unchanged keys keep their instance */
+			time.addAndGet(Duration.ofSeconds(5).toNanos());
+			assertSame(keys, ks.listKeys(null, "test"));
+			assertEquals(2, calls.get());
+			assertEquals(1, ks.getMisses());
+		}
+	}
+
+	@Test
+	void testStaleGracePeriod() throws Exception {
+		var calls = new AtomicInteger();
+		var fail = new AtomicInteger();
+		var time = new AtomicLong();
+		try (var ks = new CachingKeySource((c, p) -> {
+			calls.incrementAndGet();
+			if (fail.get() > 0) {
+				throw new IllegalStateException("Failed to list keys.");
+			}
+			return AuthenticatorClientTest.keyList();
+		}, Duration.ofSeconds(10), 10, time::get)) {
+			ks.setStaleGracePeriod(Duration.ofSeconds(30));
+
+			var keys = ks.listKeys(null, "test");
+			fail.set(1);
+			time.addAndGet(Duration.ofSeconds(20).toNanos());
+			assertSame(keys, ks.listKeys(null, "test"));
+			assertEquals(1, ks.getStaleHits());
+			waitFor(() -> ks.getRefreshFailures() == 1);
+
+			/* Still served while within the grace period */
+			assertSame(keys, ks.listKeys(null, "test"));
+			assertEquals(2, ks.getStaleHits());
+			waitFor(() -> ks.getRefreshFailures() == 2);
+
+			/* And not after it */
+			time.addAndGet(Duration.ofSeconds(20).toNanos());
+			assertThrows(IllegalStateException.class, () -> ks.listKeys(null, "test"));
+			assertEquals(2, ks.getMisses());
+		}
+	}
+
+	@Test
+	void testRefreshPriority() throws Exception {
+		var time = new AtomicLong();
+		var release = new CountDownLatch(1);
+		var order = Collections.synchronizedList(new ArrayList<String>());
+		try (var ks = new CachingKeySource((c, p) -> {
+			if (time.get() > 0) {
+				order.add(p);
+				if (p.equals("blocker")) {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}
+			return AuthenticatorClientTest.keyList();
+		}, Duration.ofSeconds(10), 10, time::get)) {
+			ks.setRefreshAhead(Duration.ofSeconds(5));
+			ks.setRefreshConcurrency(1);
+
+			for (var p : List.of("blocker", "cold", "hot")) {
+				ks.listKeys(null, p);
+			}
+			for (int i = 0; i < 5; i++) {
+				ks.listKeys(null, "hot");
+			}
+
+			time.addAndGet(Duration.ofSeconds(6).toNanos());
+			ks.listKeys(null, "blocker");
+			waitFor(() -> order.size() == 1);
+			ks.listKeys(null, "cold");
+			ks.listKeys(null, "hot");
+			release.countDown();
+
+			waitFor(() -> ks.getRefreshes() == 3);
+			assertEquals(List.of("blocker", "hot", "cold"), order);
+		}
+	}
+
+	@Test
+	void testInvalidateDuringRefresh() throws Exception {
+		var time = new AtomicLong();
+		var release = new CountDownLatch(1);
+		try (var ks = new CachingKeySource((c, p) -> {
+			if (time.get() > 0) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			return AuthenticatorClientTest.keyList();
+		}, Duration.ofSeconds(10), 10, time::get)) {
+			ks.setRefreshAhead(Duration.ofSeconds(5));
+			ks.listKeys(null, "test");
+			time.addAndGet(Duration.ofSeconds(6).toNanos());
+			ks.listKeys(null, "test");
+			ks.invalidate("test");
+			release.countDown();
+			waitFor(() -> ks.getRefreshes() == 1);
+			assertEquals(0, ks.size());
+		}
+	}
+
+	@Test
+	void testBadRefreshSettings() {
+		var ks = new CachingKeySource((c, p) -> AuthenticatorClientTest.keyList());
+		assertThrows(IllegalArgumentException.class, () -> ks.setRefreshAhead(Duration.ofSeconds(-1)));
+		assertThrows(IllegalArgumentException.class, () -> ks.setStaleGracePeriod(Duration.ofSeconds(-1)));
+		assertThrows(IllegalArgumentException.class, () -> ks.setRefreshConcurrency(0));
+	}
+
+	@Test
+	void testNegativeCacheEmpty() throws Exception {
+		var calls = new AtomicInteger();
+		var time = new AtomicLong();
+		var ks = new CachingKeySource((c, p) -> {
+			calls.incrementAndGet();
+			return p.equals("known") ? AuthenticatorClientTest.keyList() : List.of();
+		}, Duration.ofMinutes(5), 10, time::get);
+		ks.setNegativeTtl(Duration.ofSeconds(30));
+
+		assertFalse(ks.listKeys(null, "unknown").iterator().hasNext());
+		assertFalse(ks.listKeys(null, "unknown").iterator().hasNext());
+		assertFalse(ks.listKeysAsync(null, "unknown").get().iterator().hasNext());
+		assertEquals(1, calls.get());
+		assertEquals(2, ks.getNegativeHits());
+		assertEquals(1, ks.getMisses());
+		assertEquals(0, ks.size());
+		assertEquals(1, ks.negativeSize());
+
+		time.addAndGet(Duration.ofSeconds(30).toNanos());
+		ks.listKeys(null, "unknown");
+		assertEquals(2, calls.get());
+
+		ks.invalidate("unknown");
+		assertEquals(0, ks.negativeSize());
+		ks.listKeys(null, "known");
+		assertEquals(1, ks.size());
+	}
+
+	@Test
+	void testNegativeCacheError() throws Exception {
+		var calls = new AtomicInteger();
+		var failure = new IllegalStateException("Failed to list keys.");
+		var ks = new CachingKeySource((c, p) -> {
+			calls.incrementAndGet();
+			throw failure;
+		});
+		ks.setNegativeTtl(Duration.ofSeconds(30));
+
+		assertSame(failure, assertThrows(IllegalStateException.class, () -> ks.listKeys(null, "test")));
+		var cached = assertThrows(IllegalStateException.class, () -> ks.listKeys(null, "test"));
+		assertEquals(failure.getMessage(), cached.getMessage());
+		assertSame(failure, cached.getCause());
+		var ee = assertThrows(ExecutionException.class, () -> ks.listKeysAsync(null, "test").get());
+		assertSame(failure, ee.getCause().getCause());
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	void testNegativeCacheNotShed() throws Exception {
+		var calls = new AtomicInteger();
+		var ks = new CachingKeySource((c, p) -> {
+			if (calls.incrementAndGet() == 1) {
+				throw new IllegalStateException("Failed to list keys.",
+						new ConcurrencyLimitException("Too many requests waiting."));
+			}
+			return AuthenticatorClientTest.keyList();
+		});
+		ks.setNegativeTtl(Duration.ofSeconds(30));
+
+		assertThrows(IllegalStateException.class, () -> ks.listKeys(null, "test"));
+		assertEquals(0, ks.negativeSize());
+		assertEquals(AuthenticatorClientTest.keyList(), ks.listKeys(null, "test"));
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	void testNegativeCacheAsyncError() throws Exception {
+		var calls = new AtomicInteger();
+		var failure = new IllegalStateException("Failed to list keys.");
+		var ks = new CachingKeySource(new KeySource() {
+			@Override
+			public Iterable<String> listKeys(AuthenticatorClient client, String principal) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public CompletableFuture<Iterable<String>> listKeysAsync(AuthenticatorClient client,
+					String principal) {
+				calls.incrementAndGet();
+				return CompletableFuture.failedFuture(failure);
+			}
+		});
+		ks.setNegativeTtl(Duration.ofSeconds(30));
+
+		assertSame(failure,
+				assertThrows(ExecutionException.class, () -> ks.listKeysAsync(null, "test").get()).getCause());
+		assertSame(failure, assertThrows(IllegalStateException.class, () -> ks.listKeys(null, "test")).getCause());
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	void testNegativeCacheBounded() {
+		var ks = new CachingKeySource((c, p) -> List.of());
+		ks.setNegativeTtl(Duration.ofSeconds(30));
+		ks.setMaxNegativeEntries(2);
+		ks.listKeys(null, "a");
+		ks.listKeys(null, "b");
+		ks.listKeys(null, "c");
+		assertEquals(2, ks.negativeSize());
+		ks.setMaxNegativeEntries(1);
+		assertEquals(1, ks.negativeSize());
+		assertThrows(IllegalArgumentException.class, () -> ks.setMaxNegativeEntries(0));
+	}
+
+	@Test
+	void testNegativeCacheDisabledByDefault() {
+		var calls = new AtomicInteger();
+		var ks = new CachingKeySource((c, p) -> {
+			calls.incrementAndGet();
+			return List.of();
+		});
+		ks.listKeys(null, "unknown");
+		ks.listKeys(null, "unknown");
+		assertEquals(1, calls.get());
+		assertEquals(0, ks.negativeSize());
+	}
+
+	@Test
+	void testUnchangedKeysKeepInstance() {
+		var time = new AtomicLong();
+		var ks = new CachingKeySource((c, p) -> AuthenticatorClientTest.keyList(), Duration.ofSeconds(10), 10,
+				time::get);
+		var keys = ks.listKeys(null, "test");
+		time.addAndGet(Duration.ofSeconds(10).toNanos());
+		assertSame(keys, ks.listKeys(null, "test"));
+		assertEquals(2, ks.getMisses());
+	}
+
+	@Test
+	void testStoreWarmStart(@TempDir Path dir) throws Exception {
+		var calls = new AtomicInteger();
+		var time = new AtomicLong(Duration.ofDays(1000).toNanos());
+		KeySource source = (c, p) -> {
+			calls.incrementAndGet();
+			return AuthenticatorClientTest.keyList();
+		};
+		try (var store = new FileKeyStore(dir.resolve("keys"))) {
+			var ks = new CachingKeySource(source, Duration.ofSeconds(10), 10, time::get, () -> millis(time));
+			ks.setStore(store);
+			ks.listKeys(null, "test");
+			assertEquals(1, calls.get());
+		}
+
+		time.addAndGet(Duration.ofSeconds(5).toNanos());
+		try (var store = new FileKeyStore(dir.resolve("keys"))) {
+			var ks = new CachingKeySource(source, Duration.ofSeconds(10), 10, time::get, () -> millis(time));
+			ks.setStore(store);
+			var keys = ks.listKeys(null, "test");
+			assertEquals(AuthenticatorClientTest.keyList(), keys);
+			assertSame(keys, ks.listKeysAsync(null, "test").get());
+			assertEquals(1, calls.get());
+			assertEquals(1, ks.getStoreHits());
+
+			/* Expires when it would have if never restarted */
+			time.addAndGet(Duration.ofSeconds(5).toNanos());
+			ks.listKeys(null, "test");
+			assertEquals(2, calls.get());
+		}
+	}
+
+	@Test
+	void testStoreFallback(@TempDir Path dir) throws Exception {
+		var fail = new AtomicInteger();
+		var time = new AtomicLong(Duration.ofDays(1000).toNanos());
+		try (var store = new FileKeyStore(dir.resolve("keys"))) {
+			var ks = new CachingKeySource((c, p) -> {
+				if (fail.get() > 0) {
+					throw new IllegalStateException("Failed to list keys.");
+				}
+				return AuthenticatorClientTest.keyList();
+			}, Duration.ofSeconds(10), 10, time::get, () -> millis(time));
+			ks.setStore(store);
+			ks.setStoreMaxAge(Duration.ofHours(1));
+			ks.listKeys(null, "test");
+
+			fail.set(1);
+			time.addAndGet(Duration.ofMinutes(30).toNanos());
+			assertEquals(AuthenticatorClientTest.keyList(), ks.listKeys(null, "test"));
+			assertEquals(AuthenticatorClientTest.keyList(), ks.listKeysAsync(null, "test").get());
+			assertEquals(2, ks.getStoreHits());
+
+			time.addAndGet(Duration.ofMinutes(30).toNanos());
+			assertThrows(IllegalStateException.class, () -> ks.listKeys(null, "test"));
+
+			ks.invalidate("test");
+			assertNull(store.get("test"));
+		}
+	}
+
+	private static long millis(AtomicLong time) {
+		return TimeUnit.NANOSECONDS.toMillis(time.get());
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		var timeout = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > timeout) {
+				throw new AssertionError("Timed out waiting for condition.");
+			}
+			Thread.sleep(10);
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package com.logonbox.authenticator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import com.logonbox.authenticator.CircuitBreaker.State;
+
+public class CircuitBreakerTest {
+
+	private final static long SECOND = Duration.ofSeconds(1).toNanos();
+
+	@Test
+	public void testConsecutiveFailures() {
+		var endpoint = new Endpoint("a");
+		var group = new EndpointGroup(endpoint);
+		var breaker = endpoint.getCircuitBreaker();
+		var policy = group.getCircuitBreakerPolicy();
+
+		for (var i = 0; i < policy.getConsecutiveFailures() - 1; i++) {
+			breaker.record(0, 0, true, group);
+		}
+		breaker.record(0, 0, false, group);
+		assertEquals(0, breaker.getConsecutiveFailures());
+		assertEquals(State.CLOSED, breaker.getState());
+		for (var i = 0; i < policy.getConsecutiveFailures(); i++) {
+			breaker.record(0, 0, true, group);
+		}
+		assertEquals(State.OPEN, breaker.getState());
+		assertFalse(breaker.tryAcquire(0, group));
+		assertFalse(breaker.isAvailable(policy.getOpenTime().toNanos() - 1, policy));
+		assertTrue(breaker.isAvailable(policy.getOpenTime().toNanos(), policy));
+	}
+
+	@Test
+	public void testFailureRate() {
+		var endpoint = new Endpoint("a");
+		var group = new EndpointGroup(endpoint);
+		var breaker = endpoint.getCircuitBreaker();
+		var policy = group.getCircuitBreakerPolicy();
+		policy.setWindow(Duration.ofSeconds(10));
+		policy.setMinimumRequests(10);
+		policy.setFailureRateThreshold(0.5);
+		policy.setConsecutiveFailures(Integer.MAX_VALUE);
+
+		/* Alternate success and failure, so never many in a row */
+		for (var i = 0; i < 9; i++) {
+			breaker.record(i * SECOND, 0, i % 2 == 0, group);
+		}
+		assertEquals(State.CLOSED, breaker.getState());
+
+		/* The oldest have left the window, leaving 3 failures out of 7 */
+		breaker.record(12 * SECOND, 0, false, group);
+		assertEquals(State.CLOSED, breaker.getState());
+		breaker.record(12 * SECOND, 0, true, group);
+		breaker.record(12 * SECOND, 0, true, group);
+		assertEquals(State.CLOSED, breaker.getState());
+		breaker.record(12 * SECOND, 0, true, group);
+		assertEquals(State.OPEN, breaker.getState());
+	}
+
+	@Test
+	public void testSlowRate() {
+		var endpoint = new Endpoint("a");
+		var group = new EndpointGroup(endpoint);
+		var breaker = endpoint.getCircuitBreaker();
+		var policy = group.getCircuitBreakerPolicy();
+		policy.setSlowRequestDuration(Duration.ofSeconds(1));
+		policy.setSlowRateThreshold(0.5);
+
+		for (var i = 0; i < policy.getMinimumRequests() - 1; i++) {
+			breaker.record(0, 2 * SECOND, false, group);
+		}
+		assertEquals(State.CLOSED, breaker.getState());
+		breaker.record(0, 2 * SECOND, false, group);
+		assertEquals(State.OPEN, breaker.getState());
+	}
+
+	@Test
+	public void testHalfOpen() {
+		var endpoint = new Endpoint("a");
+		var group = new EndpointGroup(endpoint);
+		var breaker = endpoint.getCircuitBreaker();
+		var policy = group.getCircuitBreakerPolicy();
+		policy.setConsecutiveFailures(1);
+		policy.setHalfOpenRequests(2);
+		policy.setOpenTime(Duration.ofSeconds(10));
+		policy.setMaxOpenTime(Duration.ofSeconds(30));
+		var changes = new ArrayList<State>();
+		group.addCircuitBreakerListener((e, from, to) -> changes.add(to));
+
+		breaker.record(0, 0, true, group);
+		assertEquals(10 * SECOND, breaker.getOpenUntil());
+
+		/* Two trials allowed, one given back */
+		var now = 10 * SECOND;
+		assertTrue(breaker.tryAcquire(now, group));
+		assertEquals(State.HALF_OPEN, breaker.getState());
+		assertTrue(breaker.tryAcquire(now, group));
+		assertFalse(breaker.tryAcquire(now, group));
+		breaker.release();
+		assertTrue(breaker.isAvailable(now, policy));
+
+		/* A failed trial opens it again, for longer each time up to the maximum */
+		breaker.record(now, 0, true, group);
+		assertEquals(now + 20 * SECOND, breaker.getOpenUntil());
+		now = breaker.getOpenUntil();
+		assertTrue(breaker.tryAcquire(now, group));
+		breaker.record(now, 0, true, group);
+		assertEquals(now + 30 * SECOND, breaker.getOpenUntil());
+
+		/* Enough successful trials close it */
+		now = breaker.getOpenUntil();
+		assertTrue(breaker.tryAcquire(now, group));
+		assertTrue(breaker.tryAcquire(now, group));
+		breaker.record(now, 0, false, group);
+		assertEquals(State.HALF_OPEN, breaker.getState());
+		breaker.record(now, 0, false, group);
+		assertEquals(State.CLOSED, breaker.getState());
+		assertEquals(Arrays.asList(State.OPEN, State.HALF_OPEN, State.OPEN, State.HALF_OPEN, State.OPEN,
+				State.HALF_OPEN, State.CLOSED), changes);
+
+		/* And the next opening is back to the shortest */
+		breaker.record(now, 0, true, group);
+		assertEquals(now + 10 * SECOND, breaker.getOpenUntil());
+	}
+
+	@Test
+	public void testInvalidPolicy() {
+		var policy = new CircuitBreakerPolicy();
+		assertThrows(IllegalArgumentException.class, () -> policy.setFailureRateThreshold(0));
+		assertThrows(IllegalArgumentException.class, () -> policy.setSlowRateThreshold(1.1));
+		assertThrows(IllegalArgumentException.class, () -> policy.setConsecutiveFailures(0));
+		assertThrows(IllegalArgumentException.class, () -> policy.setHalfOpenRequests(0));
+		assertThrows(IllegalArgumentException.class, () -> policy.setWindow(Duration.ZERO));
+	}
+}
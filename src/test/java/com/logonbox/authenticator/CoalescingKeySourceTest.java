@@ -0,0 +1,135 @@
+package com.logonbox.authenticator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class CoalescingKeySourceTest {
+
+	@Test
+	void testConcurrentRequestsShareOneCall() throws Exception {
+		var calls = new AtomicInteger();
+		var release = new CountDownLatch(1);
+		var ks = new CoalescingKeySource((c, p) -> {
+			calls.incrementAndGet();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+			return AuthenticatorClientTest.keyList();
+		});
+
+		var results = new ArrayList<Future<Iterable<String>>>();
+		for (int i = 0; i < 5; i++) {
+			results.add(CompletableFuture.supplyAsync(() -> ks.listKeys(null, "test")));
+		}
+		results.add(ks.listKeysAsync(null, "test"));
+		while (ks.getDeduplicated() < 5) {
+			Thread.sleep(10);
+		}
+		release.countDown();
+
+		for (var r : results) {
+			assertEquals(AuthenticatorClientTest.keyList(), r.get());
+		}
+		assertEquals(1, calls.get());
+		assertEquals(5, ks.getDeduplicated());
+		assertEquals(0, ks.getInFlight());
+
+		ks.listKeys(null, "test");
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	void testFailureIsShared() throws Exception {
+		var release = new CountDownLatch(1);
+		var failure = new IllegalStateException("Failed to list keys.");
+		var ks = new CoalescingKeySource((c, p) -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+			throw failure;
+		});
+
+		var first = CompletableFuture.supplyAsync(() -> ks.listKeys(null, "test"));
+		while (ks.getInFlight() == 0) {
+			Thread.sleep(10);
+		}
+		var second = ks.listKeysAsync(null, "test");
+		var third = CompletableFuture.supplyAsync(() -> ks.listKeys(null, "test"));
+		while (ks.getDeduplicated() < 2) {
+			Thread.sleep(10);
+		}
+		release.countDown();
+
+		assertSame(failure, assertThrows(ExecutionException.class, () -> first.get()).getCause());
+
+		/* Each waiter gets its own exception, caused by the shared one */
+		var secondFailure = assertThrows(ExecutionException.class, () -> second.get()).getCause();
+		var thirdFailure = assertThrows(ExecutionException.class, () -> third.get()).getCause();
+		assertNotSame(secondFailure, thirdFailure);
+		for (var waiterFailure : List.of(secondFailure, thirdFailure)) {
+			assertNotSame(failure, waiterFailure);
+			assertEquals(failure.getMessage(), waiterFailure.getMessage());
+			assertSame(failure, waiterFailure.getCause());
+		}
+		assertEquals(0, ks.getInFlight());
+	}
+
+	@Test
+	void testDifferentPrincipalsNotShared() {
+		var calls = new AtomicInteger();
+		var ks = new CoalescingKeySource((c, p) -> {
+			calls.incrementAndGet();
+			return AuthenticatorClientTest.keyList();
+		});
+		ks.listKeys(null, "a");
+		ks.listKeys(null, "b");
+		assertEquals(2, calls.get());
+		assertEquals(0, ks.getDeduplicated());
+	}
+
+	@Test
+	void testRevalidateIsForwarded() throws Exception {
+		var revalidated = new ArrayList<List<String>>();
+		var ks = new CoalescingKeySource(new KeySource() {
+			@Override
+			public Iterable<String> listKeys(AuthenticatorClient client, String principal) {
+				return AuthenticatorClientTest.keyList();
+			}
+
+			@Override
+			public Iterable<String> revalidateKeys(AuthenticatorClient client, String principal,
+					List<String> previous) {
+				revalidated.add(previous);
+				return previous;
+			}
+
+			@Override
+			public CompletableFuture<Iterable<String>> revalidateKeysAsync(AuthenticatorClient client,
+					String principal, List<String> previous) {
+				return CompletableFuture.completedFuture(revalidateKeys(client, principal, previous));
+			}
+		});
+		var previous = List.of("key");
+
+		ks.listKeys(null, "test");
+		assertEquals(previous, ks.revalidateKeys(null, "test", previous));
+		assertEquals(previous, ks.revalidateKeysAsync(null, "test", previous).get());
+		assertEquals(List.of(previous, previous), revalidated);
+	}
+}
@@ -0,0 +1,169 @@
+package com.logonbox.authenticator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import com.logonbox.authenticator.ConcurrencyLimiter.Permit;
+
+public class ConcurrencyLimiterTest {
+
+	private final static long MS = Duration.ofMillis(1).toNanos();
+
+	@Test
+	public void testQueueAndReject() throws Exception {
+		var limiter = new ConcurrencyLimiter(2);
+		limiter.setMaxQueue(1);
+		limiter.setMaxWait(null);
+
+		var a = limiter.acquire(true);
+		var b = limiter.acquire(true);
+		assertEquals(2, limiter.getInFlight());
+
+		var c = limiter.acquireAsync(true);
+		assertFalse(c.isDone());
+		assertEquals(1, limiter.getQueueDepth());
+
+		var d = limiter.acquireAsync(true);
+		var ex = assertThrows(ExecutionException.class, () -> d.get());
+		assertTrue(ex.getCause() instanceof ConcurrencyLimitException);
+		assertEquals(1, limiter.getRejected());
+
+		a.ignore();
+		assertTrue(c.isDone());
+		assertEquals(0, limiter.getQueueDepth());
+		assertEquals(2, limiter.getInFlight());
+
+		/* Giving a permit back twice has no effect */
+		a.ignore();
+		assertEquals(2, limiter.getInFlight());
+		b.ignore();
+		c.get().ignore();
+		assertEquals(0, limiter.getInFlight());
+		assertEquals(2, limiter.getLimit());
+	}
+
+	@Test
+	public void testMaxWait() throws Exception {
+		var limiter = new ConcurrencyLimiter(1);
+		limiter.setMaxWait(Duration.ofMillis(50));
+		var a = limiter.acquire(true);
+		var started = System.currentTimeMillis();
+		assertThrows(ConcurrencyLimitException.class, () -> limiter.acquire(true));
+		assertTrue(System.currentTimeMillis() - started >= 50);
+		assertEquals(0, limiter.getQueueDepth());
+		assertEquals(1, limiter.getRejected());
+		a.ignore();
+		limiter.acquire(true).ignore();
+	}
+
+	@Test
+	public void testIncrease() throws Exception {
+		var ticker = new AtomicLong();
+		var limiter = new ConcurrencyLimiter(4, ticker::get);
+
+		/* Not increased while the limit is not being used */
+		for (var i = 0; i < 20; i++) {
+			var permit = limiter.acquire(true);
+			ticker.addAndGet(10 * MS);
+			permit.success();
+		}
+		assertEquals(4, limiter.getLimit());
+
+		/* Increased by up to one per round trip when it is */
+		for (var round = 0; round < 4; round++) {
+			var permits = new ArrayList<Permit>();
+			for (var i = 0; i < limiter.getLimit(); i++) {
+				permits.add(limiter.acquire(true));
+			}
+			ticker.addAndGet(10 * MS);
+			permits.forEach(p -> p.success());
+		}
+		assertTrue(limiter.getLimit() >= 5);
+		assertTrue(limiter.getLimit() <= limiter.getMaxLimit());
+	}
+
+	@Test
+	public void testDecrease() throws Exception {
+		var ticker = new AtomicLong();
+		var limiter = new ConcurrencyLimiter(100, ticker::get);
+		limiter.setBackoff(0.5);
+
+		var permit = limiter.acquire(true);
+		ticker.addAndGet(10 * MS);
+		permit.success();
+		assertEquals(100, limiter.getLimit());
+
+		/* Much slower than the baseline */
+		permit = limiter.acquire(true);
+		ticker.addAndGet(30 * MS);
+		permit.success();
+		assertEquals(50, limiter.getLimit());
+
+		/* Slow, but a signature request */
+		permit = limiter.acquire(false);
+		ticker.addAndGet(30 * MS);
+		permit.success();
+		assertEquals(50, limiter.getLimit());
+
+		/* Failed */
+		permit = limiter.acquire(true);
+		permit.dropped();
+		assertEquals(25, limiter.getLimit());
+		assertEquals(1, limiter.getDropped());
+
+		/* Never below the minimum */
+		limiter.setMinLimit(10);
+		for (var i = 0; i < 10; i++) {
+			limiter.acquire(true).dropped();
+		}
+		assertEquals(10, limiter.getLimit());
+	}
+
+	@Test
+	public void testInvalid() {
+		var limiter = new ConcurrencyLimiter();
+		assertThrows(IllegalArgumentException.class, () -> new ConcurrencyLimiter(0));
+		assertThrows(IllegalArgumentException.class, () -> limiter.setMinLimit(0));
+		assertThrows(IllegalArgumentException.class, () -> limiter.setMaxLimit(0));
+		assertThrows(IllegalArgumentException.class, () -> limiter.setMaxQueue(-1));
+		assertThrows(IllegalArgumentException.class, () -> limiter.setRttTolerance(1));
+		assertThrows(IllegalArgumentException.class, () -> limiter.setBackoff(1));
+		assertThrows(IllegalArgumentException.class, () -> limiter.setMaxSignatureRequests(0));
+	}
+
+	@Test
+	public void testSignatureRequests() throws Exception {
+		var limiter = new ConcurrencyLimiter(2);
+		limiter.setMaxSignatureRequests(3);
+		limiter.setMaxQueue(0);
+
+		/* More signature requests than the limit, none of them counted by it */
+		var permits = new ArrayList<Permit>();
+		for (var i = 0; i < 3; i++) {
+			permits.add(limiter.acquire(false));
+		}
+		assertEquals(3, limiter.getSignatureRequests());
+		assertEquals(0, limiter.getInFlight());
+		var ex = assertThrows(ExecutionException.class, () -> limiter.acquireAsync(false).get());
+		assertTrue(ex.getCause() instanceof ConcurrencyLimitException);
+		assertEquals(1, limiter.getRejected());
+
+		/* Key requests are still allowed */
+		limiter.acquire(true).success();
+
+		/* Failing does not lower the limit */
+		permits.forEach(Permit::dropped);
+		assertEquals(0, limiter.getSignatureRequests());
+		assertEquals(0, limiter.getDropped());
+		assertEquals(2, limiter.getLimit());
+	}
+}
@@ -0,0 +1,57 @@
+package com.logonbox.authenticator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.Test;
+
+public class DecodedKeyCacheTest {
+
+	@Test
+	void testGetPut() {
+		var cache = new DecodedKeyCache(10);
+		var key = new DecodedKey(null, "ssh-ed25519", "SHA256:xxxx");
+		assertNull(cache.get("AAAA"));
+		cache.put("AAAA", key);
+		assertSame(key, cache.get("AAAA"));
+	}
+
+	@Test
+	void testBounded() {
+		var cache = new DecodedKeyCache(5);
+		for (int i = 0; i < 20; i++) {
+			cache.put("KEY" + i, new DecodedKey(null, "ssh-ed25519", "SHA256:" + i));
+		}
+		assertEquals(5, cache.size());
+		cache.setMaxSize(2);
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	void testEvictsLeastRecentlyUsed() {
+		var cache = new DecodedKeyCache(3);
+		for (int i = 0; i < 3; i++) {
+			cache.put("KEY" + i, new DecodedKey(null, "ssh-ed25519", "SHA256:" + i));
+		}
+		assertNotNull(cache.get("KEY0"));
+		cache.put("KEY3", new DecodedKey(null, "ssh-ed25519", "SHA256:3"));
+		assertNotNull(cache.get("KEY0"));
+		assertNull(cache.get("KEY1"));
+		assertNotNull(cache.get("KEY2"));
+		assertNotNull(cache.get("KEY3"));
+
+		cache.setMaxSize(1);
+		assertEquals(1, cache.size());
+		assertNotNull(cache.get("KEY3"));
+	}
+
+	@Test
+	void testDisabled() {
+		var cache = new DecodedKeyCache(0);
+		cache.put("AAAA", new DecodedKey(null, "ssh-ed25519", "SHA256:xxxx"));
+		assertNull(cache.get("AAAA"));
+		assertEquals(0, cache.size());
+	}
+}
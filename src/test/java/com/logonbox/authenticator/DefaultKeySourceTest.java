@@ -1,22 +1,37 @@
 package com.logonbox.authenticator;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.matching;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.jupiter.api.Test;
 
 import com.github.tomakehurst.wiremock.junit5.WireMockRuntimeInfo;
 import com.github.tomakehurst.wiremock.junit5.WireMockTest;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
 
 @WireMockTest(httpsEnabled = true)
 public class DefaultKeySourceTest extends AbstractHttpTest {
@@ -47,6 +62,59 @@ public class DefaultKeySourceTest extends AbstractHttpTest {
 		assertFalse(it.hasNext());
 	}
 
+	@Test
+	public void testListKeysCloseEarly(WireMockRuntimeInfo wmRuntimeInfo) throws Exception {
+		var kl = AuthenticatorClientTest.keyList();
+		stubFor(get(urlEqualTo("/app/api/authenticator/keys/test@test.com"))
+				.willReturn(aResponse().withHeader("Content-Type", "text/plain")
+						.withBody(String.join("\r\n", Stream
+								.concat(Arrays.asList("# Authorized", "", "# Some other comment").stream(), kl.stream())
+								.collect(Collectors.toList())))
+						.withChunkedDribbleDelay(4, 200)));
+
+		var ks = new DefaultKeySource("localhost", wmRuntimeInfo.getHttpsPort());
+		var client = createClient();
+		var it = ks.listKeys(client, "test@test.com").iterator();
+		assertTrue(it.hasNext());
+		assertEquals(kl.get(0), it.next());
+		assertTrue(it instanceof Closeable);
+		((Closeable) it).close();
+		assertFalse(it.hasNext());
+	}
+
+	@Test
+	public void testListKeysAsync(WireMockRuntimeInfo wmRuntimeInfo) throws Exception {
+		var kl = AuthenticatorClientTest.keyList();
+		stubFor(get(urlEqualTo("/app/api/authenticator/keys/test@test.com"))
+				.willReturn(aResponse().withHeader("Content-Type", "text/plain")
+						.withBody(String.join("\r\n", Stream
+								.concat(Arrays.asList("# Authorized", "", "# Some other comment").stream(), kl.stream())
+								.collect(Collectors.toList())))));
+
+		var ks = new DefaultKeySource("localhost", wmRuntimeInfo.getHttpsPort());
+		var client = createClient();
+		var it = ks.listKeysAsync(client, "test@test.com").get().iterator();
+		assertTrue(it.hasNext());
+		assertEquals(kl.get(0), it.next());
+		assertTrue(it.hasNext());
+		assertEquals(kl.get(1), it.next());
+		assertFalse(it.hasNext());
+	}
+
+	@Test
+	public void testFailListKeysAsyncUnexpectedFormat(WireMockRuntimeInfo wmRuntimeInfo) {
+		var kl = AuthenticatorClientTest.keyList();
+		stubFor(get(urlEqualTo("/app/api/authenticator/keys/test@test.com"))
+				.willReturn(aResponse().withHeader("Content-Type", "text/plain").withBody(String.join("\r\n", Stream
+						.concat(Arrays.asList("# XXXXXXXXXX").stream(), kl.stream()).collect(Collectors.toList())))));
+		var ks = new DefaultKeySource("localhost", wmRuntimeInfo.getHttpsPort());
+		var client = createClient();
+		var ex = assertThrows(ExecutionException.class, () -> {
+			ks.listKeysAsync(client, "test@test.com").get();
+		});
+		assertEquals(IllegalStateException.class, ex.getCause().getClass());
+	}
+
 	@Test
 	public void testFailListKeysUnexpectedFormat(WireMockRuntimeInfo wmRuntimeInfo) {
 		var kl = AuthenticatorClientTest.keyList();
@@ -59,4 +127,211 @@ public class DefaultKeySourceTest extends AbstractHttpTest {
 			ks.listKeys(client, "test@test.com").iterator();
 		});
 	}
+
+	@Test
+	public void testListKeysConditional(WireMockRuntimeInfo wmRuntimeInfo) throws Exception {
+		var kl = AuthenticatorClientTest.keyList();
+		stubFor(get(urlEqualTo("/app/api/authenticator/keys/test@test.com"))
+				.willReturn(aResponse().withHeader("Content-Type", "text/plain").withHeader("ETag", "\"v1\"")
+						.withHeader("Last-Modified", "Wed, 21 Oct 2015 07:28:00 GMT").withBody(authorizedKeys(kl))));
+		stubFor(get(urlEqualTo("/app/api/authenticator/keys/test@test.com"))
+				.withHeader("If-None-Match", equalTo("\"v1\""))
+				.withHeader("If-Modified-Since", equalTo("Wed, 21 Oct 2015 07:28:00 GMT")).atPriority(1)
+				.willReturn(aResponse().withStatus(304)));
+
+		var ks = new DefaultKeySource("localhost", wmRuntimeInfo.getHttpsPort());
+		var client = createClient();
+		var keys = toList(ks.listKeys(client, "test@test.com"));
+		assertEquals(kl, keys);
+		assertEquals(kl, toList(ks.revalidateKeys(client, "test@test.com", keys)));
+		assertSame(keys, ks.revalidateKeysAsync(client, "test@test.com", keys).get());
+		verify(2, getRequestedFor(urlEqualTo("/app/api/authenticator/keys/test@test.com"))
+				.withHeader("If-None-Match", equalTo("\"v1\"")));
+
+		/* Only revalidating is conditional, as only then are there keys to return */
+		assertEquals(kl, toList(ks.listKeys(client, "test@test.com")));
+		verify(2, getRequestedFor(urlEqualTo("/app/api/authenticator/keys/test@test.com"))
+				.withHeader("If-None-Match", equalTo("\"v1\"")));
+	}
+
+	@Test
+	public void testListKeysAsyncConditional(WireMockRuntimeInfo wmRuntimeInfo) throws Exception {
+		var kl = AuthenticatorClientTest.keyList();
+		stubFor(get(urlEqualTo("/app/api/authenticator/keys/test@test.com")).willReturn(aResponse()
+				.withHeader("Content-Type", "text/plain").withHeader("ETag", "\"v1\"").withBody(authorizedKeys(kl))));
+		stubFor(get(urlEqualTo("/app/api/authenticator/keys/test@test.com"))
+				.withHeader("If-None-Match", equalTo("\"v1\"")).atPriority(1)
+				.willReturn(aResponse().withStatus(304)));
+
+		var ks = new DefaultKeySource("localhost", wmRuntimeInfo.getHttpsPort());
+		var client = createClient();
+		var keys = ks.listKeysAsync(client, "test@test.com").get();
+		assertEquals(kl, keys);
+		assertSame(kl, ks.revalidateKeysAsync(client, "test@test.com", kl).get());
+		verify(1, getRequestedFor(urlEqualTo("/app/api/authenticator/keys/test@test.com"))
+				.withHeader("If-None-Match", equalTo("\"v1\"")));
+	}
+
+	@Test
+	public void testRevalidateDifferentKeys(WireMockRuntimeInfo wmRuntimeInfo) throws Exception {
+		var kl = AuthenticatorClientTest.keyList();
+		stubFor(get(urlEqualTo("/app/api/authenticator/keys/test@test.com")).willReturn(aResponse()
+				.withHeader("Content-Type", "text/plain").withHeader("ETag", "\"v1\"").withBody(authorizedKeys(kl))));
+		stubFor(get(urlEqualTo("/app/api/authenticator/keys/test@test.com"))
+				.withHeader("If-None-Match", equalTo("\"v1\"")).atPriority(1)
+				.willReturn(aResponse().withStatus(304)));
+
+		var ks = new DefaultKeySource("localhost", wmRuntimeInfo.getHttpsPort());
+		var client = createClient();
+		toList(ks.listKeys(client, "test@test.com"));
+
+		/* The validators are for other keys than these, so they must not be confirmed */
+		var revoked = List.of(kl.get(0));
+		assertEquals(kl, toList(ks.revalidateKeys(client, "test@test.com", revoked)));
+		assertEquals(kl, ks.revalidateKeysAsync(client, "test@test.com", revoked).get());
+		verify(0, getRequestedFor(urlEqualTo("/app/api/authenticator/keys/test@test.com"))
+				.withHeader("If-None-Match", matching(".*")));
+	}
+
+	@Test
+	public void testListKeysNotValidatedWhenIncomplete(WireMockRuntimeInfo wmRuntimeInfo) throws Exception {
+		var kl = AuthenticatorClientTest.keyList();
+		stubFor(get(urlEqualTo("/app/api/authenticator/keys/test@test.com")).willReturn(aResponse()
+				.withHeader("Content-Type", "text/plain").withHeader("ETag", "\"v1\"").withBody(authorizedKeys(kl))));
+
+		var ks = new DefaultKeySource("localhost", wmRuntimeInfo.getHttpsPort());
+		var client = createClient();
+		var it = ks.listKeys(client, "test@test.com").iterator();
+		it.next();
+		((Closeable) it).close();
+		ks.revalidateKeys(client, "test@test.com", kl).iterator();
+
+		ks.setMaxValidators(0);
+		toList(ks.listKeys(client, "test@test.com"));
+		toList(ks.revalidateKeys(client, "test@test.com", kl));
+		verify(0, getRequestedFor(urlEqualTo("/app/api/authenticator/keys/test@test.com"))
+				.withHeader("If-None-Match", matching(".*")));
+	}
+
+	@Test
+	public void testListKeysGzip(WireMockRuntimeInfo wmRuntimeInfo) throws Exception {
+		var kl = AuthenticatorClientTest.keyList();
+		var out = new ByteArrayOutputStream();
+		try (var gz = new GZIPOutputStream(out)) {
+			gz.write(authorizedKeys(kl).getBytes(StandardCharsets.UTF_8));
+		}
+		stubFor(get(urlEqualTo("/app/api/authenticator/keys/test@test.com"))
+				.withHeader("Accept-Encoding", containing("gzip"))
+				.willReturn(aResponse().withHeader("Content-Type", "text/plain")
+						.withHeader("Content-Encoding", "gzip").withBody(out.toByteArray())));
+
+		var ks = new DefaultKeySource("localhost", wmRuntimeInfo.getHttpsPort());
+		var client = createClient();
+		assertEquals(kl, toList(ks.listKeys(client, "test@test.com")));
+		assertEquals(kl, toList(ks.listKeysAsync(client, "test@test.com").get()));
+	}
+
+	@Test
+	public void testFailListKeysUnexpectedNotModified(WireMockRuntimeInfo wmRuntimeInfo) {
+		stubFor(get(urlEqualTo("/app/api/authenticator/keys/test@test.com"))
+				.willReturn(aResponse().withStatus(304)));
+		var ks = new DefaultKeySource("localhost", wmRuntimeInfo.getHttpsPort());
+		var client = createClient();
+		assertThrows(IllegalStateException.class, () -> ks.listKeys(client, "test@test.com").iterator());
+		assertThrows(ExecutionException.class, () -> ks.listKeysAsync(client, "test@test.com").get());
+		assertThrows(IllegalStateException.class,
+				() -> ks.revalidateKeys(client, "test@test.com", List.of()).iterator());
+	}
+
+	@Test
+	public void testHedgedListKeys(WireMockRuntimeInfo wmRuntimeInfo) throws Exception {
+		var kl = AuthenticatorClientTest.keyList();
+		stubFor(get(urlEqualTo("/app/api/authenticator/keys/test@test.com")).withHeader("Host", containing("127.0.0.1"))
+				.willReturn(aResponse().withHeader("Content-Type", "text/plain").withBody(authorizedKeys(kl))
+						.withFixedDelay(5000)));
+		stubFor(get(urlEqualTo("/app/api/authenticator/keys/test@test.com")).withHeader("Host", containing("localhost"))
+				.willReturn(aResponse().withHeader("Content-Type", "text/plain").withBody(authorizedKeys(kl))));
+
+		var port = wmRuntimeInfo.getHttpsPort();
+		var fast = new Endpoint("localhost", port);
+		var ks = new DefaultKeySource(new EndpointGroup(new Endpoint("127.0.0.1", port), fast));
+		ks.setMaxValidators(0);
+		var hedging = new HedgingPolicy(0.5, 1);
+		for (var i = 0; i < HedgingPolicy.MIN_SAMPLES; i++) {
+			hedging.record(1000);
+		}
+		ks.setHedging(hedging);
+		var client = createClient();
+
+		/* Make the slow server look better, so it is asked first */
+		fast.success(Duration.ofSeconds(10).toNanos(), System.nanoTime());
+
+		var started = System.currentTimeMillis();
+		assertEquals(kl, toList(ks.listKeys(client, "test@test.com")));
+		assertEquals(kl, toList(ks.listKeysAsync(client, "test@test.com").get()));
+		assertTrue(System.currentTimeMillis() - started < 4000);
+		assertEquals(2, hedging.getHedged());
+		assertEquals(2, hedging.getHedgeWins());
+	}
+
+	@Test
+	public void testHedgedListKeysSingleEndpoint(WireMockRuntimeInfo wmRuntimeInfo) throws Exception {
+		var kl = AuthenticatorClientTest.keyList();
+		stubFor(get(urlEqualTo("/app/api/authenticator/keys/test@test.com")).inScenario("hedge")
+				.whenScenarioStateIs(Scenario.STARTED).willSetStateTo("slow")
+				.willReturn(aResponse().withHeader("Content-Type", "text/plain").withBody(authorizedKeys(kl))
+						.withFixedDelay(5000)));
+		stubFor(get(urlEqualTo("/app/api/authenticator/keys/test@test.com")).inScenario("hedge")
+				.whenScenarioStateIs("slow")
+				.willReturn(aResponse().withHeader("Content-Type", "text/plain").withBody(authorizedKeys(kl))));
+
+		var ks = new DefaultKeySource("localhost", wmRuntimeInfo.getHttpsPort());
+		ks.setMaxValidators(0);
+		var hedging = new HedgingPolicy(0.5, 1);
+		for (var i = 0; i < HedgingPolicy.MIN_SAMPLES; i++) {
+			hedging.record(1000);
+		}
+		ks.setHedging(hedging);
+		var client = createClient();
+
+		var started = System.currentTimeMillis();
+		assertEquals(kl, toList(ks.listKeys(client, "test@test.com")));
+		assertTrue(System.currentTimeMillis() - started < 4000);
+		assertEquals(1, hedging.getHedged());
+		assertEquals(1, hedging.getHedgeWins());
+		verify(2, getRequestedFor(urlEqualTo("/app/api/authenticator/keys/test@test.com")));
+	}
+
+	@Test
+	public void testHedgingBudget(WireMockRuntimeInfo wmRuntimeInfo) throws Exception {
+		var kl = AuthenticatorClientTest.keyList();
+		stubFor(get(urlEqualTo("/app/api/authenticator/keys/test@test.com"))
+				.willReturn(aResponse().withHeader("Content-Type", "text/plain").withBody(authorizedKeys(kl))
+						.withFixedDelay(100)));
+
+		var ks = new DefaultKeySource("localhost", wmRuntimeInfo.getHttpsPort());
+		var hedging = new HedgingPolicy(0.5, 0);
+		for (var i = 0; i < HedgingPolicy.MIN_SAMPLES; i++) {
+			hedging.record(1000);
+		}
+		ks.setHedging(hedging);
+		var client = createClient();
+		assertEquals(kl, toList(ks.listKeys(client, "test@test.com")));
+		assertEquals(kl, toList(ks.listKeysAsync(client, "test@test.com").get()));
+		Thread.sleep(200);
+		assertEquals(0, hedging.getHedged());
+		assertEquals(2, hedging.getOverBudget());
+		verify(2, getRequestedFor(urlEqualTo("/app/api/authenticator/keys/test@test.com")));
+	}
+
+	private static String authorizedKeys(List<String> keys) {
+		return String.join("\r\n", Stream.concat(Arrays.asList("# Authorized", "", "# Some other comment").stream(),
+				keys.stream()).collect(Collectors.toList()));
+	}
+
+	private static List<String> toList(Iterable<String> keys) {
+		var list = new ArrayList<String>();
+		keys.forEach(list::add);
+		return list;
+	}
 }
@@ -10,6 +10,7 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import java.io.IOException;
 import java.util.Base64;
+import java.util.concurrent.ExecutionException;
 
 import org.junit.jupiter.api.Test;
 
@@ -79,6 +80,56 @@ public class DefaultSignatureGeneratorTest extends AbstractHttpTest {
 				.decode("1eB-ogdIs4G_-KvZBNI1Gzh6tQNsHn5BsFiDUhMPr3igf2Pnnm6bwRWlUlXYFUmi4LEr1mR9Jvc_5QUA9zm_CQ=="));
 	}
 
+	@Test
+	public void testRequestSignatureAsync(WireMockRuntimeInfo wmRuntimeInfo) throws Exception {
+		var mapper = new ObjectMapper();
+		var root = mapper.createObjectNode();
+		root.set("success", mapper.convertValue(true, JsonNode.class));
+		root.set("message", mapper.convertValue("All good", JsonNode.class));
+		root.set("signature",
+				mapper.convertValue(
+						"1eB-ogdIs4G_-KvZBNI1Gzh6tQNsHn5BsFiDUhMPr3igf2Pnnm6bwRWlUlXYFUmi4LEr1mR9Jvc_5QUA9zm_CQ==",
+						JsonNode.class));
+		root.set("response", mapper.convertValue("", JsonNode.class));
+
+		signStub(root);
+
+		var ks = new DefaultSignatureGenerator("localhost", wmRuntimeInfo.getHttpsPort());
+		var client = createClient();
+		var sig = ks.requestSignatureAsync(client, "test@test.com", "SHA256:HJmwFN7kuX0rZzPGi+4kqO2ftzQ1DAN5BwqW6B3d2AE",
+				"test wants to authenticate from LogonBox Authenticator API using your localhost credentials.",
+				"Authorize",
+				"AQIDBAUGBwgJCgsMDQ4PEBESExQVFhcYGRobHB0eHyAhIiMkJSYnKCkqKywtLi8wMTIzNDU2Nzg5Ojs8PT4_QEFCQ0RFRkdISUpLTE1OT1BRUlNUVVZXWFlaW1xdXl9gYWJjZGVmZ2hpamtsbW5vcHFyc3R1dnd4eXp7fH1-f4A=",
+				0).get();
+
+		assertArrayEquals(sig, Base64.getUrlDecoder()
+				.decode("1eB-ogdIs4G_-KvZBNI1Gzh6tQNsHn5BsFiDUhMPr3igf2Pnnm6bwRWlUlXYFUmi4LEr1mR9Jvc_5QUA9zm_CQ=="));
+	}
+
+	@Test
+	public void testFailRequestSignatureAsync(WireMockRuntimeInfo wmRuntimeInfo) throws IOException {
+		var mapper = new ObjectMapper();
+		var root = mapper.createObjectNode();
+		root.set("success", mapper.convertValue(false, JsonNode.class));
+		root.set("message", mapper.convertValue("It's all gone a bit Pete Tong", JsonNode.class));
+		root.set("signature", mapper.convertValue("XXXX", JsonNode.class));
+		root.set("response", mapper.convertValue("XXXX", JsonNode.class));
+
+		signStub(root);
+
+		var ks = new DefaultSignatureGenerator("localhost", wmRuntimeInfo.getHttpsPort());
+		var client = createClient();
+		var ex = assertThrows(ExecutionException.class, () -> {
+			ks.requestSignatureAsync(client, "test@test.com", "SHA256:HJmwFN7kuX0rZzPGi+4kqO2ftzQ1DAN5BwqW6B3d2AE",
+					"test wants to authenticate from LogonBox Authenticator API using your localhost credentials.",
+					"Authorize",
+					"AQIDBAUGBwgJCgsMDQ4PEBESExQVFhcYGRobHB0eHyAhIiMkJSYnKCkqKywtLi8wMTIzNDU2Nzg5Ojs8PT4_QEFCQ0RFRkdISUpLTE1OT1BRUlNUVVZXWFlaW1xdXl9gYWJjZGVmZ2hpamtsbW5vcHFyc3R1dnd4eXp7fH1-f4A=",
+					0).get();
+		});
+		assertEquals(IOException.class, ex.getCause().getClass());
+		assertEquals("It's all gone a bit Pete Tong", ex.getCause().getMessage());
+	}
+
 	@Test
 	public void testFailRequestSignature(WireMockRuntimeInfo wmRuntimeInfo) throws IOException {
 		var mapper = new ObjectMapper();
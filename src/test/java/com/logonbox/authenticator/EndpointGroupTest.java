@@ -0,0 +1,322 @@
+package com.logonbox.authenticator;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpTimeoutException;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.tomakehurst.wiremock.junit5.WireMockRuntimeInfo;
+import com.github.tomakehurst.wiremock.junit5.WireMockTest;
+
+@WireMockTest(httpsEnabled = true)
+public class EndpointGroupTest extends AbstractHttpTest {
+
+	@Test
+	public void testConstruct() {
+		var group = new EndpointGroup(new Endpoint("a"), new Endpoint("b", 8443));
+		assertEquals("a", group.getPrimary().getHostname());
+		assertEquals(443, group.getPrimary().getPort());
+		assertEquals(2, group.getEndpoints().size());
+		assertEquals("[a:443, b:8443]", group.toString());
+		assertThrows(IllegalArgumentException.class, () -> new EndpointGroup());
+	}
+
+	@Test
+	public void testRetryOnConnectFailure(WireMockRuntimeInfo wmRuntimeInfo) throws Exception {
+		stubFor(get(urlEqualTo("/test")).willReturn(aResponse().withBody("OK")));
+
+		var dead = new Endpoint("localhost", closedPort());
+		var live = new Endpoint("localhost", wmRuntimeInfo.getHttpsPort());
+		var group = new EndpointGroup(dead, live);
+		var client = createClient();
+
+		/* Make the dead endpoint look better, so it is tried first */
+		var latency = Duration.ofSeconds(1);
+		live.success(latency.toNanos(), System.nanoTime());
+
+		for (var i = 0; i < 5; i++) {
+			assertEquals("OK", group.send(client, endpoint -> getRequest(endpoint, "/test"), BodyHandlers.ofString(), false)
+					.body());
+			assertEquals("OK", group.sendAsync(client, endpoint -> getRequest(endpoint, "/test"), BodyHandlers.ofString(), false)
+					.get().body());
+		}
+		assertEquals(CircuitBreaker.State.OPEN, dead.getCircuitBreaker().getState());
+		assertEquals(CircuitBreaker.State.CLOSED, live.getCircuitBreaker().getState());
+		assertEquals(0, live.getCircuitBreaker().getConsecutiveFailures());
+		assertEquals(0, live.getInFlight());
+
+		/* Only requests that are safe to repeat are timed */
+		assertEquals(latency, live.getLatency());
+		group.send(client, endpoint -> getRequest(endpoint, "/test"), BodyHandlers.ofString(), true);
+		assertTrue(live.getLatency().compareTo(latency) < 0);
+	}
+
+	@Test
+	public void testAllFail() throws Exception {
+		var group = new EndpointGroup(new Endpoint("localhost", closedPort()), new Endpoint("127.0.0.1", closedPort()));
+		var client = createClient();
+		assertThrows(IOException.class,
+				() -> group.send(client, endpoint -> getRequest(endpoint, "/test"), BodyHandlers.ofString(), true));
+	}
+
+	@Test
+	public void testServerErrorRetriedWhenIdempotent(WireMockRuntimeInfo wmRuntimeInfo) throws Exception {
+		stubFor(get(urlEqualTo("/test")).withHeader("Host", containing("127.0.0.1"))
+				.willReturn(aResponse().withStatus(503)));
+		stubFor(get(urlEqualTo("/test")).withHeader("Host", containing("localhost"))
+				.willReturn(aResponse().withBody("OK")));
+		stubFor(post(urlEqualTo("/test")).willReturn(aResponse().withStatus(503)));
+
+		var port = wmRuntimeInfo.getHttpsPort();
+		var group = new EndpointGroup(new Endpoint("127.0.0.1", port), new Endpoint("localhost", port));
+		var policy = new CircuitBreakerPolicy();
+		policy.setConsecutiveFailures(Integer.MAX_VALUE);
+		policy.setMinimumRequests(Integer.MAX_VALUE);
+		group.setCircuitBreakerPolicy(policy);
+		var client = createClient();
+
+		for (var i = 0; i < 10; i++) {
+			var response = group.send(client, endpoint -> getRequest(endpoint, "/test"), BodyHandlers.ofString(), true);
+			assertEquals(200, response.statusCode());
+		}
+		for (var i = 0; i < 10; i++) {
+			var response = group.send(client, endpoint -> postRequest(endpoint, "/test"), BodyHandlers.ofString(), false);
+			assertEquals(503, response.statusCode());
+		}
+		verify(10, postRequestedFor(urlEqualTo("/test")));
+		verify(getRequestedFor(urlEqualTo("/test")).withHeader("Host", containing("localhost")));
+	}
+
+	@Test
+	public void testFailFast() throws Exception {
+		var ticker = new AtomicLong();
+		var a = new Endpoint("localhost", closedPort());
+		var b = new Endpoint("127.0.0.1", closedPort());
+		var group = new EndpointGroup(Arrays.asList(a, b), ticker::get);
+		group.getCircuitBreakerPolicy().setConsecutiveFailures(1);
+		var changes = new ArrayList<String>();
+		group.addCircuitBreakerListener((endpoint, from, to) -> changes.add(endpoint + " " + from + " " + to));
+		var client = createClient();
+
+		var ex = assertThrows(IOException.class,
+				() -> group.send(client, endpoint -> getRequest(endpoint, "/test"), BodyHandlers.ofString(), true));
+		assertFalse(ex instanceof CircuitBreakerOpenException);
+		assertEquals(2, changes.size());
+		assertTrue(changes.contains(a + " CLOSED OPEN"));
+		assertTrue(changes.contains(b + " CLOSED OPEN"));
+
+		/* Now fails without trying */
+		var open = assertThrows(CircuitBreakerOpenException.class,
+				() -> group.send(client, endpoint -> getRequest(endpoint, "/test"), BodyHandlers.ofString(), true));
+		assertEquals(group.getEndpoints(), open.getEndpoints());
+		var async = assertThrows(ExecutionException.class, () -> group
+				.sendAsync(client, endpoint -> getRequest(endpoint, "/test"), BodyHandlers.ofString(), true).get());
+		assertTrue(async.getCause() instanceof CircuitBreakerOpenException);
+		assertEquals(2, changes.size());
+
+		/* After the open time, a trial is allowed, fails, and opens for longer */
+		ticker.set(CircuitBreakerPolicy.DEFAULT_OPEN_TIME.toNanos());
+		group.setMaxAttempts(1);
+		assertThrows(IOException.class,
+				() -> group.send(client, endpoint -> getRequest(endpoint, "/test"), BodyHandlers.ofString(), false));
+		assertEquals(4, changes.size());
+		assertTrue(changes.get(2).endsWith(" OPEN HALF_OPEN"));
+		assertTrue(changes.get(3).endsWith(" HALF_OPEN OPEN"));
+	}
+
+	@Test
+	public void testSkipsOpen(WireMockRuntimeInfo wmRuntimeInfo) throws Exception {
+		stubFor(get(urlEqualTo("/test")).willReturn(aResponse().withBody("OK")));
+		var ticker = new AtomicLong();
+		var port = wmRuntimeInfo.getHttpsPort();
+		var a = new Endpoint("localhost", port);
+		var b = new Endpoint("127.0.0.1", port);
+		var group = new EndpointGroup(Arrays.asList(a, b), ticker::get);
+		group.getCircuitBreakerPolicy().setConsecutiveFailures(1);
+		a.getCircuitBreaker().record(0, 0, true, group);
+		assertEquals(CircuitBreaker.State.OPEN, a.getCircuitBreaker().getState());
+
+		var client = createClient();
+		for (var i = 0; i < 5; i++) {
+			group.send(client, endpoint -> getRequest(endpoint, "/test"), BodyHandlers.ofString(), false);
+		}
+		verify(5, getRequestedFor(urlEqualTo("/test")).withHeader("Host", containing("127.0.0.1")));
+
+		/* Trial succeeds and closes again */
+		ticker.set(CircuitBreakerPolicy.DEFAULT_OPEN_TIME.toNanos());
+		b.getCircuitBreaker().record(ticker.get(), 0, true, group);
+		assertEquals("OK",
+				group.send(client, endpoint -> getRequest(endpoint, "/test"), BodyHandlers.ofString(), false).body());
+		assertEquals(CircuitBreaker.State.CLOSED, a.getCircuitBreaker().getState());
+	}
+
+	@Test
+	public void testSignatureRequestsNotSlow(WireMockRuntimeInfo wmRuntimeInfo) throws Exception {
+		stubFor(get(urlEqualTo("/test")).willReturn(aResponse().withBody("OK").withFixedDelay(200)));
+		stubFor(post(urlEqualTo("/test")).willReturn(aResponse().withBody("OK").withFixedDelay(200)));
+		stubFor(post(urlEqualTo("/timeout")).willReturn(aResponse().withBody("OK").withFixedDelay(1000)));
+		var endpoint = new Endpoint("localhost", wmRuntimeInfo.getHttpsPort());
+		var group = new EndpointGroup(endpoint);
+		var policy = group.getCircuitBreakerPolicy();
+		policy.setSlowRequestDuration(Duration.ofMillis(50));
+		policy.setMinimumRequests(2);
+		policy.setSlowRateThreshold(0.25);
+		policy.setConsecutiveFailures(2);
+		var client = createClient();
+
+		/* Waiting for the user is neither slow nor a failure */
+		for (var i = 0; i < 3; i++) {
+			assertEquals("OK",
+					group.send(client, e -> postRequest(e, "/test"), BodyHandlers.ofString(), false).body());
+		}
+		for (var i = 0; i < 3; i++) {
+			assertThrows(HttpTimeoutException.class, () -> group.send(client,
+					e -> HttpRequest.newBuilder(uri(e, "/timeout")).POST(BodyPublishers.ofString("x"))
+							.timeout(Duration.ofMillis(100)).build(),
+					BodyHandlers.ofString(), false));
+		}
+		assertEquals(CircuitBreaker.State.CLOSED, endpoint.getCircuitBreaker().getState());
+		assertEquals(0, endpoint.getCircuitBreaker().getConsecutiveFailures());
+		assertEquals(0, endpoint.getInFlight());
+
+		/* Slow key requests do count */
+		for (var i = 0; i < 2; i++) {
+			group.send(client, e -> getRequest(e, "/test"), BodyHandlers.ofString(), true);
+		}
+		assertEquals(CircuitBreaker.State.OPEN, endpoint.getCircuitBreaker().getState());
+	}
+
+	@Test
+	public void testConcurrencyLimit(WireMockRuntimeInfo wmRuntimeInfo) throws Exception {
+		stubFor(get(urlEqualTo("/test")).willReturn(aResponse().withBody("OK").withFixedDelay(500)));
+		var group = new EndpointGroup(new Endpoint("localhost", wmRuntimeInfo.getHttpsPort()));
+		var limiter = new ConcurrencyLimiter(1);
+		limiter.setMaxQueue(0);
+		var client = createClient();
+		client.setConcurrencyLimiter(limiter);
+
+		var first = group.sendAsync(client, endpoint -> getRequest(endpoint, "/test"), BodyHandlers.ofString(), true);
+		assertEquals(1, limiter.getInFlight());
+		assertThrows(ConcurrencyLimitException.class,
+				() -> group.send(client, endpoint -> getRequest(endpoint, "/test"), BodyHandlers.ofString(), true));
+		assertEquals("OK", first.get().body());
+		assertEquals(0, limiter.getInFlight());
+		assertEquals("OK",
+				group.send(client, endpoint -> getRequest(endpoint, "/test"), BodyHandlers.ofString(), true).body());
+		verify(2, getRequestedFor(urlEqualTo("/test")));
+	}
+
+	@Test
+	public void testSignatureRequestsNotLimited(WireMockRuntimeInfo wmRuntimeInfo) throws Exception {
+		stubFor(get(urlEqualTo("/test")).willReturn(aResponse().withBody("OK")));
+		stubFor(post(urlEqualTo("/test")).willReturn(aResponse().withBody("OK").withFixedDelay(500)));
+		var group = new EndpointGroup(new Endpoint("localhost", wmRuntimeInfo.getHttpsPort()));
+		var limiter = new ConcurrencyLimiter(2);
+		limiter.setMaxQueue(0);
+		var client = createClient();
+		client.setConcurrencyLimiter(limiter);
+
+		/* More users waiting to approve than the limit */
+		var waiting = new ArrayList<CompletableFuture<HttpResponse<String>>>();
+		for (var i = 0; i < 5; i++) {
+			waiting.add(group.sendAsync(client, endpoint -> postRequest(endpoint, "/test"), BodyHandlers.ofString(),
+					false));
+		}
+		assertEquals(5, limiter.getSignatureRequests());
+		assertEquals(0, limiter.getInFlight());
+		assertEquals("OK",
+				group.send(client, endpoint -> getRequest(endpoint, "/test"), BodyHandlers.ofString(), true).body());
+
+		for (var response : waiting) {
+			assertEquals("OK", response.get().body());
+		}
+		assertEquals(0, limiter.getSignatureRequests());
+		assertEquals(0, limiter.getRejected());
+		assertEquals(2, limiter.getLimit());
+	}
+
+	@Test
+	public void testPrefersLowerLatency() {
+		var slow = new Endpoint("slow");
+		var fast = new Endpoint("fast");
+		slow.success(Duration.ofMillis(500).toNanos(), System.nanoTime());
+		fast.success(Duration.ofMillis(5).toNanos(), System.nanoTime());
+		var group = new EndpointGroup(slow, fast);
+		for (var i = 0; i < 10; i++) {
+			assertSame(fast, group.select(Collections.emptySet()));
+		}
+	}
+
+	@Test
+	public void testForgetsIdleLatency() {
+		var ticker = new AtomicLong();
+		var slow = new Endpoint("slow");
+		var fast = new Endpoint("fast");
+		slow.success(Duration.ofMillis(500).toNanos(), 0);
+		fast.success(Duration.ofMillis(5).toNanos(), 0);
+		var group = new EndpointGroup(Arrays.asList(slow, fast), ticker::get);
+		assertSame(fast, group.select(Collections.emptySet()));
+
+		/* The fast endpoint keeps being used, the slow one is forgotten */
+		ticker.set(20 * Endpoint.IDLE_HALF_LIFE);
+		fast.success(Duration.ofMillis(5).toNanos(), ticker.get());
+		assertSame(slow, group.select(Collections.emptySet()));
+		assertEquals(Duration.ofMillis(500), slow.getLatency());
+	}
+
+	@Test
+	public void testSharedWithSignatureGenerator() {
+		var group = new EndpointGroup(new Endpoint("a"), new Endpoint("b"));
+		var ks = new CachingKeySource(new DefaultKeySource(group));
+		var sg = new DefaultSignatureGenerator(ks);
+		assertSame(group, sg.getEndpoints());
+		assertEquals("a", sg.getHostname());
+		assertEquals(443, sg.getPort());
+	}
+
+	private static HttpRequest getRequest(Endpoint endpoint, String path) {
+		return HttpRequest.newBuilder(uri(endpoint, path)).GET().build();
+	}
+
+	private static HttpRequest postRequest(Endpoint endpoint, String path) {
+		return HttpRequest.newBuilder(uri(endpoint, path)).POST(BodyPublishers.ofString("x")).build();
+	}
+
+	private static URI uri(Endpoint endpoint, String path) {
+		return URI.create(String.format("https://%s:%d%s", endpoint.getHostname(), endpoint.getPort(), path));
+	}
+
+	private static int closedPort() throws IOException {
+		try (var socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
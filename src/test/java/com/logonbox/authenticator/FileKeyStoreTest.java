@@ -0,0 +1,153 @@
+package com.logonbox.authenticator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class FileKeyStoreTest {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void testPutGetRemove() throws Exception {
+		try (var store = new FileKeyStore(dir.resolve("keys"))) {
+			assertNull(store.get("test"));
+			store.put("test", new StoredKeys(AuthenticatorClientTest.keyList(), 1234));
+			var stored = store.get("test");
+			assertEquals(AuthenticatorClientTest.keyList(), stored.getKeys());
+			assertEquals(1234, stored.getFetched());
+			assertEquals(1, store.size());
+
+			store.remove("test");
+			assertNull(store.get("test"));
+			assertEquals(0, store.size());
+		}
+	}
+
+	@Test
+	void testReopen() throws Exception {
+		var file = dir.resolve("keys");
+		try (var store = new FileKeyStore(file)) {
+			store.put("a", new StoredKeys(AuthenticatorClientTest.keyList(), 1));
+			store.put("b", new StoredKeys(List.of("ssh-ed25519 AAAA Ünïcödé"), 2));
+			store.put("c", new StoredKeys(AuthenticatorClientTest.keyList(), 3));
+			store.put("a", new StoredKeys(List.of("ssh-ed25519 BBBB"), 4));
+			store.remove("c");
+		}
+		try (var store = new FileKeyStore(file)) {
+			assertEquals(2, store.size());
+			assertEquals(List.of("ssh-ed25519 BBBB"), store.get("a").getKeys());
+			assertEquals(4, store.get("a").getFetched());
+			assertEquals(List.of("ssh-ed25519 AAAA Ünïcödé"), store.get("b").getKeys());
+			assertNull(store.get("c"));
+			assertEquals(5, store.getRecords());
+		}
+	}
+
+	@Test
+	void testDiscardIncompleteRecord() throws Exception {
+		var file = dir.resolve("keys");
+		try (var store = new FileKeyStore(file)) {
+			store.put("a", new StoredKeys(AuthenticatorClientTest.keyList(), 1));
+		}
+		var length = Files.size(file);
+		try (var store = new FileKeyStore(file)) {
+			store.put("b", new StoredKeys(AuthenticatorClientTest.keyList(), 2));
+		}
+		/* Chop the last record in half */
+		try (var ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			ch.truncate(length + (Files.size(file) - length) / 2);
+		}
+
+		try (var store = new FileKeyStore(file)) {
+			assertEquals(1, store.size());
+			assertEquals(length, Files.size(file));
+			store.put("c", new StoredKeys(AuthenticatorClientTest.keyList(), 3));
+		}
+		try (var store = new FileKeyStore(file)) {
+			assertEquals(2, store.size());
+			assertEquals(3, store.get("c").getFetched());
+		}
+	}
+
+	@Test
+	void testCompact() throws Exception {
+		var file = dir.resolve("keys");
+		try (var store = new FileKeyStore(file)) {
+			store.setMinCompactRecords(Integer.MAX_VALUE);
+			for (int i = 0; i < 20; i++) {
+				store.put("a", new StoredKeys(AuthenticatorClientTest.keyList(), i));
+			}
+			store.put("b", new StoredKeys(AuthenticatorClientTest.keyList(), 100));
+			var before = Files.size(file);
+			store.compact();
+			assertEquals(2, store.getRecords());
+			assertTrue(Files.size(file) < before);
+			store.put("c", new StoredKeys(AuthenticatorClientTest.keyList(), 200));
+		}
+		try (var store = new FileKeyStore(file)) {
+			assertEquals(3, store.size());
+			assertEquals(19, store.get("a").getFetched());
+			assertEquals(3, store.getRecords());
+		}
+	}
+
+	@Test
+	void testBackgroundCompact() throws Exception {
+		var file = dir.resolve("keys");
+		try (var store = new FileKeyStore(file)) {
+			store.setMinCompactRecords(10);
+			for (int i = 0; i < 100; i++) {
+				store.put("a", new StoredKeys(AuthenticatorClientTest.keyList(), i));
+			}
+			var timeout = System.currentTimeMillis() + 10000;
+			while (store.getRecords() >= 10) {
+				assertTrue(System.currentTimeMillis() < timeout);
+				Thread.sleep(10);
+			}
+		}
+		try (var store = new FileKeyStore(file)) {
+			assertEquals(99, store.get("a").getFetched());
+		}
+	}
+
+	@Test
+	void testClear() throws Exception {
+		var file = dir.resolve("keys");
+		try (var store = new FileKeyStore(file)) {
+			store.put("a", new StoredKeys(AuthenticatorClientTest.keyList(), 1));
+			store.put("b", new StoredKeys(AuthenticatorClientTest.keyList(), 2));
+			store.clear();
+			assertEquals(0, store.size());
+		}
+		try (var store = new FileKeyStore(file)) {
+			assertEquals(0, store.size());
+		}
+	}
+
+	@Test
+	void testNotAKeyStore() throws Exception {
+		var file = dir.resolve("keys");
+		Files.writeString(file, "not a key store");
+		assertThrows(IOException.class, () -> new FileKeyStore(file));
+	}
+
+	@Test
+	void testClosed() throws Exception {
+		var store = new FileKeyStore(dir.resolve("keys"));
+		store.close();
+		assertThrows(IOException.class, () -> store.put("a", new StoredKeys(AuthenticatorClientTest.keyList(), 1)));
+	}
+}
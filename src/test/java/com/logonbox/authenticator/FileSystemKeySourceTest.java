@@ -0,0 +1,123 @@
+package com.logonbox.authenticator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class FileSystemKeySourceTest {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void testIndexesDirectory() throws Exception {
+		var kl = AuthenticatorClientTest.keyList();
+		for (int i = 0; i < 100; i++) {
+			Files.write(dir.resolve("user" + i + "@logonbox.com"), List.of("# Authorized keys", "", kl.get(i % 2)));
+		}
+		Files.write(dir.resolve(".hidden"), kl);
+
+		try (var ks = new FileSystemKeySource(dir, "tenant.logonbox.directory", 8443)) {
+			assertEquals(100, ks.size());
+			assertEquals(List.of(kl.get(1)), ks.listKeys(null, "user1@logonbox.com"));
+			assertEquals(List.of(kl.get(0)), ks.listKeysAsync(null, "user2@logonbox.com").get());
+			assertFalse(ks.listKeys(null, "nobody@logonbox.com").iterator().hasNext());
+			assertFalse(ks.listKeys(null, ".hidden").iterator().hasNext());
+			assertSame(ks.listKeys(null, "user1@logonbox.com"), ks.listKeys(null, "user1@logonbox.com"));
+			assertEquals("tenant.logonbox.directory", ks.getHostname());
+			assertEquals(8443, ks.getPort());
+		}
+	}
+
+	@Test
+	void testWatchesForChanges() throws Exception {
+		var kl = AuthenticatorClientTest.keyList();
+		Files.write(dir.resolve("a"), List.of(kl.get(0)));
+		Files.write(dir.resolve("b"), List.of(kl.get(0)));
+
+		try (var ks = new FileSystemKeySource(dir, "localhost", 443)) {
+			var reloads = ks.getReloads();
+			assertEquals(2, reloads);
+
+			Files.write(dir.resolve("a"), kl);
+			waitFor(() -> ks.listKeys(null, "a").equals(kl));
+
+			Files.write(dir.resolve("c"), List.of(kl.get(1)));
+			waitFor(() -> ks.listKeys(null, "c").equals(List.of(kl.get(1))));
+
+			Files.delete(dir.resolve("b"));
+			waitFor(() -> !ks.listKeys(null, "b").iterator().hasNext());
+			assertEquals(2, ks.size());
+
+			/* Only the changed files were read again (a write may be seen as more than one change) */
+			assertTrue(ks.getReloads() < reloads + 10);
+			assertEquals(kl, ks.listKeys(null, "a"));
+		}
+	}
+
+	@Test
+	void testWithClient() throws Exception {
+		var kl = AuthenticatorClientTest.keyList();
+		Files.write(dir.resolve("test@logonbox.com"), kl);
+		try (var ks = new FileSystemKeySource(dir, "localhost", 443)) {
+			var client = new AuthenticatorClient(ks);
+			assertEquals(2, client.getUserKeys("test@logonbox.com").size());
+		}
+	}
+
+	@Test
+	void testReload() throws Exception {
+		var kl = AuthenticatorClientTest.keyList();
+		Files.write(dir.resolve("a"), kl);
+		try (var ks = new FileSystemKeySource(dir, "localhost", 443)) {
+			ks.close();
+			Files.delete(dir.resolve("a"));
+			Files.write(dir.resolve("b"), kl);
+			ks.reload();
+			assertEquals(1, ks.size());
+			assertEquals(kl, ks.listKeys(null, "b"));
+		}
+	}
+
+	@Test
+	void testUnreadableFiles() throws Exception {
+		var kl = AuthenticatorClientTest.keyList();
+		var invalid = new byte[] { (byte) 0xff, (byte) 0xfe, (byte) 0xfd };
+		Files.write(dir.resolve("a"), kl);
+		Files.write(dir.resolve("b"), invalid);
+
+		try (var ks = new FileSystemKeySource(dir, "localhost", 443)) {
+			assertEquals(1, ks.size());
+			assertEquals(1, ks.getFailures());
+			assertEquals(kl, ks.listKeys(null, "a"));
+
+			/* A file that can no longer be read no longer has any keys */
+			Files.write(dir.resolve("a"), invalid);
+			waitFor(() -> ks.size() == 0);
+			assertFalse(ks.listKeys(null, "a").iterator().hasNext());
+			assertTrue(ks.getFailures() > 1);
+
+			Files.write(dir.resolve("b"), kl);
+			waitFor(() -> ks.listKeys(null, "b").equals(kl));
+		}
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		var timeout = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > timeout) {
+				throw new AssertionError("Timed out waiting for condition.");
+			}
+			Thread.sleep(10);
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.logonbox.authenticator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+public class HedgingPolicyTest {
+
+	@Test
+	public void testDelay() {
+		var hedging = new HedgingPolicy(0.9, 0.1, 100);
+		hedging.setMinDelay(Duration.ZERO);
+		assertNull(hedging.getDelay());
+		assertEquals(-1, hedging.requested());
+		for (var i = 1; i <= 100; i++) {
+			hedging.record(Duration.ofMillis(i).toNanos());
+		}
+		assertEquals(Duration.ofMillis(90), hedging.getDelay());
+
+		/* Older latencies drop out of the window */
+		for (var i = 1; i <= 100; i++) {
+			hedging.record(Duration.ofMillis(i * 2).toNanos());
+		}
+		assertEquals(Duration.ofMillis(180), hedging.getDelay());
+	}
+
+	@Test
+	public void testMinDelay() {
+		var hedging = new HedgingPolicy();
+		for (var i = 0; i < HedgingPolicy.MIN_SAMPLES; i++) {
+			hedging.record(1000);
+		}
+		assertEquals(HedgingPolicy.DEFAULT_MIN_DELAY, hedging.getDelay());
+	}
+
+	@Test
+	public void testBudget() {
+		var hedging = new HedgingPolicy(0.5, 0.25);
+		for (var i = 0; i < 3; i++) {
+			hedging.requested();
+			assertFalse(hedging.tryHedge());
+		}
+		hedging.requested();
+		assertTrue(hedging.tryHedge());
+		assertFalse(hedging.tryHedge());
+		assertEquals(1, hedging.getHedged());
+		assertEquals(4, hedging.getOverBudget());
+
+		/* Only a few unspent hedges are saved */
+		for (var i = 0; i < 1000; i++) {
+			hedging.requested();
+		}
+		var hedged = 0;
+		while (hedging.tryHedge()) {
+			hedged++;
+		}
+		assertEquals(10, hedged);
+	}
+
+	@Test
+	public void testInvalid() {
+		assertThrows(IllegalArgumentException.class, () -> new HedgingPolicy(0, 0.1));
+		assertThrows(IllegalArgumentException.class, () -> new HedgingPolicy(1.5, 0.1));
+		assertThrows(IllegalArgumentException.class, () -> new HedgingPolicy(0.9, -1));
+		assertThrows(IllegalArgumentException.class, () -> new HedgingPolicy(0.9, 0.1, 1));
+	}
+}
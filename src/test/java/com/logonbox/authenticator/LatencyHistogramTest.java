@@ -0,0 +1,85 @@
+package com.logonbox.authenticator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testEmpty() {
+		var snapshot = new LatencyHistogram().snapshot();
+		assertEquals(0, snapshot.getCount());
+		assertEquals(Duration.ZERO, snapshot.getMean());
+		assertEquals(Duration.ZERO, snapshot.getValueAtPercentile(0.99));
+		assertTrue(snapshot.getBuckets().isEmpty());
+	}
+
+	@Test
+	public void testBuckets() {
+		long last = -1;
+		for (long v = 0; v < 100000; v++) {
+			var idx = LatencyHistogram.index(v);
+			var upper = LatencyHistogram.upperBound(idx);
+			assertTrue(v <= upper);
+			assertTrue(upper - v <= Math.max(0, v / 32));
+			assertTrue(idx >= last);
+			last = idx;
+		}
+		var max = (1L << 40) - 1;
+		assertEquals(max, LatencyHistogram.upperBound(LatencyHistogram.index(max)));
+	}
+
+	@Test
+	public void testPercentiles() {
+		var histogram = new LatencyHistogram();
+		for (var i = 1; i <= 1000; i++) {
+			histogram.record(Duration.ofMillis(i).toNanos());
+		}
+		var snapshot = histogram.snapshot();
+		assertEquals(1000, snapshot.getCount());
+		assertEquals(Duration.ofMillis(1000), snapshot.getMax());
+		assertEquals(Duration.ofNanos(Duration.ofMillis(500500).toNanos() / 1000), snapshot.getMean());
+		assertWithin(Duration.ofMillis(500), snapshot.getValueAtPercentile(0.5));
+		assertWithin(Duration.ofMillis(990), snapshot.getValueAtPercentile(0.99));
+		assertEquals(Duration.ofMillis(1000), snapshot.getValueAtPercentile(1));
+		assertEquals(1000, snapshot.getBuckets().values().stream().mapToLong(Long::longValue).sum());
+	}
+
+	@Test
+	public void testOutOfRange() {
+		var histogram = new LatencyHistogram();
+		histogram.record(-1);
+		histogram.record(Long.MAX_VALUE);
+		var snapshot = histogram.snapshot();
+		assertEquals(2, snapshot.getCount());
+		assertEquals(Duration.ofNanos((1L << 40) - 1), snapshot.getMax());
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+		var histogram = new LatencyHistogram();
+		var executor = Executors.newFixedThreadPool(8);
+		for (var t = 0; t < 8; t++) {
+			executor.execute(() -> {
+				for (var i = 0; i < 10000; i++) {
+					histogram.record(i);
+				}
+			});
+		}
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+		assertEquals(80000, histogram.snapshot().getCount());
+		assertEquals(Duration.ofNanos(9999), histogram.snapshot().getMax());
+	}
+
+	private static void assertWithin(Duration expected, Duration actual) {
+		var error = Math.abs(expected.toNanos() - actual.toNanos());
+		assertTrue(error <= expected.toNanos() / 32, String.format("%s not within 3%% of %s", actual, expected));
+	}
+}
@@ -0,0 +1,47 @@
+package com.logonbox.authenticator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class MemoryKeyStoreTest {
+
+	@Test
+	void testEvictsLeastRecentlyUsed() {
+		var store = new MemoryKeyStore(2);
+		store.put("a", new StoredKeys(AuthenticatorClientTest.keyList(), 1));
+		store.put("b", new StoredKeys(AuthenticatorClientTest.keyList(), 2));
+		store.get("a");
+		store.put("c", new StoredKeys(AuthenticatorClientTest.keyList(), 3));
+		assertEquals(2, store.size());
+		assertNotNull(store.get("a"));
+		assertNull(store.get("b"));
+
+		store.remove("a");
+		assertNull(store.get("a"));
+		store.clear();
+		assertEquals(0, store.size());
+		assertThrows(IllegalArgumentException.class, () -> new MemoryKeyStore(0));
+	}
+
+	@Test
+	void testGetKeyByFingerprint() throws Exception {
+		var client = new AuthenticatorClient("localhost", 443);
+		var keys = AuthenticatorClientTest.keyList();
+		var store = new MemoryKeyStore(2);
+		store.put("test", new StoredKeys(keys, 1));
+		for (var key : keys) {
+			var stored = store.getKey("test", client.decodeKey(key).getFingerprint());
+			assertEquals(List.of(key), stored.getKeys());
+			assertEquals(1, stored.getFetched());
+		}
+		assertTrue(store.getKey("test", "SHA256:XXXX").getKeys().isEmpty());
+		assertNull(store.getKey("other", "SHA256:XXXX"));
+	}
+}
@@ -0,0 +1,135 @@
+package com.logonbox.authenticator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class OffHeapKeyStoreTest {
+
+	@Test
+	void testPutGetRemove() throws Exception {
+		try (var store = new OffHeapKeyStore()) {
+			assertNull(store.get("test"));
+			store.put("test", new StoredKeys(AuthenticatorClientTest.keyList(), 1234));
+			var stored = store.get("test");
+			assertEquals(AuthenticatorClientTest.keyList(), stored.getKeys());
+			assertEquals(1234, stored.getFetched());
+			assertEquals(1, store.size());
+
+			store.put("test", new StoredKeys(List.of(), 5678));
+			assertEquals(List.of(), store.get("test").getKeys());
+			assertEquals(1, store.size());
+
+			store.remove("test");
+			assertNull(store.get("test"));
+			assertEquals(0, store.size());
+		}
+	}
+
+	@Test
+	void testKeysKeptExactly() throws Exception {
+		var ed = AuthenticatorClientTest.keyList().get(0);
+		var blob = ed.split(" ")[1];
+		var keys = List.of("ssh-ed25519 " + blob, "ssh-ed25519 " + blob + " Ünïcödé  comment ",
+				"from=\"10.0.0.1\" ssh-ed25519 " + blob + " Restricted", "ssh-ed25519  " + blob,
+				"ssh-ed25519 " + blob + " ", "not a key", "");
+		try (var store = new OffHeapKeyStore()) {
+			store.put("test", new StoredKeys(keys, 1));
+			assertEquals(keys, store.get("test").getKeys());
+		}
+	}
+
+	@Test
+	void testManyPrincipals() throws Exception {
+		try (var store = new OffHeapKeyStore(1, 1024)) {
+			for (int i = 0; i < 5000; i++) {
+				store.put("user" + i + "@logonbox.com", new StoredKeys(AuthenticatorClientTest.keyList(), i));
+			}
+			for (int i = 0; i < 5000; i += 2) {
+				store.remove("user" + i + "@logonbox.com");
+			}
+			assertEquals(2500, store.size());
+			for (int i = 0; i < 5000; i++) {
+				var stored = store.get("user" + i + "@logonbox.com");
+				if (i % 2 == 0) {
+					assertNull(stored);
+				} else {
+					assertEquals(i, stored.getFetched());
+					assertEquals(AuthenticatorClientTest.keyList(), stored.getKeys());
+				}
+			}
+		}
+	}
+
+	@Test
+	void testReclaimsMemory() throws Exception {
+		try (var store = new OffHeapKeyStore(16, 4096)) {
+			for (int i = 0; i < 1000; i++) {
+				store.put("test", new StoredKeys(AuthenticatorClientTest.keyList(), i));
+			}
+			assertTrue(store.getMemoryUsed() < 16 * 4096, String.valueOf(store.getMemoryUsed()));
+			assertEquals(999, store.get("test").getFetched());
+
+			var live = store.getLiveBytes();
+			store.compact();
+			assertEquals(live, store.getLiveBytes());
+			assertEquals(AuthenticatorClientTest.keyList(), store.get("test").getKeys());
+		}
+	}
+
+	@Test
+	void testGetKeyByFingerprint() throws Exception {
+		var client = new AuthenticatorClient("localhost", 443);
+		var keys = AuthenticatorClientTest.keyList();
+		try (var store = new OffHeapKeyStore()) {
+			store.put("test", new StoredKeys(keys, 1));
+			for (var key : keys) {
+				var stored = store.getKey("test", client.decodeKey(key).getFingerprint());
+				assertEquals(List.of(key), stored.getKeys());
+				assertEquals(1, stored.getFetched());
+			}
+			assertTrue(store.getKey("test", "SHA256:AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA").getKeys().isEmpty());
+			assertTrue(store.getKey("test", "MD5:xx").getKeys().isEmpty());
+			assertNull(store.getKey("other", client.decodeKey(keys.get(0)).getFingerprint()));
+		}
+	}
+
+	@Test
+	void testClear() throws Exception {
+		try (var store = new OffHeapKeyStore()) {
+			store.put("a", new StoredKeys(AuthenticatorClientTest.keyList(), 1));
+			store.put("b", new StoredKeys(AuthenticatorClientTest.keyList(), 2));
+			store.clear();
+			assertEquals(0, store.size());
+			assertEquals(0, store.getLiveBytes());
+			assertNull(store.get("a"));
+			store.put("a", new StoredKeys(AuthenticatorClientTest.keyList(), 3));
+			assertEquals(3, store.get("a").getFetched());
+		}
+	}
+
+	@Test
+	void testClosed() throws Exception {
+		var store = new OffHeapKeyStore();
+		store.put("a", new StoredKeys(AuthenticatorClientTest.keyList(), 1));
+		store.close();
+		assertNull(store.get("a"));
+		assertThrows(IOException.class, () -> store.put("a", new StoredKeys(AuthenticatorClientTest.keyList(), 1)));
+	}
+
+	@Test
+	void testCapacity() throws Exception {
+		assertThrows(IllegalArgumentException.class, () -> new OffHeapKeyStore(0, OffHeapKeyStore.DEFAULT_SEGMENT_SIZE));
+		assertThrows(IllegalArgumentException.class,
+				() -> new OffHeapKeyStore(OffHeapKeyStore.MAX_CAPACITY + 1, OffHeapKeyStore.DEFAULT_SEGMENT_SIZE));
+		assertThrows(IllegalArgumentException.class,
+				() -> new OffHeapKeyStore(Integer.MAX_VALUE, OffHeapKeyStore.DEFAULT_SEGMENT_SIZE));
+		assertTrue(OffHeapKeyStore.MAX_CAPACITY > 40_000_000);
+	}
+}
@@ -0,0 +1,148 @@
+package com.logonbox.authenticator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+public class TieredKeySourceTest {
+
+	@Test
+	void testFallsThroughAndWritesBack() throws Exception {
+		var calls = new AtomicInteger();
+		var memory = new StoreKeySource(new MemoryKeyStore(), Duration.ofMinutes(5));
+		var disk = new StoreKeySource(new OffHeapKeyStore(), Duration.ofHours(1));
+		var ks = new TieredKeySource(memory, disk, (c, p) -> {
+			calls.incrementAndGet();
+			return AuthenticatorClientTest.keyList();
+		});
+
+		assertEquals(AuthenticatorClientTest.keyList(), ks.listKeys(null, "test"));
+		assertEquals(1, calls.get());
+		assertEquals(AuthenticatorClientTest.keyList(), memory.listKeys(null, "test"));
+		assertEquals(AuthenticatorClientTest.keyList(), disk.listKeys(null, "test"));
+
+		assertEquals(AuthenticatorClientTest.keyList(), ks.listKeys(null, "test"));
+		assertEquals(1, calls.get());
+
+		var stats = ks.getStatistics();
+		assertEquals(3, stats.size());
+		assertEquals(1, stats.get(0).getHits());
+		assertEquals(1, stats.get(0).getMisses());
+		assertEquals(1, stats.get(0).getWrites());
+		assertEquals(0.5, stats.get(0).getHitRate());
+		assertEquals(0, stats.get(1).getHits());
+		assertEquals(1, stats.get(1).getMisses());
+		assertEquals(1, stats.get(1).getWrites());
+		assertEquals(1, stats.get(2).getHits());
+		assertEquals(0, stats.get(2).getWrites());
+		assertTrue(stats.get(2).getTotalLatency().toNanos() > 0);
+		assertTrue(stats.get(0).getName().contains("MemoryKeyStore"));
+	}
+
+	@Test
+	void testLowerTierWritesBackOnlyAbove() throws Exception {
+		var memory = new StoreKeySource(new MemoryKeyStore(), Duration.ofMinutes(5));
+		var diskStore = new MemoryKeyStore();
+		diskStore.put("test", new StoredKeys(AuthenticatorClientTest.keyList(), System.currentTimeMillis()));
+		var disk = new StoreKeySource(diskStore, null);
+		var ks = new TieredKeySource(memory, disk, (c, p) -> {
+			throw new IllegalStateException("Should not be called.");
+		});
+
+		assertEquals(AuthenticatorClientTest.keyList(), ks.listKeysAsync(null, "test").get());
+		assertEquals(AuthenticatorClientTest.keyList(), memory.listKeys(null, "test"));
+		assertEquals(0, ks.getStatistics().get(1).getWrites());
+		assertEquals(0, ks.getStatistics().get(2).getLookups());
+	}
+
+	@Test
+	void testGetKeyFromFirstTier() throws Exception {
+		var keys = AuthenticatorClientTest.keyList();
+		var fingerprint = new AuthenticatorClient("localhost", 443).decodeKey(keys.get(1)).getFingerprint();
+		var memory = new StoreKeySource(new MemoryKeyStore(), Duration.ofMinutes(5));
+		var diskStore = new OffHeapKeyStore();
+		diskStore.put("test", new StoredKeys(keys, System.currentTimeMillis()));
+		var ks = new TieredKeySource(memory, new StoreKeySource(diskStore, null), (c, p) -> keys);
+
+		assertNull(ks.getKey(null, "test", fingerprint));
+		ks.listKeys(null, "test");
+		assertEquals(keys.get(1), ks.getKey(null, "test", fingerprint));
+
+		/* Replaced in the first tier, so must not be found in a lower one */
+		memory.writeKeys("test", keys.subList(0, 1));
+		assertNull(ks.getKey(null, "test", fingerprint));
+		assertEquals(keys.get(1), diskStore.getKey("test", fingerprint).getKeys().get(0));
+	}
+
+	@Test
+	void testErrors() throws Exception {
+		var failure = new IllegalStateException("Failed to list keys.");
+		var ks = new TieredKeySource((c, p) -> {
+			throw new IllegalStateException("Broken tier.");
+		}, (c, p) -> {
+			throw failure;
+		});
+		assertSame(failure, assertThrows(IllegalStateException.class, () -> ks.listKeys(null, "test")));
+		assertSame(failure,
+				assertThrows(ExecutionException.class, () -> ks.listKeysAsync(null, "test").get()).getCause());
+		assertEquals(2, ks.getStatistics().get(0).getErrors());
+		assertEquals(2, ks.getStatistics().get(1).getErrors());
+	}
+
+	@Test
+	void testMissEverywhere() throws Exception {
+		var ks = new TieredKeySource(new StoreKeySource(new MemoryKeyStore(), null), (c, p) -> List.of());
+		assertFalse(ks.listKeys(null, "test").iterator().hasNext());
+		assertFalse(ks.listKeysAsync(null, "test").get().iterator().hasNext());
+		assertEquals(0, ks.getStatistics().get(0).getWrites());
+		assertEquals(2, ks.getStatistics().get(1).getMisses());
+	}
+
+	@Test
+	void testFailedWriteBack() throws Exception {
+		var ks = new TieredKeySource(new WritableKeySource() {
+			@Override
+			public Iterable<String> listKeys(AuthenticatorClient client, String principal) {
+				return List.of();
+			}
+
+			@Override
+			public void writeKeys(String principal, List<String> keys) {
+				throw new IllegalStateException("Failed to write keys.");
+			}
+		}, (c, p) -> AuthenticatorClientTest.keyList());
+		assertEquals(AuthenticatorClientTest.keyList(), ks.listKeys(null, "test"));
+		assertEquals(1, ks.getStatistics().get(0).getErrors());
+		assertEquals(0, ks.getStatistics().get(0).getWrites());
+	}
+
+	@Test
+	void testStoreKeySourceExpiry() {
+		var time = new AtomicLong();
+		var ks = new StoreKeySource(new MemoryKeyStore(), Duration.ofSeconds(10), time::get);
+		ks.writeKeys("test", AuthenticatorClientTest.keyList());
+		assertEquals(AuthenticatorClientTest.keyList(), ks.listKeys(null, "test"));
+		time.addAndGet(10000);
+		assertFalse(ks.listKeys(null, "test").iterator().hasNext());
+	}
+
+	@Test
+	void testHostFromLastTier() {
+		var ks = new TieredKeySource(new StoreKeySource(new MemoryKeyStore(), null),
+				new DefaultKeySource("qwerty", 12345));
+		assertEquals("qwerty", ks.getHostname());
+		assertEquals(12345, ks.getPort());
+		assertThrows(IllegalArgumentException.class, () -> new TieredKeySource());
+	}
+}
@@ -0,0 +1,30 @@
+package com.logonbox.authenticator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Run by the failsafe plugin on Java 21 and later, against the packaged
+ * multi-release JAR rather than the compiled classes, so that its Java 21
+ * layer is the one loaded.
+ */
+public class VirtualThreadsIT {
+
+	@Test
+	void testVirtualThreadsSupported() throws Exception {
+		assertTrue(Threads.class.getProtectionDomain().getCodeSource().getLocation().getPath().endsWith(".jar"));
+		assertTrue(AuthenticatorClient.isVirtualThreadsSupported());
+
+		try (var client = new AuthenticatorClient("localhost", 443)) {
+			client.setVirtualThreads(true);
+			var thread = new CompletableFuture<Thread>();
+			AuthenticatorClient.runBlocking(client, () -> thread.complete(Thread.currentThread())).get();
+			assertTrue(thread.get().getName().startsWith("AuthenticatorClient-"));
+			assertEquals(true, Thread.class.getMethod("isVirtual").invoke(thread.get()));
+		}
+	}
+}